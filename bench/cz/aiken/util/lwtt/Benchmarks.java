@@ -0,0 +1,429 @@
+/*
+ * Benchmarks.java - micro benchmarks of LWTT hot paths
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class runs micro benchmarks of the LWTT hot paths. It needs
+ * no display and is started by <CODE>make bench</CODE>.
+ *
+ * Each benchmark is warmed up first and then measured in several
+ * iterations; the mean time per operation and its standard deviation
+ * are printed. The optional argument is a substring of the benchmark
+ * names to run.
+ * @author luk
+ */
+public class Benchmarks {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 10;
+    private static final long ITERATION_TIME = 200000000L;
+
+    private static final int[] SIZES = { 1000, 10000, 100000 };
+
+    /**
+     * Result sink preventing the measured code from being optimized out.
+     */
+    static volatile long sink = 0L;
+
+    /**
+     * Scheduler for timers of the benchmarked classes. The benchmarks
+     * drive the timers themselves, so no timer thread adds noise.
+     */
+    static ScheduledExecutorService scheduler = new ManualScheduler();
+
+    /**
+     * Executor running the callbacks of the benchmarked classes
+     * in the calling thread.
+     */
+    static Executor executor = new Executor() {
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    /**
+     * This class represents a scheduler which never runs the scheduled
+     * tasks; the benchmarks call the timer handlers directly.
+     */
+    static class ManualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+        boolean shutdown = false;
+
+        public void execute(Runnable r) {
+            r.run();
+        }
+
+        public ScheduledFuture<?> schedule(Runnable r, long delay, TimeUnit unit) {
+            return new Pending<Object>();
+        }
+
+        public <V> ScheduledFuture<V> schedule(Callable<V> c, long delay, TimeUnit unit) {
+            return new Pending<V>();
+        }
+
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable r, long initialDelay, long period, TimeUnit unit) {
+            return new Pending<Object>();
+        }
+
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable r, long initialDelay, long delay, TimeUnit unit) {
+            return new Pending<Object>();
+        }
+
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return new ArrayList<Runnable>();
+        }
+
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return shutdown;
+        }
+    }
+
+    /**
+     * This class represents a task scheduled by the manual scheduler.
+     * It never becomes due.
+     */
+    static class Pending<V> implements ScheduledFuture<V> {
+        boolean cancelled = false;
+
+        public long getDelay(TimeUnit unit) {
+            return Long.MAX_VALUE;
+        }
+
+        public int compareTo(Delayed d) {
+            return d == this ? 0 : 1;
+        }
+
+        public boolean cancel(boolean interrupt) {
+            cancelled = true;
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDone() {
+            return cancelled;
+        }
+
+        public V get() {
+            throw new CancellationException();
+        }
+
+        public V get(long timeout, TimeUnit unit) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * This class represents a single benchmark.
+     */
+    abstract static class Bench {
+        String name = null;
+
+        Bench(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Prepares the benchmark state. It is not measured.
+         * @throws Exception if the preparation fails
+         */
+        void setUp() throws Exception {
+        }
+
+        /**
+         * Runs one operation.
+         * @throws Exception if the operation fails
+         */
+        abstract void run() throws Exception;
+
+        /**
+         * Releases the benchmark state.
+         */
+        void tearDown() {
+        }
+    }
+
+    /**
+     * Creates tasks with ascending identifiers.
+     * @param cnt task count
+     * @return list of tasks
+     */
+    static ArrayList<Task> createTasks(int cnt) {
+        ArrayList<Task> l = new ArrayList<Task>(cnt);
+        for (int i=0; i<cnt; i++) {
+            l.add(new Task(i, "Task number " + i, i * 61000L, 1 + i % 7));
+        }
+        return l;
+    }
+
+    /**
+     * Creates the formatting benchmark. It reads the time and price texts
+     * of all tasks like a table repaint does. The consumption of each task
+     * is advanced by a minute first, so the texts are always formatted
+     * (not taken from the cache).
+     * @param cnt task count
+     * @return benchmark
+     */
+    static Bench formatting(final int cnt) {
+        return new Bench("format.cells[" + cnt + "]") {
+            ArrayList<Task> tasks = null;
+
+            void setUp() {
+                tasks = createTasks(cnt);
+            }
+
+            void run() {
+                long n = 0;
+                for (int i=0; i<cnt; i++) {
+                    Task t = tasks.get(i);
+                    t.setConsumption(t.getConsumption() + 60000L);
+                    n += t.getConsumptionText().length();
+                    n += t.getTotalPriceText().length();
+                }
+                sink += n;
+            }
+        };
+    }
+
+    /**
+     * Creates the data saving benchmark.
+     * @param cnt task count
+     * @return benchmark
+     */
+    static Bench save(final int cnt) {
+        return new Bench("persist.save[" + cnt + "]") {
+            ArrayList<Task> tasks = null;
+            File file = null;
+
+            void setUp() throws IOException {
+                tasks = createTasks(cnt);
+                file = File.createTempFile("lwtt", ".bin");
+            }
+
+            void run() throws IOException {
+                new TaskSnapshot(new Properties(), tasks).save(file);
+                sink += file.length();
+            }
+
+            void tearDown() {
+                file.delete();
+            }
+        };
+    }
+
+    /**
+     * Creates the data loading benchmark.
+     * @param cnt task count
+     * @return benchmark
+     */
+    static Bench load(final int cnt) {
+        return new Bench("persist.load[" + cnt + "]") {
+            File file = null;
+
+            void setUp() throws IOException {
+                file = File.createTempFile("lwtt", ".bin");
+                new TaskSnapshot(new Properties(), createTasks(cnt)).save(file);
+            }
+
+            void run() throws IOException {
+                TaskSnapshot s = TaskSnapshot.load(file);
+                int n = s.getTaskCount();
+                for (int i=0; i<n; i++) {
+                    sink += s.createTask(i).getId();
+                }
+            }
+
+            void tearDown() {
+                file.delete();
+            }
+        };
+    }
+
+    /**
+     * Creates the tick processing benchmark. All tasks are running and
+     * the tick listener looks their rows up like the table model does.
+     * @param cnt task count
+     * @return benchmark
+     */
+    static Bench tick(final int cnt) {
+        return new Bench("tick.running[" + cnt + "]") {
+            TaskTicker ticker = null;
+            ArrayList<Task> tasks = null;
+
+            void setUp() {
+                ticker = new TaskTicker(Task.PERIOD, scheduler, executor);
+                tasks = createTasks(cnt);
+                final TaskRowIndex rows = new TaskRowIndex();
+                for (int i=0; i<cnt; i++) {
+                    Task t = tasks.get(i);
+                    rows.put(t.getId(), i);
+                    t.setTicker(ticker);
+                    t.start();
+                }
+
+                ticker.setTickHandler(new Runnable() {
+                    public void run() {
+                        long n = 0;
+                        Iterator<Task> it = ticker.getRunningTasks().iterator();
+                        while (it.hasNext()) {
+                            n += rows.get(it.next().getId());
+                        }
+                        sink += n;
+                    }
+                });
+            }
+
+            void run() {
+                ticker.tick();
+            }
+
+            void tearDown() {
+                for (int i=0; i<cnt; i++) {
+                    tasks.get(i).stop();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the sorting benchmark (tasks in random order).
+     * @param cnt task count
+     * @return benchmark
+     */
+    static Bench sort(final int cnt) {
+        return new Bench("sort.compareTo[" + cnt + "]") {
+            ArrayList<Task> tasks = null;
+            ArrayList<Task> work = null;
+
+            void setUp() {
+                tasks = createTasks(cnt);
+                Collections.shuffle(tasks, new Random(cnt));
+                work = new ArrayList<Task>(cnt);
+            }
+
+            void run() {
+                work.clear();
+                work.addAll(tasks);
+                Collections.sort(work);
+                sink += work.get(0).getId();
+            }
+        };
+    }
+
+    /**
+     * Measures the given benchmark and prints the result.
+     * @param b benchmark
+     * @throws Exception if the benchmark fails
+     */
+    static void measure(Bench b) throws Exception {
+        b.setUp();
+        try {
+            for (int i=0; i<WARMUP_ITERATIONS; i++) {
+                iteration(b);
+            }
+
+            double[] res = new double[ITERATIONS];
+            double sum = 0;
+            for (int i=0; i<ITERATIONS; i++) {
+                res[i] = iteration(b);
+                sum += res[i];
+            }
+
+            double mean = sum / ITERATIONS;
+            double var = 0;
+            for (int i=0; i<ITERATIONS; i++) {
+                var += (res[i] - mean) * (res[i] - mean);
+            }
+            double sd = Math.sqrt(var / (ITERATIONS - 1));
+
+            System.out.printf("%-28s %16.1f ns/op  +- %.1f%n", b.name, mean, sd);
+        } finally {
+            b.tearDown();
+        }
+    }
+
+    /**
+     * Runs the benchmark for one iteration.
+     * @param b benchmark
+     * @return mean time per operation [ns]
+     * @throws Exception if the benchmark fails
+     */
+    static double iteration(Bench b) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long now = start;
+        while (now - start < ITERATION_TIME) {
+            b.run();
+            ops++;
+            now = System.nanoTime();
+        }
+        return ((double) (now - start)) / ops;
+    }
+
+    /**
+     * Runs the benchmarks.
+     * @param args optional benchmark name filter
+     * @throws Exception if a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+
+        ArrayList<Bench> list = new ArrayList<Bench>();
+        for (int i=0; i<SIZES.length; i++) {
+            int cnt = SIZES[i];
+            list.add(formatting(cnt));
+            list.add(save(cnt));
+            list.add(load(cnt));
+            list.add(tick(cnt));
+            list.add(sort(cnt));
+        }
+
+        for (int i=0; i<list.size(); i++) {
+            Bench b = list.get(i);
+            if (b.name.indexOf(filter) >= 0)
+                measure(b);
+        }
+
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * LatencyHistogram.java - latency histogram
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class represents a histogram of latencies (in nanoseconds). Like
+ * HdrHistogram it uses log-linear buckets: each power-of-two range is
+ * split into {@link #SUB_BUCKETS} linear sub-buckets, so every recorded
+ * value is kept with a relative error below 1/{@link #SUB_BUCKETS}.
+ * The buckets are allocated once; recording only increments counters
+ * (without locking or allocation), so it may be used on hot paths and
+ * by several threads.
+ * @author luk
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    /**
+     * number of linear sub-buckets per power-of-two range
+     */
+    public static final int SUB_BUCKETS = 128;
+
+    private static final int SUB_BITS = 7;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (64 - SUB_BITS) * HALF;
+
+    private String name = null;
+    private AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong sum = new AtomicLong();
+    private AtomicLong max = new AtomicLong();
+
+    /**
+     * Creates an empty histogram.
+     * @param name histogram name
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the histogram name.
+     * @return name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     * @param value latency [ns]
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+
+        counts.incrementAndGet(getIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since the given start.
+     * @param start start time (<CODE>System.nanoTime()</CODE>)
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+    public void reset() {
+        for (int i=0; i<BUCKET_COUNT; i++) {
+            counts.set(i, 0L);
+        }
+        count.set(0L);
+        sum.set(0L);
+        max.set(0L);
+    }
+
+    /**
+     * Returns the number of recorded values.
+     * @return value count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the greatest recorded value.
+     * @return maximum [ns]
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     * @return mean [ns]; 0 if there is no value
+     */
+    public long getMean() {
+        long cnt = count.get();
+        return cnt == 0 ? 0L : sum.get() / cnt;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded
+     * values lies (within the histogram precision).
+     * @param percentile percentile (0 - 100)
+     * @return value [ns]; 0 if there is no value
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0L;
+        for (int i=0; i<BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0)
+            return 0L;
+
+        long rank = Math.max(1L, (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0));
+        long cnt = 0L;
+        for (int i=0; i<BUCKET_COUNT; i++) {
+            cnt += counts.get(i);
+            if (cnt >= rank)
+                return Math.min(getHighestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    public long getMeanMicros() {
+        return getMean() / 1000L;
+    }
+
+    public long getMaxMicros() {
+        return getMax() / 1000L;
+    }
+
+    public long getP50Micros() {
+        return getValueAtPercentile(50.0) / 1000L;
+    }
+
+    public long getP90Micros() {
+        return getValueAtPercentile(90.0) / 1000L;
+    }
+
+    public long getP99Micros() {
+        return getValueAtPercentile(99.0) / 1000L;
+    }
+
+    public long getP999Micros() {
+        return getValueAtPercentile(99.9) / 1000L;
+    }
+
+    /**
+     * Returns a one-line summary of the histogram.
+     * @return summary text (in microseconds)
+     */
+    @Override
+    public String toString() {
+        return name + ": count=" + getCount() + " mean=" + getMeanMicros()
+                + " p50=" + getP50Micros() + " p90=" + getP90Micros()
+                + " p99=" + getP99Micros() + " p99.9=" + getP999Micros()
+                + " max=" + getMaxMicros() + " us";
+    }
+
+    /**
+     * Returns the bucket of the given value.
+     * @param value non-negative value
+     * @return bucket index
+     */
+    private static int getIndex(long value) {
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb < SUB_BITS)
+            return (int) value;
+
+        int shift = msb - SUB_BITS + 1;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /**
+     * Returns the highest value falling into the given bucket.
+     * @param index bucket index
+     * @return value
+     */
+    private static long getHighestValue(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+}
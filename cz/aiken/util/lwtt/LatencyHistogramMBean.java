@@ -0,0 +1,80 @@
+/*
+ * LatencyHistogramMBean.java - management interface of latency histograms
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+/**
+ * This interface exposes a {@link LatencyHistogram} through JMX.
+ * All values are in microseconds.
+ * @author luk
+ */
+public interface LatencyHistogramMBean {
+
+    /**
+     * Returns the number of recorded values.
+     * @return value count
+     */
+    public long getCount();
+
+    /**
+     * Returns the mean of the recorded values.
+     * @return mean [us]
+     */
+    public long getMeanMicros();
+
+    /**
+     * Returns the greatest recorded value.
+     * @return maximum [us]
+     */
+    public long getMaxMicros();
+
+    /**
+     * Returns the median.
+     * @return 50th percentile [us]
+     */
+    public long getP50Micros();
+
+    /**
+     * Returns the 90th percentile.
+     * @return 90th percentile [us]
+     */
+    public long getP90Micros();
+
+    /**
+     * Returns the 99th percentile.
+     * @return 99th percentile [us]
+     */
+    public long getP99Micros();
+
+    /**
+     * Returns the 99.9th percentile.
+     * @return 99.9th percentile [us]
+     */
+    public long getP999Micros();
+
+    /**
+     * Removes all recorded values.
+     */
+    public void reset();
+
+}
@@ -0,0 +1,243 @@
+/*
+ * LegacyImporter.java - streaming reader of legacy XML data files
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.util.*;
+import javax.xml.stream.*;
+
+/**
+ * This class reads the data file of older LWTT versions. The file is
+ * in the XML properties format: each task is stored as the entries
+ * <CODE>id.name</CODE>, <CODE>id.consumption</CODE> and (optionally)
+ * <CODE>id.price</CODE>, in any order.
+ *
+ * The file is read by a streaming (StAX) parser in one pass; only
+ * the values of the tasks are kept (in primitive arrays), not the whole
+ * document, the entries or any per-task objects. Malformed entries do not
+ * stop the import; the tasks with a malformed entry (or a negative
+ * identifier) are skipped and reported together, each of them once.
+ * @author luk
+ */
+public class LegacyImporter {
+
+    /**
+     * maximum number of malformed entries listed in the error summary
+     */
+    public static final int MAX_REPORTED = 5;
+
+    private File file = null;
+    private Properties settings = new Properties();
+    private ArrayList<String> errors = new ArrayList<String>();
+    private int errorCount = 0;
+    private HashSet<String> badIds = new HashSet<String>();
+
+    private TaskRowIndex slots = new TaskRowIndex();
+    private int count = 0;
+    private int[] ids = new int[1024];
+    private String[] names = new String[1024];
+    private long[] consumptions = new long[1024];
+    private boolean[] hasConsumption = new boolean[1024];
+    private double[] prices = new double[1024];
+    private String[] badKeys = new String[1024];
+
+    /**
+     * Creates an importer for the given file.
+     * @param file legacy data file
+     */
+    public LegacyImporter(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the tasks from the file and adds them to the given store.
+     * Window settings found in the file are available by
+     * {@link #getSettings()} afterwards.
+     * @param store task store
+     * @throws IOException if the file cannot be read or it is not
+     * a well-formed XML document
+     */
+    public void load(TaskStore store) throws IOException {
+        XMLInputFactory f = XMLInputFactory.newInstance();
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+        InputStream is = new BufferedInputStream(new FileInputStream(file), 65536);
+        try {
+            XMLStreamReader r = f.createXMLStreamReader(is);
+            while (r.hasNext()) {
+                if (r.next() != XMLStreamConstants.START_ELEMENT || !r.getLocalName().equals("entry"))
+                    continue;
+
+                String key = r.getAttributeValue(null, "key");
+                String value = r.getElementText();
+                if (key != null)
+                    addEntry(key, value);
+            }
+            r.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            is.close();
+        }
+
+        // order by identifiers: identifier in the upper half, slot in the lower one
+        long[] order = new long[count];
+        for (int i=0; i<count; i++) {
+            order[i] = ((long) ids[i] << 32) | i;
+        }
+        Arrays.sort(order);
+
+        for (int i=0; i<count; i++) {
+            int k = (int) order[i];
+            if (badKeys[k] != null) {
+                addError(badKeys[k]);
+                continue;
+            }
+            if (names[k] == null)
+                continue;
+
+            if (hasConsumption[k])
+                store.add(ids[k], names[k], consumptions[k], prices[k]);
+            else
+                addError(ids[k] + ".consumption");
+            names[k] = null;
+        }
+    }
+
+    /**
+     * Returns the window settings read from the file.
+     * @return settings
+     */
+    public Properties getSettings() {
+        return settings;
+    }
+
+    /**
+     * Returns the number of skipped tasks.
+     * @return error count
+     */
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Returns a message summarizing the skipped tasks.
+     * @return error message; <CODE>null</CODE> if there is no error
+     */
+    public String getErrorSummary() {
+        if (errorCount == 0)
+            return null;
+
+        StringBuilder sb = new StringBuilder("Cannot load ");
+        sb.append(errorCount);
+        sb.append(errorCount == 1 ? " entry" : " entries");
+        sb.append(" from file (bad format): ");
+        for (int i=0; i<errors.size(); i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(errors.get(i));
+        }
+        if (errorCount > errors.size())
+            sb.append(", ...");
+        sb.append('.');
+        return sb.toString();
+    }
+
+    private void addEntry(String key, String value) {
+        if (key.startsWith("window.")) {
+            settings.setProperty(key, value);
+            return;
+        }
+
+        int dot = key.lastIndexOf('.');
+        if (dot < 0)
+            return;
+
+        String field = key.substring(dot + 1);
+        if (!field.equals("name") && !field.equals("consumption") && !field.equals("price"))
+            return;
+
+        String prefix = key.substring(0, dot);
+        int id = -1;
+        try {
+            id = Integer.parseInt(prefix);
+        } catch (NumberFormatException ex) {
+            // reported below
+        }
+
+        // the task identifiers cannot be negative (see TaskRowIndex)
+        if (id < 0) {
+            if (badIds.add(prefix))
+                addError(key);
+            return;
+        }
+
+        int k = slots.get(id);
+        if (k < 0) {
+            k = newSlot(id);
+            slots.put(id, k);
+        }
+        if (badKeys[k] != null)
+            return;
+
+        try {
+            if (field.equals("name")) {
+                names[k] = value;
+            }
+            else if (field.equals("consumption")) {
+                consumptions[k] = Long.parseLong(value.trim());
+                hasConsumption[k] = true;
+            }
+            else {
+                prices[k] = Double.parseDouble(value.trim());
+            }
+        } catch (NumberFormatException ex) {
+            badKeys[k] = key;
+        }
+    }
+
+    private int newSlot(int id) {
+        if (count == ids.length) {
+            int cap = count * 2;
+            ids = Arrays.copyOf(ids, cap);
+            names = Arrays.copyOf(names, cap);
+            consumptions = Arrays.copyOf(consumptions, cap);
+            hasConsumption = Arrays.copyOf(hasConsumption, cap);
+            prices = Arrays.copyOf(prices, cap);
+            badKeys = Arrays.copyOf(badKeys, cap);
+        }
+
+        ids[count] = id;
+        prices[count] = 1;
+        return count++;
+    }
+
+    private void addError(String key) {
+        errorCount++;
+        if (errors.size() < MAX_REPORTED)
+            errors.add(key);
+    }
+
+}
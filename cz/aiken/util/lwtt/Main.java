@@ -23,15 +23,26 @@
 
 package cz.aiken.util.lwtt;
 
+import java.io.*;
+import java.util.concurrent.*;
 import javax.swing.*;
 
 /**
  * This class represents the application itself. It creates the main
- * application frame and makes it visible.
+ * application frame and makes it visible. The event-dispatching thread
+ * is watched for stalls since the start.
+ *
+ * If a command is given on the command line, no frame is created.
+ * The command is sent to the running instance (see
+ * {@link TaskCommandServer}); if there is none, it is performed by
+ * a headless engine on the data directly. Exports are always made by
+ * a headless engine (see {@link TaskExporter}).
  * @author luk
  */
 public class Main implements Runnable {
     
+    private StallWatchdog watchdog = null;
+    
     /**
      * Main class constructor.
      */
@@ -39,6 +50,14 @@ public class Main implements Runnable {
         
     }
     
+    /**
+     * Creates the application with the given watchdog.
+     * @param watchdog event thread watchdog (may be <CODE>null</CODE>)
+     */
+    public Main(StallWatchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+    
     /**
      * Creates the main frame and makes it visible. Then it hands control
      * on the main application loop.
@@ -47,16 +66,167 @@ public class Main implements Runnable {
      */
     public void run() {
         TaskFrame tf = new TaskFrame();
+        if (watchdog != null)
+            watchdog.setLatencyHistogram(tf.getEngine().getMetrics().getStallLatency());
         tf.setVisible(true);
     } 
     
     /**
-     * The main application method. It starts the application by
+     * The main application method. It starts the watchdog (unless
+     * disabled by the threshold property) and then the application by
      * scheduling the initialization for the event-dispatching thread.
-     * @param args the command line arguments (currently ignored)
+     * If a command is given, it only performs the command and exits.
+     * @param args the command line arguments (command and its arguments)
      */
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(new Main());                
+        if (args.length > 0)
+            System.exit(runCommand(args));
+        
+        // the control API responses are small; do not let them wait for delayed ACKs
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        
+        StallWatchdog wd = null;
+        int threshold = Integer.getInteger(StallWatchdog.THRESHOLD_PROPERTY, StallWatchdog.DEFAULT_THRESHOLD).intValue();
+        if (threshold > 0) {
+            wd = new StallWatchdog(threshold, new File(TaskEngine.getDefaultDir(), "stalls.log"));
+            wd.start();
+        }
+        
+        SwingUtilities.invokeLater(new Main(wd));                
+    }
+    
+    /**
+     * Performs a command given on the command line.
+     * @param args the command line arguments
+     * @return exit status
+     */
+    private static int runCommand(String[] args) {
+        if (args[0].equals("export"))
+            return runExport(args);
+        
+        TaskCommand cmd = null;
+        try {
+            cmd = TaskCommand.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("lwtt: " + e.getMessage());
+            System.err.println(TaskCommand.getUsage());
+            return 2;
+        }
+        
+        File dir = TaskEngine.getDefaultDir();
+        TaskCommand.Result res = null;
+        try {
+            res = cmd.send(TaskEngine.getSocketPath(dir));
+        } catch (IOException e) {
+            if (cmd.needsInstance()) {
+                System.err.println("Cannot start tasks (LWTT is not running).");
+                return 1;
+            }
+            res = runHeadless(dir, cmd);
+        }
+        
+        if (res.getError() != null) {
+            System.err.println(res.getError());
+            return 1;
+        }
+        res.print(System.out);
+        return 0;
+    }
+    
+    /**
+     * Exports the data by a headless engine. The engine is opened
+     * read-only for the export, so no data file is written.
+     * @param args the command line arguments
+     * @return exit status
+     */
+    private static int runExport(String[] args) {
+        TaskExporter exp = null;
+        try {
+            exp = TaskExporter.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("lwtt: " + e.getMessage());
+            System.err.println(TaskCommand.getUsage());
+            return 2;
+        }
+        
+        ExecutorService ex = Executors.newSingleThreadExecutor();
+        final TaskEngine engine = new TaskEngine(TaskEngine.getDefaultDir(), ex);
+        engine.setReadOnly(true);
+        engine.addListener(new TaskEngineAdapter() {
+            @Override
+            public void errorOccurred(String message) {
+                System.err.println(message);
+            }
+        });
+        
+        try {
+            ex.submit(new Runnable() {
+                public void run() {
+                    engine.open();
+                }
+            }).get();
+            
+            try {
+                exp.export(engine);
+            } finally {
+                ex.submit(new Runnable() {
+                    public void run() {
+                        engine.close();
+                    }
+                }).get();
+            }
+            return 0;
+        } catch (IOException e) {
+            System.err.println("Cannot export data (" + e.getLocalizedMessage() + ").");
+        } catch (InterruptedException e) {
+            System.err.println("Cannot export data (interrupted).");
+        } catch (ExecutionException e) {
+            System.err.println("Cannot export data (" + e.getCause() + ").");
+        } finally {
+            ex.shutdown();
+        }
+        return 1;
+    }
+    
+    /**
+     * Performs a command by a headless engine. The engine is opened
+     * for the command only (read-only if the command changes nothing).
+     * @param dir data directory
+     * @param cmd command
+     * @return command result
+     */
+    private static TaskCommand.Result runHeadless(File dir, final TaskCommand cmd) {
+        ExecutorService ex = Executors.newSingleThreadExecutor();
+        final TaskEngine engine = new TaskEngine(dir, ex);
+        engine.setReadOnly(cmd.isReadOnly());
+        engine.addListener(new TaskEngineAdapter() {
+            @Override
+            public void errorOccurred(String message) {
+                System.err.println(message);
+            }
+        });
+        
+        Future<TaskCommand.Result> f = ex.submit(new Callable<TaskCommand.Result>() {
+            public TaskCommand.Result call() {
+                engine.open();
+                try {
+                    return cmd.execute(engine);
+                } finally {
+                    engine.close();
+                }
+            }
+        });
+        
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            return TaskCommand.failure("Cannot perform command (interrupted).");
+        } catch (ExecutionException e) {
+            return TaskCommand.failure("Cannot perform command (" + e.getCause() + ").");
+        } finally {
+            ex.shutdown();
+        }
     }
     
 }
@@ -0,0 +1,398 @@
+/*
+ * SessionLog.java - time series of task tracking intervals
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * This class represents the log of tracking intervals (sessions). Each
+ * start/stop of a task produces one interval record (task id, start
+ * time, end time). Intervals are kept in parallel primitive arrays
+ * (one column per field), so millions of them need neither boxing nor
+ * per-interval objects.
+ *
+ * The intervals are kept ordered by their end times. They are appended
+ * when they end, so they mostly come in order; an interval ending before
+ * the last one (e.g. after the system clock has been set back, or written
+ * by another instance) is inserted at its place. Together with the longest
+ * interval duration this serves as the time index: a range query starts
+ * with a binary search for the first interval ending after the range
+ * start and stops at the first interval which cannot start before
+ * the range end.
+ *
+ * The log is stored in a file of fixed-size records (20 bytes):
+ * task id (int), start (long), end (long); times are in milliseconds
+ * since the epoch.
+ * @author luk
+ */
+public class SessionLog {
+
+    /**
+     * aggregation over all tasks
+     */
+    public static final int ALL_TASKS = -1;
+
+    private static final int RECORD_SIZE = 20;
+
+    private File file = null;
+    private FileChannel channel = null;
+
+    private int[] ids = new int[1024];
+    private long[] starts = new long[1024];
+    private long[] ends = new long[1024];
+    private int size = 0;
+    private long maxDuration = 0L;
+
+    /**
+     * Creates an empty log.
+     * @param file log file
+     */
+    public SessionLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the number of intervals.
+     * @return interval count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the task identifier of the given interval.
+     * @param index interval index
+     * @return task identifier
+     */
+    public int getTaskId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * Returns the start time of the given interval.
+     * @param index interval index
+     * @return start time [ms since the epoch]
+     */
+    public long getStart(int index) {
+        return starts[index];
+    }
+
+    /**
+     * Returns the end time of the given interval.
+     * @param index interval index
+     * @return end time [ms since the epoch]
+     */
+    public long getEnd(int index) {
+        return ends[index];
+    }
+
+    /**
+     * Loads the intervals from the file and opens it for appending.
+     * An incomplete record at the end of the file is discarded.
+     * @throws IOException if an I/O error occurs
+     */
+    public void open() throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        long len = channel.size();
+        if (len % RECORD_SIZE != 0)
+            channel.truncate(len - len % RECORD_SIZE);
+
+        read(channel);
+        channel.position(channel.size());
+    }
+
+    /**
+     * Loads the intervals from the file without opening it for appending.
+     * Nothing is written then (an incomplete record is just skipped) and
+     * a missing file is not created.
+     * @throws IOException if an I/O error occurs
+     */
+    public void openReadOnly() throws IOException {
+        size = 0;
+        maxDuration = 0L;
+        if (!file.exists())
+            return;
+
+        FileChannel ch = new RandomAccessFile(file, "r").getChannel();
+        try {
+            read(ch);
+        } finally {
+            ch.close();
+        }
+    }
+
+    private void read(FileChannel ch) throws IOException {
+        size = 0;
+        maxDuration = 0L;
+
+        int cnt = (int) (ch.size() / RECORD_SIZE);
+        if (cnt > 0) {
+            ensureCapacity(cnt);
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, (long) cnt * RECORD_SIZE);
+            for (int i=0; i<cnt; i++) {
+                add(buf.getInt(), buf.getLong(), buf.getLong());
+            }
+        }
+    }
+
+    /**
+     * Closes the log file.
+     */
+    public void close() {
+        if (channel == null)
+            return;
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+
+    /**
+     * Adds an interval to the log. The interval is only kept in memory;
+     * the returned record is to be passed to {@link #write(byte[])}.
+     * @param id task identifier
+     * @param start start time [ms since the epoch]
+     * @param end end time [ms since the epoch]
+     * @return encoded record
+     */
+    public byte[] append(int id, long start, long end) {
+        add(id, start, end);
+
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE);
+        buf.putInt(id);
+        buf.putLong(start);
+        buf.putLong(end);
+        return buf.array();
+    }
+
+    /**
+     * Writes an encoded record at the end of the log file (which may have
+     * been appended to by another instance).
+     * @param record encoded record
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(byte[] record) throws IOException {
+        if (channel == null)
+            return;
+
+        long pos = channel.size();
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        while (buf.hasRemaining()) {
+            channel.write(buf, pos + buf.position());
+        }
+    }
+
+    /**
+     * Returns the time tracked for the given task within the given range.
+     * Intervals crossing the range bounds are counted partially.
+     * @param id task identifier or {@link #ALL_TASKS}
+     * @param from range start [ms since the epoch]
+     * @param to range end (excluding) [ms since the epoch]
+     * @return tracked time [ms]
+     */
+    public long getTotal(int id, long from, long to) {
+        long[] res = getTotals(id, new long[] { from, to });
+        return res[0];
+    }
+
+    /**
+     * Returns the time tracked for the given task in consecutive buckets.
+     * Bucket <I>i</I> spans from <CODE>bounds[i]</CODE> (including)
+     * to <CODE>bounds[i+1]</CODE> (excluding).
+     * @param id task identifier or {@link #ALL_TASKS}
+     * @param bounds ascending bucket bounds [ms since the epoch]
+     * @return tracked time per bucket [ms]
+     */
+    public long[] getTotals(int id, long[] bounds) {
+        long[] res = new long[Math.max(bounds.length - 1, 0)];
+        if (res.length == 0)
+            return res;
+
+        long from = bounds[0];
+        long to = bounds[bounds.length - 1];
+        int end = scanEnd(to);
+        for (int i=scanStart(from); i<end; i++) {
+            if (id != ALL_TASKS && ids[i] != id)
+                continue;
+
+            long s = Math.max(starts[i], from);
+            long e = Math.min(ends[i], to);
+            if (s >= e)
+                continue;
+
+            int b = Arrays.binarySearch(bounds, s);
+            if (b < 0)
+                b = -b - 2;
+            while (s < e) {
+                long be = Math.min(bounds[b + 1], e);
+                res[b] += be - s;
+                s = be;
+                b++;
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * Returns the time tracked for each of the given tasks within
+     * the given range.
+     * @param taskIds task identifiers
+     * @param from range start [ms since the epoch]
+     * @param to range end (excluding) [ms since the epoch]
+     * @return tracked time per task [ms], in the order of the identifiers
+     */
+    public long[] getTotalsByTask(int[] taskIds, long from, long to) {
+        TaskRowIndex index = new TaskRowIndex();
+        for (int i=0; i<taskIds.length; i++) {
+            index.put(taskIds[i], i);
+        }
+
+        long[] res = new long[taskIds.length];
+        int end = scanEnd(to);
+        for (int i=scanStart(from); i<end; i++) {
+            int k = index.get(ids[i]);
+            if (k < 0)
+                continue;
+
+            long s = Math.max(starts[i], from);
+            long e = Math.min(ends[i], to);
+            if (s < e)
+                res[k] += e - s;
+        }
+
+        return res;
+    }
+
+    /**
+     * Computes calendar bucket bounds (e.g. days, weeks or months) covering
+     * the given range. The first bound is the start of the calendar unit
+     * containing the range start.
+     * @param from range start [ms since the epoch]
+     * @param to range end [ms since the epoch]
+     * @param field calendar unit: <CODE>Calendar.DAY_OF_MONTH</CODE>,
+     * <CODE>Calendar.WEEK_OF_YEAR</CODE> or <CODE>Calendar.MONTH</CODE>
+     * @return ascending bucket bounds
+     */
+    public static long[] getCalendarBounds(long from, long to, int field) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(from);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        if (field == Calendar.WEEK_OF_YEAR)
+            c.set(Calendar.DAY_OF_WEEK, c.getFirstDayOfWeek());
+        else if (field == Calendar.MONTH)
+            c.set(Calendar.DAY_OF_MONTH, 1);
+
+        ArrayList<Long> l = new ArrayList<Long>();
+        l.add(Long.valueOf(c.getTimeInMillis()));
+        while (c.getTimeInMillis() < to) {
+            c.add(field, 1);
+            l.add(Long.valueOf(c.getTimeInMillis()));
+        }
+
+        long[] res = new long[l.size()];
+        for (int i=0; i<res.length; i++) {
+            res[i] = l.get(i).longValue();
+        }
+        return res;
+    }
+
+    /**
+     * Returns the index of the first interval which may end after
+     * the given time.
+     * @param from time [ms since the epoch]
+     * @return interval index
+     */
+    private int scanStart(long from) {
+        return findEnd(from);
+    }
+
+    /**
+     * Returns the index behind the last interval which may start before
+     * the given time.
+     * @param to time [ms since the epoch]
+     * @return interval index
+     */
+    private int scanEnd(long to) {
+        if (to > Long.MAX_VALUE - maxDuration)
+            return size;
+
+        return findEnd(to + maxDuration);
+    }
+
+    /**
+     * Returns the index of the first interval ending after the given time.
+     * @param time time [ms since the epoch]
+     * @return interval index
+     */
+    private int findEnd(long time) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] <= time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private void add(int id, long start, long end) {
+        ensureCapacity(size + 1);
+        int pos = size;
+        if (size > 0 && end < ends[size - 1]) {
+            pos = findEnd(end);
+            System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+            System.arraycopy(starts, pos, starts, pos + 1, size - pos);
+            System.arraycopy(ends, pos, ends, pos + 1, size - pos);
+        }
+
+        ids[pos] = id;
+        starts[pos] = start;
+        ends[pos] = end;
+        maxDuration = Math.max(maxDuration, end - start);
+        size++;
+    }
+
+    private void ensureCapacity(int cap) {
+        if (cap <= ids.length)
+            return;
+
+        int n = Math.max(cap, ids.length * 2);
+        ids = Arrays.copyOf(ids, n);
+        starts = Arrays.copyOf(starts, n);
+        ends = Arrays.copyOf(ends, n);
+    }
+
+}
@@ -0,0 +1,227 @@
+/*
+ * StallWatchdog.java - event-dispatching thread watchdog
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+import javax.swing.*;
+
+/**
+ * This class watches the event-dispatching thread for stalls. A background
+ * thread periodically posts a ping to the event queue. If the ping is not
+ * processed within the threshold the stack of the event-dispatching thread
+ * is sampled (repeatedly, while the stall lasts), and when the ping finally
+ * gets through the stall is written with its duration and the samples
+ * to the diagnostics log.
+ *
+ * The log is rolled over when it exceeds {@link #LOG_SIZE}; one older
+ * log (with the <CODE>.1</CODE> suffix) is kept.
+ * @author luk
+ */
+public class StallWatchdog implements Runnable {
+
+    /**
+     * system property with the stall threshold [ms]; 0 disables the watchdog
+     */
+    public static final String THRESHOLD_PROPERTY = "lwtt.watchdog.threshold";
+
+    /**
+     * default stall threshold [ms]
+     */
+    public static final int DEFAULT_THRESHOLD = 500;
+
+    /**
+     * period of pinging the event-dispatching thread [ms]
+     */
+    public static final int PING_PERIOD = 100;
+
+    /**
+     * maximum number of stack samples per stall
+     */
+    public static final int MAX_SAMPLES = 5;
+
+    /**
+     * log size which causes rolling over [bytes]
+     */
+    public static final long LOG_SIZE = 1048576L;
+
+    private long threshold = 0L;
+    private File logFile = null;
+    private Thread thread = null;
+    private volatile boolean stopped = false;
+    private volatile LatencyHistogram histogram = null;
+
+    private volatile Thread edt = null;
+    private boolean pending = false;
+    private long postTime = 0L;
+    private long replyTime = 0L;
+
+    private Runnable ping = new Runnable() {
+        public void run() {
+            edt = Thread.currentThread();
+            long now = System.nanoTime();
+            synchronized (StallWatchdog.this) {
+                replyTime = now;
+                pending = false;
+                StallWatchdog.this.notifyAll();
+            }
+
+            LatencyHistogram h = histogram;
+            if (h != null)
+                h.record(now - postTime);
+        }
+    };
+
+    /**
+     * Creates a new watchdog.
+     * @param threshold stall threshold [ms]
+     * @param logFile diagnostics log file
+     */
+    public StallWatchdog(int threshold, File logFile) {
+        this.threshold = threshold * 1000000L;
+        this.logFile = logFile;
+    }
+
+    /**
+     * Sets the histogram where the delays of the pings are recorded.
+     * @param h histogram
+     */
+    public void setLatencyHistogram(LatencyHistogram h) {
+        histogram = h;
+    }
+
+    /**
+     * Starts the watchdog thread.
+     */
+    public void start() {
+        if (thread != null)
+            return;
+
+        thread = new Thread(this, "LWTT watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the watchdog thread.
+     */
+    public void stop() {
+        stopped = true;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * Pings the event-dispatching thread and samples it when it stalls.
+     */
+    public void run() {
+        try {
+            while (!stopped) {
+                long start = System.nanoTime();
+                synchronized (this) {
+                    pending = true;
+                    postTime = start;
+                }
+                SwingUtilities.invokeLater(ping);
+
+                ArrayList<StackTraceElement[]> samples = null;
+                ArrayList<Long> times = null;
+                long next = start + threshold;
+                synchronized (this) {
+                    while (pending) {
+                        long now = System.nanoTime();
+                        if (now < next) {
+                            wait(Math.max(1L, (next - now) / 1000000L));
+                            continue;
+                        }
+
+                        Thread t = edt;
+                        if (t != null && (samples == null || samples.size() < MAX_SAMPLES)) {
+                            if (samples == null) {
+                                samples = new ArrayList<StackTraceElement[]>();
+                                times = new ArrayList<Long>();
+                            }
+                            samples.add(t.getStackTrace());
+                            times.add(Long.valueOf((now - start) / 1000000L));
+                        }
+                        next += threshold;
+                    }
+                }
+
+                if (samples != null)
+                    log((replyTime - start) / 1000000L, samples, times);
+
+                Thread.sleep(PING_PERIOD);
+            }
+        } catch (InterruptedException e) {
+            // finished
+        }
+    }
+
+    /**
+     * Writes a stall to the diagnostics log.
+     * @param duration stall duration [ms]
+     * @param samples stack samples
+     * @param times sample times (since the ping) [ms]
+     */
+    private void log(long duration, List<StackTraceElement[]> samples, List<Long> times) {
+        StringBuilder sb = new StringBuilder();
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        sb.append(df.format(new Date())).append(" event thread stalled for ").append(duration).append(" ms\n");
+        for (int i=0; i<samples.size(); i++) {
+            sb.append("  sample at ").append(times.get(i)).append(" ms:");
+            if (i > 0 && Arrays.equals(samples.get(i), samples.get(i - 1))) {
+                sb.append(" same as previous\n");
+                continue;
+            }
+
+            sb.append('\n');
+            StackTraceElement[] st = samples.get(i);
+            for (int j=0; j<st.length; j++) {
+                sb.append("    at ").append(st[j]).append('\n');
+            }
+        }
+        sb.append('\n');
+
+        try {
+            logFile.getParentFile().mkdirs();
+            if (logFile.length() > LOG_SIZE) {
+                File old = new File(logFile.getPath() + ".1");
+                old.delete();
+                logFile.renameTo(old);
+            }
+
+            Writer w = new OutputStreamWriter(new FileOutputStream(logFile, true), "UTF-8");
+            try {
+                w.write(sb.toString());
+            } finally {
+                w.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * TableChangeBatch.java - accumulator of table model changes
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.TableModelEvent;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * This class collects updated table cells and passes them to the table
+ * model listeners as a single event. The dirty area is kept as one row
+ * range and one column (or all columns); it is flushed after all events
+ * currently waiting on the event-dispatching thread have been processed,
+ * so a bulk operation or a tick results in one repaint request.
+ * When rows are inserted or removed meanwhile, the collected range is
+ * moved accordingly.
+ *
+ * <I>This class may be used only by the event-dispatching thread.</I>
+ * @author luk
+ */
+public class TableChangeBatch implements Runnable {
+
+    private AbstractTableModel model = null;
+
+    private int first = -1;
+    private int last = -1;
+    private int column = TableModelEvent.ALL_COLUMNS;
+    private boolean scheduled = false;
+    private LatencyHistogram latency = null;
+
+    /**
+     * Creates a new batch for the given model.
+     * @param model table model
+     */
+    public TableChangeBatch(AbstractTableModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Sets the histogram where the durations of passing the changes
+     * to the listeners are recorded.
+     * @param h histogram
+     */
+    public void setLatencyHistogram(LatencyHistogram h) {
+        latency = h;
+    }
+
+    /**
+     * Marks all cells of the given rows as updated.
+     * @param start index of the first updated row
+     * @param end index of the last updated row (including)
+     */
+    public void rowsUpdated(int start, int end) {
+        cellsUpdated(start, end, TableModelEvent.ALL_COLUMNS);
+    }
+
+    /**
+     * Marks the given cells as updated.
+     * @param start index of the first updated row
+     * @param end index of the last updated row (including)
+     * @param col column index or <CODE>TableModelEvent.ALL_COLUMNS</CODE>
+     */
+    public void cellsUpdated(int start, int end, int col) {
+        if (start > end)
+            return;
+
+        if (first < 0) {
+            first = start;
+            last = end;
+            column = col;
+        }
+        else {
+            first = Math.min(first, start);
+            last = Math.max(last, end);
+            if (column != col)
+                column = TableModelEvent.ALL_COLUMNS;
+        }
+
+        if (!scheduled) {
+            scheduled = true;
+            SwingUtilities.invokeLater(this);
+        }
+    }
+
+    /**
+     * Moves the collected changes after rows have been inserted.
+     * @param start index of the first inserted row
+     * @param end index of the last inserted row (including)
+     */
+    public void rowsInserted(int start, int end) {
+        if (first < 0)
+            return;
+
+        int n = end - start + 1;
+        if (first >= start)
+            first += n;
+        if (last >= start)
+            last += n;
+    }
+
+    /**
+     * Moves the collected changes after rows have been removed. Changes
+     * of the removed rows are dropped.
+     * @param start former index of the first removed row
+     * @param end former index of the last removed row (including)
+     */
+    public void rowsRemoved(int start, int end) {
+        if (first < 0)
+            return;
+
+        int n = end - start + 1;
+        if (first > end)
+            first -= n;
+        else if (first >= start)
+            first = start;
+
+        if (last > end)
+            last -= n;
+        else if (last >= start)
+            last = start - 1;
+
+        if (first > last)
+            clear();
+    }
+
+    /**
+     * Drops the collected changes (e.g. when the whole table changes).
+     */
+    public void clear() {
+        first = -1;
+        last = -1;
+    }
+
+    /**
+     * Passes the collected changes to the model listeners immediately.
+     */
+    public void flush() {
+        if (first < 0)
+            return;
+
+        int cnt = model.getRowCount();
+        int start = first;
+        int end = Math.min(last, cnt - 1);
+        int col = column;
+        clear();
+
+        if (start > end)
+            return;
+
+        long t0 = System.nanoTime();
+        model.fireTableChanged(new TableModelEvent(model, start, end, col));
+        if (latency != null)
+            latency.recordSince(t0);
+    }
+
+    /**
+     * Flushes the collected changes. It is called on the event-dispatching
+     * thread after the changes have been scheduled.
+     */
+    public void run() {
+        scheduled = false;
+        flush();
+    }
+
+}
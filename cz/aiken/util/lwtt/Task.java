@@ -23,23 +23,36 @@
 
 package cz.aiken.util.lwtt;
 
-import javax.swing.Timer;
-import java.awt.event.*;
+import java.text.DecimalFormatSymbols;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class represents a tracked task.
+ * 
+ * A task may be detached (holding its values itself) or bound to
+ * a {@link TaskStore}. A bound task is only a lightweight view: its values
+ * are kept in the store's columns and all instances bound to the same
+ * identifier see the same values. A detached task becomes bound when it
+ * is added to a store.
  * @author luk
  */
-public class Task implements ActionListener, Comparable<Task> {
+public class Task implements Comparable<Task> {
     private int id;
     
-    private String name = "Unnamed task";
-    private long consumption = 0L;
-    private double price = 1;
+    private TaskStore store = null;
+    private int row = -1;
+    private int version = -1;
+    
+    private volatile String name = "Unnamed task";
+    private volatile long consumption = 0L;
+    private volatile double price = 1;
+    
+    private volatile boolean running = false;
+    private volatile long startTime = 0L;
+    private volatile long startMillis = 0L;
     
-    private Timer timer = null;
     /**
-     * period for updating time values [ms]
+     * period for repainting time values of running tasks [ms]
      */
     public static final int PERIOD = 10000;
     
@@ -48,25 +61,40 @@ public class Task implements ActionListener, Comparable<Task> {
      */
     public static final double UNITS_PER_HOUR = 3600000;
     
-    private ActionListener listener = null;
+    private TaskTicker ticker = null;
+    
+    private String consumptionText = null;
+    private long consumptionKey = -1L;
+    private String priceText = null;
+    private long priceKey = -1L;
+    
+    private static final char GROUPING_SEPARATOR = new DecimalFormatSymbols().getGroupingSeparator();
+    private static final StringBuilder format = new StringBuilder(32);
     
-    private static int nextId = 0;
+    private static final AtomicInteger nextId = new AtomicInteger();
             
     /**
-     * Generates a new task identifier.
+     * Generates a new task identifier. It may be called by any thread.
      * @return new identifier
      */
     public static int getNewId() {
-        int id = nextId;
-        nextId++;
-        return id;
+        return nextId.getAndIncrement();
     }
     
     /**
      * Creates a new instance of Task
      */
     public Task() {
-        id = getNewId();
+        this(getNewId());
+    }
+    
+    /**
+     * Creates a new task with the given (reserved) identifier.
+     * @param id task identifier
+     */
+    Task(int id) {
+        this.id = id;
+        useId(id);
     }
     
     /**
@@ -82,16 +110,83 @@ public class Task implements ActionListener, Comparable<Task> {
         this.consumption = consumption;
         this.price = price;
         
-        if (id >= nextId)
-            nextId = id + 1;
+        useId(id);
+    }
+    
+    /**
+     * Creates a view of a stored task.
+     * @param store task store
+     * @param id task identifier
+     */
+    Task(TaskStore store, int id) {
+        this.store = store;
+        this.id = id;
+    }
+    
+    /**
+     * Binds the task to the given store. The values are not copied;
+     * the store must already contain them.
+     * @param store task store
+     */
+    void bind(TaskStore store) {
+        this.store = store;
+        version = -1;
+    }
+    
+    /**
+     * Detaches the task from its store. The current values are copied
+     * to the instance, so it may still be used after the task has been
+     * removed from the store.
+     */
+    void detach() {
+        if (store == null)
+            return;
+        
+        int r = row();
+        name = store.getName(r);
+        consumption = store.getBaseConsumption(r);
+        price = store.getPrice(r);
+        running = store.isRunning(r);
+        startTime = store.getStartTime(r);
+        startMillis = store.getRunningSince(r);
+        store = null;
     }
     
     /**
-     * Sets the listener where action events should be passed to.
-     * @param al action listener
+     * Returns the current row of the task in its store. The row is looked
+     * up again only if the store has been changed structurally.
+     * @return row index
      */
-    public void setActionListener(ActionListener al) {
-        listener = al;
+    private int row() {
+        int v = store.getVersion();
+        if (v != version) {
+            row = store.find(id);
+            version = v;
+            if (row < 0)
+                throw new IllegalStateException("task " + id + " is not stored");
+        }
+        
+        return row;
+    }
+    
+    /**
+     * Marks the given identifier as used, so it is never generated
+     * for a new task.
+     * @param id task identifier
+     */
+    static void useId(int id) {
+        int n = nextId.get();
+        while (id >= n && !nextId.compareAndSet(n, id + 1)) {
+            n = nextId.get();
+        }
+    }
+    
+    /**
+     * Sets the ticker which drives this task while it is running.
+     * @param tt task ticker
+     */
+    public void setTicker(TaskTicker tt) {
+        ticker = tt;
     }
     
     /**
@@ -107,6 +202,9 @@ public class Task implements ActionListener, Comparable<Task> {
      * @return task name
      */
     public String getName() {
+        if (store != null)
+            return store.getName(row());
+        
         return name;
     }
     
@@ -115,23 +213,41 @@ public class Task implements ActionListener, Comparable<Task> {
      * @param name new task name
      */
     public void setName(String name) {
-        this.name = name;
+        if (store != null)
+            store.setName(row(), name);
+        else
+            this.name = name;
     }
     
     /**
-     * Returns the current value of cumulative consumption [ms].
+     * Returns the current value of cumulative consumption [ms]. For
+     * a running task it includes the time elapsed since the task has
+     * been started.
      * @return current cumulative consumption
      */
     public long getConsumption() {
-        return consumption;
+        if (store != null)
+            return store.getConsumption(row());
+        
+        if (!running)
+            return consumption;
+        
+        return consumption + (System.nanoTime() - startTime) / 1000000L;
     }
     
     /**
-     * Sets the task cumulative time consumption [ms].
+     * Sets the task cumulative time consumption [ms]. If the task is
+     * running it continues to be tracked from the new value.
      * @param consumption new time consumption value
      */
     public void setConsumption(long consumption) {
+        if (store != null) {
+            store.setConsumption(row(), consumption);
+            return;
+        }
+        
         this.consumption = consumption;
+        startTime = System.nanoTime();
     }
     
     /**
@@ -140,7 +256,10 @@ public class Task implements ActionListener, Comparable<Task> {
      * @param price new price value
      */
     public void setPrice(double price) {
-        this.price = price;
+        if (store != null)
+            store.setPrice(row(), price);
+        else
+            this.price = price;
     }
     
     /**
@@ -148,6 +267,9 @@ public class Task implements ActionListener, Comparable<Task> {
      * @return current price value
      */
     public double getPrice() {
+        if (store != null)
+            return store.getPrice(row());
+        
         return price;
     }
     
@@ -156,7 +278,99 @@ public class Task implements ActionListener, Comparable<Task> {
      * @return total price of this task
      */
     public double getTotalPrice() {
-        return ((double) consumption) / UNITS_PER_HOUR * price;
+        return ((double) getConsumption()) / UNITS_PER_HOUR * getPrice();
+    }
+    
+    /**
+     * Returns the formatted time consumption ([h:min]). The text is
+     * cached, so it is created again only if the value changes.
+     * @return formatted time consumption
+     */
+    public String getConsumptionText() {
+        long mins = getConsumption() / 60000;
+        if (consumptionText == null || mins != consumptionKey) {
+            consumptionText = formatConsumption(mins * 60000);
+            consumptionKey = mins;
+        }
+        
+        return consumptionText;
+    }
+    
+    /**
+     * Returns the formatted total price. The text is cached, so it is
+     * created again only if the value changes.
+     * @return formatted total price
+     */
+    public String getTotalPriceText() {
+        long cents = Math.round(getTotalPrice() * 100);
+        if (priceText == null || cents != priceKey) {
+            priceText = formatPrice(cents / 100.0);
+            priceKey = cents;
+        }
+        
+        return priceText;
+    }
+    
+    /**
+     * Formats a time consumption value ([h:min]).
+     * @param consumption time consumption [ms]
+     * @return formatted value
+     */
+    public static String formatConsumption(long consumption) {
+        long mins = consumption / 60000;
+        synchronized (format) {
+            format.setLength(0);
+            appendNumber(format, mins / 60);
+            format.append(':');
+            appendTwoDigits(format, mins % 60);
+            return format.toString();
+        }
+    }
+    
+    /**
+     * Formats a price value (rounded to hundredths).
+     * @param price price [currency unit]
+     * @return formatted value
+     */
+    public static String formatPrice(double price) {
+        long cents = Math.round(price * 100);
+        synchronized (format) {
+            format.setLength(0);
+            if (cents < 0)
+                format.append('-');
+            appendNumber(format, Math.abs(cents) / 100);
+            format.append('.');
+            appendTwoDigits(format, Math.abs(cents) % 100);
+            return format.toString();
+        }
+    }
+    
+    /**
+     * Appends a non-negative number with grouped thousands.
+     * @param sb string builder
+     * @param n number
+     */
+    private static void appendNumber(StringBuilder sb, long n) {
+        if (n >= 1000) {
+            appendNumber(sb, n / 1000);
+            sb.append(GROUPING_SEPARATOR);
+            n %= 1000;
+            sb.append((char) ('0' + n / 100));
+            appendTwoDigits(sb, n % 100);
+        }
+        else {
+            sb.append(n);
+        }
+    }
+    
+    /**
+     * Appends a number from 0 to 99 as two digits.
+     * @param sb string builder
+     * @param n number
+     */
+    private static void appendTwoDigits(StringBuilder sb, long n) {
+        sb.append((char) ('0' + n / 10));
+        sb.append((char) ('0' + n % 10));
     }
     
     /**
@@ -166,53 +380,115 @@ public class Task implements ActionListener, Comparable<Task> {
      */
     @Override
     public String toString() {
-        return name + "(" + Long.toString(consumption) + ")";
+        return getName() + "(" + Long.toString(getConsumption()) + ")";
+    }
+    
+    /**
+     * Checks whether the given object is a task with the same identifier.
+     * @param o object
+     * @return <CODE>true</CODE> for the same task, <CODE>false</CODE> otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Task && ((Task) o).id == id;
+    }
+    
+    /**
+     * Returns the hash code (based on the task identifier).
+     * @return hash code
+     */
+    @Override
+    public int hashCode() {
+        return id;
     }
     
     /**
      * Starts tracking of this task.
      */
     public void start() {
-        if (timer != null)
-            return;
+        if (store != null) {
+            if (!store.start(row()))
+                return;
+        }
+        else {
+            if (running)
+                return;
+            
+            running = true;
+            startTime = System.nanoTime();
+            startMillis = System.currentTimeMillis();
+        }
         
-        timer = new Timer(PERIOD, this);
-        timer.start();
+        if (ticker != null)
+            ticker.add(this);
     }
     
     /**
      * Stops tracking of this task.
      */
     public void stop() {
-        if (timer == null)
-            return;
+        if (store != null) {
+            if (!store.stop(row()))
+                return;
+        }
+        else {
+            if (!running)
+                return;
+            
+            consumption = getConsumption();
+            running = false;
+        }
         
-        timer.stop();
-        timer = null;
+        if (ticker != null)
+            ticker.remove(this);
     }
     
     /**
-     * Checks whether the task is running.
-     * @return <CODE>true</CODE> if running, <CODE>false</CODE> otherwise
+     * Returns the wall-clock time when the task has been started.
+     * @return start time [ms since the epoch]; -1 if the task is not running
      */
-    public boolean isRunning() {
-        return timer != null;
+    public long getRunningSince() {
+        if (store != null)
+            return store.getRunningSince(row());
+        
+        return running ? startMillis : -1L;
     }
     
     /**
-     * Updates the time consumption value. Then it creates a new action event
-     * and passes it to the assigned listener (if any).
-     * @param e action event
+     * Returns the consumption accumulated before the task has been
+     * started last time (or the whole consumption if not running).
+     * @return base consumption [ms]
      */
-    public void actionPerformed(ActionEvent e) {
-        consumption += PERIOD;
+    long getBaseConsumption() {
+        if (store != null)
+            return store.getBaseConsumption(row());
         
-        ActionEvent e2 = new ActionEvent(this, id, "");
+        return consumption;
+    }
+    
+    /**
+     * Returns the monotonic clock value when the task has been started.
+     * It is meaningful only for a running task.
+     * @return start time [ns]
+     */
+    long getStartTime() {
+        if (store != null)
+            return store.getStartTime(row());
         
-        if (listener != null)
-            listener.actionPerformed(e2);
+        return startTime;
     }
-
+    
+    /**
+     * Checks whether the task is running.
+     * @return <CODE>true</CODE> if running, <CODE>false</CODE> otherwise
+     */
+    public boolean isRunning() {
+        if (store != null)
+            return store.isRunning(row());
+        
+        return running;
+    }
+    
     /**
      * Compares this task to another one. The comparison result is based
      * on task identifiers.
@@ -0,0 +1,678 @@
+/*
+ * TaskCommand.java - command for a running instance
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.text.*;
+import java.util.*;
+
+/**
+ * This class represents a command given on the command line. It is sent
+ * to a running instance over a Unix domain socket (see
+ * {@link TaskCommandServer}) or, if no instance is running, performed by
+ * a headless engine directly.
+ *
+ * Tasks are given by their identifiers or names; a name denotes all
+ * tasks with exactly this name. The command and its result are encoded
+ * in a compact binary form.
+ * @author luk
+ */
+public class TaskCommand {
+
+    /**
+     * protocol version
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * command: list tasks
+     */
+    public static final int LIST = 1;
+
+    /**
+     * command: show totals
+     */
+    public static final int TOTALS = 2;
+
+    /**
+     * command: add tasks
+     */
+    public static final int ADD = 3;
+
+    /**
+     * command: start tasks
+     */
+    public static final int START = 4;
+
+    /**
+     * command: stop tasks (all running tasks if none is given)
+     */
+    public static final int STOP = 5;
+
+    /**
+     * command: reset tasks
+     */
+    public static final int RESET = 6;
+
+    /**
+     * command: remove tasks
+     */
+    public static final int REMOVE = 7;
+
+    /**
+     * command: set the price of tasks
+     */
+    public static final int PRICE = 8;
+
+    /**
+     * command: show the time tracked in the last days, weeks or months
+     * (from the session log)
+     */
+    public static final int REPORT = 9;
+
+    private static final String[] NAMES = {
+        null, "list", "totals", "add", "start", "stop", "reset", "remove", "price", "report"
+    };
+
+    private static final String[] PERIODS = { "day", "week", "month" };
+    private static final int[] PERIOD_FIELDS = { Calendar.DAY_OF_MONTH, Calendar.WEEK_OF_YEAR, Calendar.MONTH };
+
+    private int op = 0;
+    private double price = Double.NaN;
+    private int period = 1;
+    private int periodCount = 1;
+    private String[] targets = null;
+
+    /**
+     * This class represents the result of a command.
+     */
+    public static class Result {
+        private String error = null;
+        private ArrayList<TaskRecord> tasks = new ArrayList<TaskRecord>();
+        private int changed = 0;
+        private ArrayList<String> missing = new ArrayList<String>();
+        private int count = -1;
+        private int running = 0;
+        private long consumption = 0L;
+        private double totalPrice = 0;
+        private int period = -1;
+        private long[] bounds = new long[0];
+        private long[][] tracked = new long[0][];
+
+        /**
+         * Returns the error message.
+         * @return error message; <CODE>null</CODE> if the command
+         * has succeeded
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Prints the result in a human-readable form.
+         * @param out output stream
+         */
+        public void print(PrintStream out) {
+            if (period >= 0) {
+                printReport(out);
+                return;
+            }
+
+            for (int i=0; i<tasks.size(); i++) {
+                TaskRecord r = tasks.get(i);
+                out.println(r.getId() + "\t" + Task.formatConsumption(r.getConsumption())
+                        + "\t" + Task.formatPrice(r.getTotalPrice())
+                        + "\t" + (r.isRunning() ? "running" : "stopped")
+                        + "\t" + r.getName());
+            }
+            if (count >= 0)
+                out.println("Total: " + count + " tasks (" + running + " running), "
+                        + Task.formatConsumption(consumption) + ", " + Task.formatPrice(totalPrice));
+            if (changed > 0)
+                out.println("Changed: " + changed);
+            for (int i=0; i<missing.size(); i++) {
+                out.println("Not found: " + missing.get(i));
+            }
+        }
+
+        /**
+         * Prints the tracked time per period, with the tasks tracked
+         * in the period.
+         * @param out output stream
+         */
+        private void printReport(PrintStream out) {
+            SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+            String label = Character.toUpperCase(PERIODS[period].charAt(0)) + PERIODS[period].substring(1);
+            for (int b=0; b<bounds.length - 1; b++) {
+                long sum = 0L;
+                for (int i=0; i<tracked.length; i++) {
+                    sum += tracked[i][b];
+                }
+                out.println(label + " from " + df.format(new Date(bounds[b])) + ": " + Task.formatConsumption(sum));
+                for (int i=0; i<tracked.length; i++) {
+                    if (tracked[i][b] == 0L)
+                        continue;
+
+                    TaskRecord r = tasks.get(i);
+                    out.println(r.getId() + "\t" + Task.formatConsumption(tracked[i][b]) + "\t" + r.getName());
+                }
+            }
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeBoolean(error != null);
+            if (error != null) {
+                out.writeUTF(error);
+                return;
+            }
+
+            out.writeInt(tasks.size());
+            for (int i=0; i<tasks.size(); i++) {
+                TaskRecord r = tasks.get(i);
+                out.writeInt(r.getId());
+                out.writeUTF(r.getName());
+                out.writeLong(r.getConsumption());
+                out.writeDouble(r.getPrice());
+                out.writeLong(r.getRunningSince());
+            }
+            out.writeInt(changed);
+            out.writeInt(missing.size());
+            for (int i=0; i<missing.size(); i++) {
+                out.writeUTF(missing.get(i));
+            }
+            out.writeInt(count);
+            out.writeInt(running);
+            out.writeLong(consumption);
+            out.writeDouble(totalPrice);
+            out.writeInt(period);
+            out.writeInt(bounds.length);
+            for (int i=0; i<bounds.length; i++) {
+                out.writeLong(bounds[i]);
+            }
+            out.writeInt(tracked.length);
+            for (int i=0; i<tracked.length; i++) {
+                for (int b=0; b<bounds.length - 1; b++) {
+                    out.writeLong(tracked[i][b]);
+                }
+            }
+        }
+
+        private static Result read(DataInputStream in) throws IOException {
+            Result res = new Result();
+            if (in.readBoolean()) {
+                res.error = in.readUTF();
+                return res;
+            }
+
+            int cnt = in.readInt();
+            for (int i=0; i<cnt; i++) {
+                TaskRecord r = new TaskRecord();
+                int id = in.readInt();
+                String name = in.readUTF();
+                long consumption = in.readLong();
+                double price = in.readDouble();
+                long since = in.readLong();
+                r.set(id, name, null, -1, consumption, price, since >= 0, since);
+                res.tasks.add(r);
+            }
+            res.changed = in.readInt();
+            cnt = in.readInt();
+            for (int i=0; i<cnt; i++) {
+                res.missing.add(in.readUTF());
+            }
+            res.count = in.readInt();
+            res.running = in.readInt();
+            res.consumption = in.readLong();
+            res.totalPrice = in.readDouble();
+            res.period = in.readInt();
+            res.bounds = new long[in.readInt()];
+            for (int i=0; i<res.bounds.length; i++) {
+                res.bounds[i] = in.readLong();
+            }
+            res.tracked = new long[in.readInt()][Math.max(res.bounds.length - 1, 0)];
+            for (int i=0; i<res.tracked.length; i++) {
+                for (int b=0; b<res.tracked[i].length; b++) {
+                    res.tracked[i][b] = in.readLong();
+                }
+            }
+            return res;
+        }
+    }
+
+    private TaskCommand(int op, double price, int period, int periodCount, String[] targets) {
+        this.op = op;
+        this.price = price;
+        this.period = period;
+        this.periodCount = periodCount;
+        this.targets = targets;
+    }
+
+    /**
+     * Parses a command from the command line arguments.
+     * @param args arguments (command name, [price or options,] tasks
+     * or names)
+     * @return command
+     * @throws IllegalArgumentException if the arguments are invalid
+     */
+    public static TaskCommand parse(String[] args) {
+        int op = 0;
+        for (int i=1; i<NAMES.length; i++) {
+            if (NAMES[i].equals(args[0]))
+                op = i;
+        }
+        if (op == 0)
+            throw new IllegalArgumentException("unknown command: " + args[0]);
+
+        int first = 1;
+        double price = Double.NaN;
+        if (op == PRICE) {
+            if (args.length < 2)
+                throw new IllegalArgumentException("price not given");
+            price = parsePrice(args[1]);
+            first = 2;
+        }
+        else if (op == ADD && args.length > 2 && args[1].equals("-p")) {
+            price = parsePrice(args[2]);
+            first = 3;
+        }
+
+        int period = 1;
+        int periodCount = 1;
+        while (op == REPORT && first < args.length && args[first].startsWith("-")) {
+            if (first + 1 >= args.length)
+                throw new IllegalArgumentException("missing value: " + args[first]);
+
+            String value = args[first + 1];
+            if (args[first].equals("-p")) {
+                period = Arrays.asList(PERIODS).indexOf(value);
+                if (period < 0)
+                    throw new IllegalArgumentException("bad period: " + value);
+            }
+            else if (args[first].equals("-n")) {
+                periodCount = parseCount(value);
+            }
+            else {
+                throw new IllegalArgumentException("unknown option: " + args[first]);
+            }
+            first += 2;
+        }
+
+        String[] targets = Arrays.copyOfRange(args, first, args.length);
+        if (targets.length == 0 && op != LIST && op != TOTALS && op != STOP && op != ADD && op != REPORT)
+            throw new IllegalArgumentException("no task given");
+        return new TaskCommand(op, price, period, periodCount, targets);
+    }
+
+    /**
+     * Returns the usage description.
+     * @return usage description
+     */
+    public static String getUsage() {
+        return "usage: lwtt [list [TASK...] | totals | add [-p PRICE] [NAME...] |\n"
+                + "             start TASK... | stop [TASK...] | reset TASK... |\n"
+                + "             remove TASK... | price PRICE TASK... |\n"
+                + "             report [-p day|week|month] [-n COUNT] [TASK...] |\n"
+                + "             export [-f csv|json] [-r tasks|totals|rates|prefixes]\n"
+                + "                    [-s SEPARATOR] [-o FILE]]\n"
+                + "TASK is a task identifier or name.";
+    }
+
+    private static double parsePrice(String s) {
+        try {
+            double d = Double.parseDouble(s);
+            if (Double.isNaN(d) || Double.isInfinite(d) || d < 0)
+                throw new NumberFormatException();
+            return d;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad price: " + s);
+        }
+    }
+
+    private static int parseCount(String s) {
+        try {
+            int n = Integer.parseInt(s);
+            if (n < 1 || n > 1000)
+                throw new NumberFormatException();
+            return n;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad count: " + s);
+        }
+    }
+
+    /**
+     * Checks whether the command needs a running instance. A task cannot
+     * be kept running by a headless engine which exits after
+     * the command.
+     * @return <CODE>true</CODE> if a running instance is needed,
+     * <CODE>false</CODE> otherwise
+     */
+    public boolean needsInstance() {
+        return op == START;
+    }
+
+    /**
+     * Checks whether the command only reads the data.
+     * @return <CODE>true</CODE> for a reading command,
+     * <CODE>false</CODE> otherwise
+     */
+    public boolean isReadOnly() {
+        return op == LIST || op == TOTALS || op == REPORT;
+    }
+
+    /**
+     * Sends the command to the instance listening on the given socket.
+     * @param socket socket path
+     * @return command result
+     * @throws IOException if there is no instance listening or
+     * the communication fails
+     */
+    public Result send(File socket) throws IOException {
+        SocketChannel ch = SocketChannel.open(UnixDomainSocketAddress.of(socket.toPath()));
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+            write(out);
+            out.flush();
+            return Result.read(new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch))));
+        } finally {
+            ch.close();
+        }
+    }
+
+    /**
+     * Reads a command, passes it to the handler and writes the result.
+     * It is used by the server.
+     * @param in input stream
+     * @param out output stream
+     * @param handler handler which performs the command
+     * @throws IOException if the communication fails
+     */
+    static void serve(DataInputStream in, DataOutputStream out, Handler handler) throws IOException {
+        Result res = null;
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            res = new Result();
+            res.error = "Cannot perform command (unsupported version " + version + ").";
+        }
+        else {
+            int op = in.readUnsignedByte();
+            double price = in.readDouble();
+            int period = in.readUnsignedByte();
+            int periodCount = in.readInt();
+            String[] targets = new String[in.readInt()];
+            for (int i=0; i<targets.length; i++) {
+                targets[i] = in.readUTF();
+            }
+            if (period >= PERIODS.length || periodCount < 1) {
+                res = new Result();
+                res.error = "Cannot perform command (bad report period).";
+            }
+            else {
+                res = handler.handle(new TaskCommand(op, price, period, periodCount, targets));
+            }
+        }
+        res.write(out);
+        out.flush();
+    }
+
+    /**
+     * Performer of received commands.
+     */
+    interface Handler {
+        /**
+         * Performs the command.
+         * @param cmd command
+         * @return result
+         */
+        Result handle(TaskCommand cmd);
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeByte(VERSION);
+        out.writeByte(op);
+        out.writeDouble(price);
+        out.writeByte(period);
+        out.writeInt(periodCount);
+        out.writeInt(targets.length);
+        for (int i=0; i<targets.length; i++) {
+            out.writeUTF(targets[i]);
+        }
+    }
+
+    /**
+     * Creates a result with the given error message.
+     * @param message error message
+     * @return result
+     */
+    public static Result failure(String message) {
+        Result res = new Result();
+        res.error = message;
+        return res;
+    }
+
+    /**
+     * Performs the command.
+     *
+     * <I>This method may be called only by the engine's event thread.</I>
+     * @param engine tracking engine
+     * @return result
+     */
+    public Result execute(TaskEngine engine) {
+        Result res = new Result();
+        switch (op) {
+            case LIST:
+                list(engine, res);
+                break;
+            case TOTALS:
+                TaskTotals tt = engine.getTotals();
+                res.count = tt.getTaskCount();
+                res.running = tt.getRunningCount();
+                res.consumption = tt.getConsumption();
+                res.totalPrice = tt.getTotalPrice();
+                break;
+            case ADD:
+                add(engine, res);
+                break;
+            case START:
+            case STOP:
+            case RESET:
+            case REMOVE:
+            case PRICE:
+                change(engine, res);
+                break;
+            case REPORT:
+                report(engine, res);
+                break;
+            default:
+                res.error = "Cannot perform command (unknown command " + op + ").";
+        }
+        return res;
+    }
+
+    private void list(TaskEngine engine, Result res) {
+        if (targets.length == 0) {
+            for (int i=0; i<engine.getTaskCount(); i++) {
+                TaskRecord r = new TaskRecord();
+                engine.readTask(engine.getId(i), r);
+                res.tasks.add(r);
+            }
+            return;
+        }
+
+        int[] ids = resolve(engine, res);
+        for (int i=0; i<ids.length; i++) {
+            TaskRecord r = new TaskRecord();
+            if (engine.readTask(ids[i], r))
+                res.tasks.add(r);
+        }
+    }
+
+    /**
+     * Sums the tracked time of the tasks per period, from the start
+     * of the earliest period to now. The running intervals are counted
+     * as well.
+     * @param engine tracking engine
+     * @param res result
+     */
+    private void report(TaskEngine engine, Result res) {
+        int[] ids = null;
+        if (targets.length == 0) {
+            ids = new int[engine.getTaskCount()];
+            for (int i=0; i<ids.length; i++) {
+                ids[i] = engine.getId(i);
+            }
+        }
+        else {
+            ids = resolve(engine, res);
+        }
+
+        long now = System.currentTimeMillis();
+        int field = PERIOD_FIELDS[period];
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(now);
+        c.add(field, 1 - periodCount);
+        long[] bounds = SessionLog.getCalendarBounds(c.getTimeInMillis(), now, field);
+
+        SessionLog log = engine.getSessionLog();
+        long[][] tracked = new long[ids.length][bounds.length - 1];
+        for (int b=0; b<bounds.length - 1; b++) {
+            long[] sums = log.getTotalsByTask(ids, bounds[b], bounds[b + 1]);
+            for (int i=0; i<ids.length; i++) {
+                tracked[i][b] = sums[i];
+            }
+        }
+
+        for (int i=0; i<ids.length; i++) {
+            TaskRecord r = new TaskRecord();
+            engine.readTask(ids[i], r);
+            res.tasks.add(r);
+            if (!r.isRunning())
+                continue;
+
+            // the running interval is not in the log yet
+            long start = r.getRunningSince();
+            for (int b=0; b<bounds.length - 1; b++) {
+                long s = Math.max(start, bounds[b]);
+                long e = Math.min(now, bounds[b + 1]);
+                if (s < e)
+                    tracked[i][b] += e - s;
+            }
+        }
+
+        res.period = period;
+        res.bounds = bounds;
+        res.tracked = tracked;
+    }
+
+    private void add(TaskEngine engine, Result res) {
+        int cnt = Math.max(1, targets.length);
+        for (int i=0; i<cnt; i++) {
+            Task t = engine.addNewTask();
+            int index = engine.indexOf(t);
+            if (i < targets.length)
+                engine.setName(index, targets[i]);
+            if (!Double.isNaN(price))
+                engine.setPrice(index, price);
+
+            TaskRecord r = new TaskRecord();
+            engine.readTask(t.getId(), r);
+            res.tasks.add(r);
+        }
+    }
+
+    private void change(TaskEngine engine, Result res) {
+        if (op == STOP && targets.length == 0) {
+            res.changed = engine.getRunningTasks().size();
+            engine.stopAllTasks();
+            return;
+        }
+
+        int[] ids = resolve(engine, res);
+        for (int i=0; i<ids.length; i++) {
+            int index = engine.indexOf(ids[i]);
+            if (index < 0)
+                continue;
+
+            switch (op) {
+                case START: engine.startTasks(index, index);
+                    break;
+                case STOP: engine.stopTasks(index, index);
+                    break;
+                case RESET: engine.resetTasks(index, index);
+                    break;
+                case REMOVE: engine.removeTasks(index, index);
+                    break;
+                case PRICE: engine.setPrice(index, price);
+                    break;
+            }
+            res.changed++;
+        }
+    }
+
+    /**
+     * Finds the tasks given by the targets. Targets which do not denote
+     * any task are added to the result as missing.
+     * @param engine tracking engine
+     * @param res result
+     * @return task identifiers
+     */
+    private int[] resolve(TaskEngine engine, Result res) {
+        int[] ids = new int[targets.length];
+        int cnt = 0;
+        for (int i=0; i<targets.length; i++) {
+            int found = 0;
+            try {
+                int id = Integer.parseInt(targets[i]);
+                if (engine.indexOf(id) >= 0) {
+                    ids = append(ids, cnt++, id);
+                    found++;
+                }
+            } catch (NumberFormatException e) {
+                // not an identifier, a name
+            }
+
+            if (found == 0) {
+                for (int j=0; j<engine.getTaskCount(); j++) {
+                    if (targets[i].equals(engine.getName(j))) {
+                        ids = append(ids, cnt++, engine.getId(j));
+                        found++;
+                    }
+                }
+            }
+
+            if (found == 0)
+                res.missing.add(targets[i]);
+        }
+        return Arrays.copyOf(ids, cnt);
+    }
+
+    private static int[] append(int[] ids, int pos, int id) {
+        if (pos == ids.length)
+            ids = Arrays.copyOf(ids, Math.max(4, pos * 2));
+        ids[pos] = id;
+        return ids;
+    }
+
+}
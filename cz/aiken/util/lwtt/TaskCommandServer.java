@@ -0,0 +1,239 @@
+/*
+ * TaskCommandServer.java - server of commands sent by the command line
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class represents a server of commands sent from the command line
+ * (see {@link TaskCommand}). It listens on a Unix domain socket in
+ * the data directory; only one of the instances sharing the directory
+ * serves the commands. Each connection carries one command, which is
+ * performed on the engine's event thread. The connections are served
+ * by a few worker threads, and a connection is closed if the command
+ * is not received within {@link #READ_TIMEOUT} milliseconds, so a stalled
+ * client cannot block the other ones.
+ * @author luk
+ */
+public class TaskCommandServer {
+
+    /**
+     * maximum time of waiting for the event thread [ms]
+     */
+    public static final long TIMEOUT = 10000L;
+
+    /**
+     * maximum time of receiving a command [ms]
+     */
+    public static final long READ_TIMEOUT = 5000L;
+
+    /**
+     * number of worker threads
+     */
+    public static final int THREADS = 2;
+
+    private TaskEngine engine = null;
+    private File path = null;
+    private ServerSocketChannel channel = null;
+    private Thread thread = null;
+    private ExecutorService workers = null;
+    private ScheduledExecutorService timer = null;
+
+    /**
+     * Creates a server for the given engine.
+     * @param engine tracking engine
+     * @param path socket path
+     */
+    public TaskCommandServer(TaskEngine engine, File path) {
+        this.engine = engine;
+        this.path = path;
+    }
+
+    /**
+     * Starts the server unless another instance already serves
+     * the commands. A socket file left by a terminated instance is
+     * replaced.
+     * @return <CODE>true</CODE> if the server has been started,
+     * <CODE>false</CODE> if another instance is listening
+     * @throws IOException if the server cannot be started
+     */
+    public boolean start() throws IOException {
+        UnixDomainSocketAddress addr = UnixDomainSocketAddress.of(path.toPath());
+        if (path.exists()) {
+            try {
+                SocketChannel.open(addr).close();
+                return false;
+            } catch (IOException e) {
+                path.delete();
+            }
+        }
+
+        channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(addr);
+
+        workers = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            private AtomicInteger cnt = new AtomicInteger(0);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LWTT commands " + cnt.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LWTT command timeouts");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        thread = new Thread("LWTT commands") {
+            @Override
+            public void run() {
+                serve();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Stops the server and removes the socket file.
+     */
+    public void stop() {
+        if (channel == null)
+            return;
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+        workers.shutdownNow();
+        timer.shutdownNow();
+        path.delete();
+    }
+
+    /**
+     * Accepts the connections until the server is stopped and passes
+     * them to the workers.
+     */
+    private void serve() {
+        ServerSocketChannel ssc = channel;
+        while (ssc.isOpen()) {
+            try {
+                final SocketChannel ch = ssc.accept();
+                try {
+                    workers.execute(new Runnable() {
+                        public void run() {
+                            serve(ch);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    close(ch);
+                }
+            } catch (ClosedChannelException e) {
+                // stopped
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Serves one connection. The connection is closed if the command
+     * is not received in time.
+     * @param ch connection
+     */
+    private void serve(final SocketChannel ch) {
+        final ScheduledFuture<?> deadline = timer.schedule(new Runnable() {
+            public void run() {
+                close(ch);
+            }
+        }, READ_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        try {
+            TaskCommand.serve(new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch))),
+                    new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch))),
+                    new TaskCommand.Handler() {
+                public TaskCommand.Result handle(TaskCommand cmd) {
+                    if (!deadline.cancel(false))
+                        return TaskCommand.failure("Cannot perform command (timed out).");
+                    return perform(cmd);
+                }
+            });
+        } catch (ClosedChannelException e) {
+            // timed out or stopped
+        } catch (EOFException e) {
+            // connection closed without a command (e.g. a probe)
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            deadline.cancel(false);
+            close(ch);
+        }
+    }
+
+    private static void close(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Performs the command on the event thread and waits for the result.
+     * @param cmd command
+     * @return command result
+     */
+    private TaskCommand.Result perform(final TaskCommand cmd) {
+        FutureTask<TaskCommand.Result> f = new FutureTask<TaskCommand.Result>(new Callable<TaskCommand.Result>() {
+            public TaskCommand.Result call() {
+                return cmd.execute(engine);
+            }
+        });
+        engine.getExecutor().execute(f);
+
+        try {
+            return f.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            f.cancel(false);
+            return TaskCommand.failure("Cannot perform command (engine busy).");
+        } catch (InterruptedException e) {
+            f.cancel(false);
+            return TaskCommand.failure("Cannot perform command (interrupted).");
+        } catch (ExecutionException e) {
+            return TaskCommand.failure("Cannot perform command (" + e.getCause() + ").");
+        }
+    }
+
+}
@@ -0,0 +1,1132 @@
+/*
+ * TaskEngine.java - headless task tracking engine
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class represents the task tracking engine. It keeps the task list,
+ * drives running tasks and persists the data. It does not depend on any
+ * user interface; changes are announced to the registered listeners.
+ *
+ * The tasks are kept in the columns of a {@link TaskStore}. A task returned
+ * by {@link #getTask(int)} is a view which reflects the current state,
+ * but it may be a different instance each time.
+ *
+ * The engine is bound to an event thread represented by the executor
+ * passed to the constructor (e.g. the event-dispatching thread in the GUI).
+ * All timer callbacks are passed through this executor.
+ *
+ * Several engines (in different processes) may share a data directory.
+ * Changes made by the others are noticed by a {@link TaskWatcher} and
+ * merged incrementally; they are announced like local changes.
+ * Concurrent changes of the same value are resolved by the order in which
+ * they arrive (the last one wins).
+ *
+ * <I>The engine methods may be called only by the event thread</I>, with
+ * the exception of {@link #readTask(int, TaskRecord)},
+ * {@link #readTasks(int, TaskRecord[])}, {@link #getTotals()} and
+ * {@link #getMetrics()}: they may be used by any thread (e.g. for serving
+ * remote requests or exporting data) and they do not block the event
+ * thread.
+ * @author luk
+ */
+public class TaskEngine {
+
+    /**
+     * period for journal checkpoints of running tasks [ms]
+     */
+    public static final int CHECKPOINT_PERIOD = 60000;
+
+    /**
+     * journal size which causes the full data to be saved [bytes]
+     */
+    public static final long COMPACT_SIZE = 262144L;
+
+    /**
+     * system property with the period of writing the metrics report
+     * [s]; the report is not written if it is not set
+     */
+    public static final String METRICS_PERIOD_PROPERTY = "lwtt.metrics.period";
+
+    /**
+     * number of task identifiers reserved at once
+     */
+    public static final int ID_BLOCK = 256;
+
+    private File dir = null;
+    private Executor executor = null;
+    private ScheduledExecutorService scheduler = null;
+    private ScheduledFuture<?> checkpointFuture = null;
+    private ScheduledFuture<?> metricsFuture = null;
+
+    private TaskStore tasks = null;
+    private TaskRowIndex rows = new TaskRowIndex();
+    private TaskTicker ticker = null;
+    private TaskLock lock = null;
+    private TaskPersister persister = null;
+    private TaskWatcher watcher = null;
+    private SessionLog sessions = null;
+    private TaskTotals totals = new TaskTotals();
+    private TaskMetrics metrics = new TaskMetrics();
+    private Properties settings = new Properties();
+    private boolean readOnly = false;
+    private boolean loadFailed = false;
+    private long checkpointTime = System.nanoTime();
+    private int nextId = 0;
+    private int idLimit = 0;
+    private int spareId = -1;
+    private boolean reserving = false;
+
+    private ArrayList<TaskEngineListener> listeners = new ArrayList<TaskEngineListener>();
+
+    /**
+     * Creates a new engine.
+     * @param dir data directory
+     * @param executor executor representing the engine's event thread
+     */
+    public TaskEngine(File dir, Executor executor) {
+        this.dir = dir;
+        this.executor = executor;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LWTT timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        ticker = new TaskTicker(Task.PERIOD, scheduler, executor);
+        ticker.setDispatchLatency(metrics.getStallLatency());
+        ticker.setTickHandler(new Runnable() {
+            public void run() {
+                tick();
+            }
+        });
+        tasks = new TaskStore(ticker);
+
+        sessions = new SessionLog(getSessionPath(dir));
+        lock = new TaskLock(getLockPath(dir));
+        persister = new TaskPersister(getPath(dir), getJournalPath(dir), lock, executor);
+        persister.setErrorListener(new TaskEngineAdapter() {
+            @Override
+            public void errorOccurred(String message) {
+                fireError(message);
+            }
+        });
+        persister.setMetrics(metrics);
+        persister.setChangeHandler(new TaskPersister.ChangeHandler() {
+            public void merge(byte[] records) {
+                mergeRecords(records);
+            }
+            public void reload() {
+                load();
+            }
+            public void saved(TaskSnapshot saved, TaskSnapshot loaded) {
+                tasks.rebase(saved.getSource(), loaded);
+            }
+        });
+        watcher = new TaskWatcher(getJournalPath(dir), new Runnable() {
+            public void run() {
+                persister.poll();
+            }
+        });
+    }
+
+    /**
+     * Returns the executor representing the engine's event thread.
+     * @return executor
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Returns the default data directory.
+     * @return directory path
+     */
+    public static File getDefaultDir() {
+        Properties sys = System.getProperties();
+        return new File(sys.getProperty("user.home"), ".lwtt");
+    }
+
+    /**
+     * Returns the path to the data file in the given directory.
+     * @param dir data directory
+     * @return data file path
+     */
+    public static File getPath(File dir) {
+        return new File(dir, "data.bin");
+    }
+
+    /**
+     * Returns the path to the file where older LWTT versions saved
+     * the data (in XML format).
+     * @param dir data directory
+     * @return legacy data file path
+     */
+    public static File getLegacyPath(File dir) {
+        return new File(dir, "data.xml");
+    }
+
+    /**
+     * Returns the path to the file where changes made since the last
+     * data saving are recorded.
+     * @param dir data directory
+     * @return journal file path
+     */
+    public static File getJournalPath(File dir) {
+        return new File(dir, "journal.bin");
+    }
+
+    /**
+     * Returns the path to the file which is locked by the engines using
+     * the given directory.
+     * @param dir data directory
+     * @return lock file path
+     */
+    public static File getLockPath(File dir) {
+        return new File(dir, "lock");
+    }
+
+    /**
+     * Returns the path to the file where the metrics report is written.
+     * @param dir data directory
+     * @return metrics report path
+     */
+    public static File getMetricsPath(File dir) {
+        return new File(dir, "metrics.txt");
+    }
+
+    /**
+     * Returns the path to the file where tracking intervals are recorded.
+     * @param dir data directory
+     * @return session log file path
+     */
+    public static File getSessionPath(File dir) {
+        return new File(dir, "sessions.bin");
+    }
+
+    /**
+     * Returns the path to the file with the data shown at startup.
+     * @param dir data directory
+     * @return header file path
+     */
+    public static File getHeaderPath(File dir) {
+        return new File(dir, "header.bin");
+    }
+
+    /**
+     * Returns the path to the socket where a running instance accepts
+     * commands.
+     * @param dir data directory
+     * @return socket path
+     */
+    public static File getSocketPath(File dir) {
+        return new File(dir, "control.sock");
+    }
+
+    /**
+     * Returns the data directory of this engine.
+     * @return data directory
+     */
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Adds a listener.
+     * @param l listener
+     */
+    public void addListener(TaskEngineListener l) {
+        listeners.add(l);
+    }
+
+    /**
+     * Removes a listener.
+     * @param l listener
+     */
+    public void removeListener(TaskEngineListener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Returns the settings stored together with the tasks. They may be
+     * modified by the caller; the changes are saved with the next
+     * data saving.
+     * @return settings
+     */
+    public Properties getSettings() {
+        return settings;
+    }
+
+    /**
+     * Sets whether the engine only reads the data (e.g. for exporting).
+     * A read-only engine loads the data without writing anything:
+     * the loaded data are not saved, the journal is not opened and
+     * neither the checkpoints nor the watching are started. Its tasks
+     * must not be changed. It must be set before the engine is opened.
+     * @param readOnly <CODE>true</CODE> for a read-only engine,
+     * <CODE>false</CODE> otherwise
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Checks whether the engine only reads the data.
+     * @return <CODE>true</CODE> for a read-only engine,
+     * <CODE>false</CODE> otherwise
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Opens the journal, loads the data, starts watching for changes made
+     * by other instances and starts the periodic checkpoints. The metrics
+     * are registered as MBeans and the metrics report is written
+     * periodically if {@link #METRICS_PERIOD_PROPERTY} is set.
+     * A read-only engine only loads the data and the session log.
+     */
+    public void open() {
+        if (readOnly) {
+            try {
+                persister.openReadOnly();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            try {
+                sessions.openReadOnly();
+            } catch (IOException e) {
+                fireError("Cannot load session log (" + e.getLocalizedMessage() + ").");
+            }
+            load();
+            return;
+        }
+
+        if (!dir.exists())
+            dir.mkdirs();
+
+        try {
+            persister.open();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        try {
+            sessions.open();
+        } catch (IOException e) {
+            fireError("Cannot load session log (" + e.getLocalizedMessage() + ").");
+        }
+
+        load();
+
+        nextId = reserveIds();
+        idLimit = nextId + ID_BLOCK;
+
+        try {
+            watcher.start();
+        } catch (IOException e) {
+            fireError("Cannot watch data directory (" + e.getLocalizedMessage() + ").");
+        }
+
+        checkpointFuture = scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        checkpoint();
+                    }
+                });
+            }
+        }, CHECKPOINT_PERIOD, CHECKPOINT_PERIOD, TimeUnit.MILLISECONDS);
+
+        metrics.register();
+        long period = Long.getLong(METRICS_PERIOD_PROPERTY, 0L).longValue();
+        if (period > 0) {
+            metricsFuture = scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    persister.execute(new Runnable() {
+                        public void run() {
+                            writeMetrics();
+                        }
+                    });
+                }
+            }, period, period, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops all tasks, saves the data and waits until all pending data
+     * are written. The engine cannot be used after this call.
+     */
+    public void close() {
+        if (checkpointFuture != null) {
+            checkpointFuture.cancel(false);
+            checkpointFuture = null;
+        }
+
+        if (metricsFuture != null) {
+            metricsFuture.cancel(false);
+            metricsFuture = null;
+            persister.execute(new Runnable() {
+                public void run() {
+                    writeMetrics();
+                }
+            });
+        }
+
+        watcher.stop();
+        stopAllTasks();
+        save();
+        persister.close();
+        metrics.unregister();
+        sessions.close();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Returns the number of tasks.
+     * @return task count
+     */
+    public int getTaskCount() {
+        return tasks.size();
+    }
+
+    /**
+     * Returns the task at the given index.
+     * @param index task index
+     * @return task
+     */
+    public Task getTask(int index) {
+        return tasks.get(index);
+    }
+
+    /**
+     * Returns the identifier of the task at the given index. Unlike
+     * {@link #getTask(int)} it does not create a task view.
+     * @param index task index
+     * @return task identifier
+     */
+    public int getId(int index) {
+        return tasks.getId(index);
+    }
+
+    /**
+     * Returns the name of the task at the given index.
+     * @param index task index
+     * @return task name
+     */
+    public String getName(int index) {
+        return tasks.getName(index);
+    }
+
+    /**
+     * Returns the current consumption of the task at the given index.
+     * @param index task index
+     * @return time consumption [ms]
+     */
+    public long getConsumption(int index) {
+        return tasks.getConsumption(index);
+    }
+
+    /**
+     * Returns the price per hour of the task at the given index.
+     * @param index task index
+     * @return price per hour
+     */
+    public double getPrice(int index) {
+        return tasks.getPrice(index);
+    }
+
+    /**
+     * Reads the values of the task with the given identifier. It may be
+     * called by any thread.
+     * @param id task identifier
+     * @param r record where the values are stored to
+     * @return <CODE>true</CODE> if the task exists,
+     * <CODE>false</CODE> otherwise
+     */
+    public boolean readTask(int id, TaskRecord r) {
+        return tasks.readById(id, r);
+    }
+
+    /**
+     * Reads the values of consecutive tasks (in the order of identifiers).
+     * It may be called by any thread.
+     * @param start index of the first task
+     * @param out records where the values are stored to
+     * @return number of read tasks (0 if there are no more tasks)
+     */
+    public int readTasks(int start, TaskRecord[] out) {
+        return tasks.readRows(start, out);
+    }
+
+    /**
+     * Returns the index of the given task.
+     * @param t task
+     * @return task index; -1 if the task is not contained in the engine
+     */
+    public int indexOf(Task t) {
+        return rows.get(t.getId());
+    }
+
+    /**
+     * Returns the index of the task with the given identifier.
+     * @param id task identifier
+     * @return task index; -1 if there is no such task
+     */
+    public int indexOf(int id) {
+        return rows.get(id);
+    }
+
+    /**
+     * Returns the totals over all tasks. They may be read by any thread.
+     * @return totals
+     */
+    public TaskTotals getTotals() {
+        return totals;
+    }
+
+    /**
+     * Returns the runtime metrics.
+     * @return metrics
+     */
+    public TaskMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the log of tracking intervals.
+     * @return session log
+     */
+    public SessionLog getSessionLog() {
+        return sessions;
+    }
+
+    /**
+     * Returns the running tasks.
+     * @return unmodifiable collection of running tasks
+     */
+    public Collection<Task> getRunningTasks() {
+        return ticker.getRunningTasks();
+    }
+
+    /**
+     * Checks whether the given task is running.
+     * @param index task index
+     * @return <CODE>true</CODE> for running task,
+     * <CODE>false</CODE> otherwise
+     */
+    public boolean isRunning(int index) {
+        return tasks.isRunning(index);
+    }
+
+    /**
+     * Creates a new task.
+     * @return new task
+     */
+    public Task addNewTask() {
+        Task t = new Task(newId());
+        int row = tasks.add(t);
+        totals.add(t);
+        persister.record(TaskJournal.taskAdded(t));
+
+        rows.put(t.getId(), row);
+        fireInserted(row, row);
+        return t;
+    }
+
+    /**
+     * Returns an identifier for a new task. The identifiers are taken
+     * from a block reserved in advance; the next block is reserved
+     * on the persistence thread when a half of the current one is used,
+     * so the event thread does not wait for the lock file.
+     * @return new identifier
+     */
+    private int newId() {
+        if (nextId >= idLimit) {
+            // the next block is not ready yet (or cannot be reserved)
+            if (spareId < 0)
+                spareId = reserveIds();
+
+            nextId = spareId;
+            idLimit = spareId + ID_BLOCK;
+            spareId = -1;
+        }
+
+        if (spareId < 0 && !reserving && idLimit - nextId <= ID_BLOCK / 2) {
+            reserving = true;
+            persister.execute(new Runnable() {
+                public void run() {
+                    final int id = reserveIds();
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            spareId = id;
+                            reserving = false;
+                        }
+                    });
+                }
+            });
+        }
+
+        return nextId++;
+    }
+
+    /**
+     * Reserves a block of identifiers. It may be called by any thread.
+     * If the lock file cannot be used the block is only reserved within
+     * this instance.
+     * @return the first reserved identifier
+     */
+    private int reserveIds() {
+        int id = Task.getNewId();
+        try {
+            id = lock.reserveIds(id, ID_BLOCK);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Task.useId(id + ID_BLOCK - 1);
+        return id;
+    }
+
+    /**
+     * Removes the given tasks.
+     * @param start start index
+     * @param end end index (including)
+     */
+    public void removeTasks(int start, int end) {
+        int[] indices = new int[end - start + 1];
+        for (int i=0; i<indices.length; i++) {
+            indices[i] = start + i;
+        }
+        removeTasks(indices);
+    }
+
+    /**
+     * Removes the tasks at the given indices at once. The listeners
+     * are notified once, with the range from the first to the last
+     * removed task. Negative indices are ignored.
+     * @param indices task indices (in any order)
+     */
+    public void removeTasks(int[] indices) {
+        int[] sorted = indices.clone();
+        Arrays.sort(sorted);
+        int cnt = 0;
+        for (int i=0; i<sorted.length; i++) {
+            if (sorted[i] >= 0 && (cnt == 0 || sorted[i] != sorted[cnt - 1]))
+                sorted[cnt++] = sorted[i];
+        }
+        if (cnt == 0)
+            return;
+
+        for (int i=0; i<cnt; i++) {
+            Task t = tasks.get(sorted[i]);
+            stopTask(t);
+            totals.remove(t);
+            persister.record(TaskJournal.taskRemoved(t));
+            rows.remove(t.getId());
+        }
+        tasks.remove(sorted, cnt);
+        reindex(sorted[0]);
+
+        fireRemoved(sorted[0], sorted[cnt - 1]);
+    }
+
+    /**
+     * Starts the given tasks.
+     * @param start start index
+     * @param end end index (including)
+     */
+    public void startTasks(int start, int end) {
+        for (int i=start; i<=end; i++) {
+            if (tasks.isRunning(i))
+                continue;
+
+            Task t = tasks.get(i);
+            totals.remove(t);
+            t.start();
+            totals.add(t);
+            persister.record(TaskJournal.taskStarted(t));
+        }
+
+        fireUpdated(start, end);
+    }
+
+    /**
+     * Stops the given tasks.
+     * @param start start index
+     * @param end end index (including)
+     */
+    public void stopTasks(int start, int end) {
+        for (int i=start; i<=end; i++) {
+            if (tasks.isRunning(i))
+                stopTask(tasks.get(i));
+        }
+
+        fireUpdated(start, end);
+    }
+
+    /**
+     * Stops all tasks.
+     */
+    public void stopAllTasks() {
+        Task[] running = ticker.getRunningTasks().toArray(new Task[0]);
+        for (int i=0; i<running.length; i++) {
+            Task t = running[i];
+            stopTask(t);
+
+            int row = rows.get(t.getId());
+            if (row >= 0)
+                fireUpdated(row, row);
+        }
+    }
+
+    /**
+     * Stops the given task (if running). The stop is recorded to
+     * the journal and the tracked interval to the session log.
+     * @param t task
+     */
+    private void stopTask(Task t) {
+        if (!t.isRunning())
+            return;
+
+        long start = t.getRunningSince();
+        totals.remove(t);
+        t.stop();
+        totals.add(t);
+        persister.record(TaskJournal.taskStopped(t));
+        logInterval(t.getId(), start);
+    }
+
+    /**
+     * Writes the tracked interval of the given task to the session log.
+     * @param id task identifier
+     * @param start interval start [ms since the epoch]
+     */
+    private void logInterval(int id, long start) {
+        final byte[] rec = sessions.append(id, start, System.currentTimeMillis());
+        persister.execute(new Runnable() {
+            public void run() {
+                try {
+                    lock.lock();
+                    try {
+                        sessions.write(rec);
+                        metrics.addBytesWritten(rec.length);
+                    } finally {
+                        lock.unlock();
+                    }
+                } catch (IOException e) {
+                    sessions.close();
+                    final String msg = "Cannot write to session log (" + e.getLocalizedMessage() + ").";
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            fireError(msg);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Resets the given tasks.
+     * @param start index of the first resetted task
+     * @param end index of the last resetted task (including)
+     */
+    public void resetTasks(int start, int end) {
+        for (int i=start; i<=end; i++) {
+            Task t = tasks.get(i);
+            totals.remove(t);
+            t.setConsumption(0);
+            totals.add(t);
+            persister.record(TaskJournal.consumptionChanged(t));
+        }
+
+        fireUpdated(start, end);
+    }
+
+    /**
+     * Sets the name of the given task.
+     * @param index task index
+     * @param name new task name
+     */
+    public void setName(int index, String name) {
+        Task t = tasks.get(index);
+        t.setName(name);
+        persister.record(TaskJournal.nameChanged(t));
+
+        fireRenamed(index);
+        fireUpdated(index, index);
+    }
+
+    /**
+     * Sets the price per hour of the given task.
+     * @param index task index
+     * @param price new price value
+     */
+    public void setPrice(int index, double price) {
+        Task t = tasks.get(index);
+        totals.remove(t);
+        t.setPrice(price);
+        totals.add(t);
+        persister.record(TaskJournal.priceChanged(t));
+
+        fireUpdated(index, index);
+    }
+
+    /**
+     * Announces the change of all running tasks. Each running task is
+     * announced separately; the listeners are expected to coalesce
+     * the changes (as the table model does). It is called by the ticker.
+     */
+    private void tick() {
+        long t0 = System.nanoTime();
+        Iterator<Task> it = ticker.getRunningTasks().iterator();
+        while (it.hasNext()) {
+            int row = rows.get(it.next().getId());
+            if (row >= 0)
+                fireUpdated(row, row);
+        }
+        metrics.getTickLatency().recordSince(t0);
+    }
+
+    /**
+     * Writes the metrics report. It is called on the persistence thread.
+     */
+    private void writeMetrics() {
+        try {
+            metrics.writeReport(getMetricsPath(dir));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Records the current consumption of all running tasks to the journal
+     * and forces it to the disk. If the journal has grown too large (or it
+     * cannot be used) the full data are saved instead.
+     */
+    public void checkpoint() {
+        if (!persister.isJournalOpen()) {
+            save();
+            return;
+        }
+
+        checkpointTime = System.nanoTime();
+        Iterator<Task> it = ticker.getRunningTasks().iterator();
+        while (it.hasNext()) {
+            persister.record(TaskJournal.consumptionChanged(it.next()));
+        }
+        persister.sync();
+
+        if (persister.getJournalSize() > COMPACT_SIZE)
+            save();
+    }
+
+    /**
+     * Waits until all pending data are written.
+     */
+    void flush() {
+        persister.flush();
+    }
+
+    /**
+     * Loads the data from the file. If there is no data file yet but
+     * the legacy XML file exists its content is imported.
+     *
+     * When the data are reloaded (because changes of another instance
+     * have been missed) the running tasks keep running: their intervals
+     * so far are written to the session log, and the time tracked since
+     * the last checkpoint (which the reloaded data do not contain) is
+     * added to the reloaded tasks before they are started again.
+     * The pending journal records are written before, so the reloaded
+     * data contain the last checkpoint.
+     */
+    public void load() {
+        long t0 = System.nanoTime();
+        Task[] running = ticker.getRunningTasks().toArray(new Task[0]);
+        if (running.length > 0)
+            persister.flush();
+
+        int[] runningIds = new int[running.length];
+        long[] elapsed = new long[running.length];
+        for (int i=0; i<running.length; i++) {
+            Task t = running[i];
+            long since = t.getStartTime();
+            if (checkpointTime - since > 0)
+                since = checkpointTime;
+            runningIds[i] = t.getId();
+            elapsed[i] = (t0 - since) / 1000000L;
+            logInterval(t.getId(), t.getRunningSince());
+            t.stop();
+        }
+        tasks.reset(null);
+        rows.clear();
+        totals.clear();
+        settings = new Properties();
+
+        ArrayList<String> errors = new ArrayList<String>();
+        loadFailed = false;
+        boolean imported = false;
+        int cnt = 0;
+
+        // no other instance may save the data meanwhile
+        File legacy = getLegacyPath(dir);
+        boolean locked = false;
+        try {
+            persister.lock();
+            locked = true;
+        } catch (IOException e) {
+            // the data are read anyway, but nothing is written
+            loadFailed = true;
+            errors.add("Cannot lock data files (" + e.getLocalizedMessage() + "), changes are not saved.");
+        }
+        try {
+            if (persister.exists()) {
+                try {
+                    TaskSnapshot s = persister.load();
+                    settings = s.getSettings();
+                    tasks.reset(s);
+                } catch (TaskSnapshot.BadFormatException e) {
+                    errors.add("Cannot load data from file (" + e.getLocalizedMessage() + ").");
+                } catch (IOException e) {
+                    // the data file may be good; it must not be overwritten
+                    loadFailed = true;
+                    errors.add("Cannot load data from file (" + e.getLocalizedMessage() + "), changes are kept in the journal only.");
+                }
+            }
+            else if (legacy.exists()) {
+                importLegacyFile(legacy, errors);
+                imported = true;
+            }
+
+            try {
+                cnt = persister.replay(tasks);
+            } catch (IOException e) {
+                errors.add("Cannot load data from journal (" + e.getLocalizedMessage() + ").");
+            }
+        } finally {
+            if (locked)
+                persister.unlock();
+        }
+
+        for (int i=0; i<errors.size(); i++) {
+            fireError(errors.get(i));
+        }
+
+        for (int i=0; i<tasks.size(); i++) {
+            totals.add(tasks.getConsumption(i), tasks.getPrice(i));
+        }
+        reindex(0);
+
+        for (int i=0; i<runningIds.length; i++) {
+            int row = rows.get(runningIds[i]);
+            if (row < 0)
+                continue;
+
+            Task t = tasks.get(row);
+            totals.remove(t);
+            t.setConsumption(t.getConsumption() + elapsed[i]);
+            t.start();
+            totals.add(t);
+            persister.record(TaskJournal.taskStarted(t));
+        }
+
+        fireReloaded();
+        metrics.getLoadLatency().recordSince(t0);
+
+        // save the imported data and make the journal start empty
+        if (!readOnly && (imported || cnt > 0 || getJournalPath(dir).length() > 0))
+            save();
+    }
+
+    /**
+     * Imports the data from the legacy XML file. Malformed entries are
+     * skipped and reported by a single error message.
+     * @param file legacy data file
+     * @param errors list where error messages are added to
+     */
+    private void importLegacyFile(File file, List<String> errors) {
+        LegacyImporter li = new LegacyImporter(file);
+        try {
+            li.load(tasks);
+            settings.putAll(li.getSettings());
+        } catch (IOException e) {
+            errors.add("Cannot load data from file (" + e.getLocalizedMessage() + ").");
+        }
+
+        if (li.getErrorCount() > 0)
+            errors.add(li.getErrorSummary());
+    }
+
+    /**
+     * Merges the changes made by other instances sharing the data
+     * directory. The changes are announced like local ones, but they
+     * are not recorded again.
+     * @param records encoded journal records
+     */
+    private void mergeRecords(byte[] records) {
+        TaskJournal.read(records, new TaskJournal.Receiver() {
+            public void taskAdded(int id, String name, long consumption, double price) {
+                if (rows.get(id) >= 0)
+                    return;
+
+                Task t = new Task(id, name, consumption, price);
+                int row = tasks.add(t);
+                totals.add(t);
+                reindex(row);
+                fireInserted(row, row);
+            }
+            public void taskRemoved(int id) {
+                int row = rows.get(id);
+                if (row < 0)
+                    return;
+
+                Task t = tasks.get(row);
+                stopTask(t);
+                totals.remove(t);
+                rows.remove(id);
+                tasks.remove(row);
+                reindex(row);
+                fireRemoved(row, row);
+            }
+            public void consumptionChanged(int id, long consumption) {
+                int row = rows.get(id);
+                if (row < 0)
+                    return;
+
+                Task t = tasks.get(row);
+                totals.remove(t);
+                t.setConsumption(consumption);
+                totals.add(t);
+                fireUpdated(row, row);
+            }
+            public void nameChanged(int id, String name) {
+                int row = rows.get(id);
+                if (row >= 0) {
+                    tasks.setName(row, name);
+                    fireRenamed(row);
+                    fireUpdated(row, row);
+                }
+            }
+            public void priceChanged(int id, double price) {
+                int row = rows.get(id);
+                if (row < 0)
+                    return;
+
+                Task t = tasks.get(row);
+                totals.remove(t);
+                t.setPrice(price);
+                totals.add(t);
+                fireUpdated(row, row);
+            }
+        });
+    }
+
+    /**
+     * Saves the data and the header shown at the next startup (see
+     * {@link TaskHeader}). Only the data snapshot is taken by the caller;
+     * the files are written on the background thread. A read-only engine
+     * saves nothing, nor does an engine which could not read the data file
+     * (so the file is not replaced by incomplete data).
+     */
+    public void save() {
+        if (readOnly || loadFailed)
+            return;
+
+        checkpointTime = System.nanoTime();
+        persister.save(new TaskSnapshot(settings, tasks));
+
+        final TaskHeader h = new TaskHeader(settings, tasks, totals);
+        persister.execute(new Runnable() {
+            public void run() {
+                try {
+                    lock.lock();
+                    try {
+                        h.save(getHeaderPath(dir));
+                    } finally {
+                        lock.unlock();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Updates the row index for all tasks starting with the given one.
+     * @param start index of the first task to update
+     */
+    private void reindex(int start) {
+        for (int i=start; i<tasks.size(); i++) {
+            rows.put(tasks.getId(i), i);
+        }
+    }
+
+    private void fireReloaded() {
+        metrics.setTaskCount(tasks.size(), ticker.getRunningCount());
+        for (int i=0; i<listeners.size(); i++) {
+            listeners.get(i).tasksReloaded();
+        }
+    }
+
+    private void fireInserted(int start, int end) {
+        metrics.setTaskCount(tasks.size(), ticker.getRunningCount());
+        for (int i=0; i<listeners.size(); i++) {
+            listeners.get(i).tasksInserted(start, end);
+        }
+    }
+
+    private void fireRemoved(int start, int end) {
+        metrics.setTaskCount(tasks.size(), ticker.getRunningCount());
+        for (int i=0; i<listeners.size(); i++) {
+            listeners.get(i).tasksRemoved(start, end);
+        }
+    }
+
+    private void fireUpdated(int start, int end) {
+        metrics.setTaskCount(tasks.size(), ticker.getRunningCount());
+        for (int i=0; i<listeners.size(); i++) {
+            listeners.get(i).tasksUpdated(start, end);
+        }
+    }
+
+    private void fireRenamed(int index) {
+        for (int i=0; i<listeners.size(); i++) {
+            listeners.get(i).taskRenamed(index);
+        }
+    }
+
+    private void fireError(String message) {
+        for (int i=0; i<listeners.size(); i++) {
+            listeners.get(i).errorOccurred(message);
+        }
+    }
+
+}
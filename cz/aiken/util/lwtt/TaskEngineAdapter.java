@@ -0,0 +1,77 @@
+/*
+ * TaskEngineAdapter.java - empty implementation of engine listener
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+/**
+ * This class provides empty implementations of all engine listener
+ * methods. Subclasses override only the methods they are interested in.
+ * @author luk
+ */
+public class TaskEngineAdapter implements TaskEngineListener {
+
+    /**
+     * Does nothing.
+     */
+    public void tasksReloaded() {
+    }
+
+    /**
+     * Does nothing.
+     * @param start index of the first inserted task
+     * @param end index of the last inserted task (including)
+     */
+    public void tasksInserted(int start, int end) {
+    }
+
+    /**
+     * Does nothing.
+     * @param start former index of the first removed task
+     * @param end former index of the last removed task (including)
+     */
+    public void tasksRemoved(int start, int end) {
+    }
+
+    /**
+     * Does nothing.
+     * @param start index of the first changed task
+     * @param end index of the last changed task (including)
+     */
+    public void tasksUpdated(int start, int end) {
+    }
+
+    /**
+     * Does nothing.
+     * @param index index of the renamed task
+     */
+    public void taskRenamed(int index) {
+    }
+
+    /**
+     * Does nothing.
+     * @param message error message
+     */
+    public void errorOccurred(String message) {
+    }
+
+}
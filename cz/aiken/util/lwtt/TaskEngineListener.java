@@ -0,0 +1,75 @@
+/*
+ * TaskEngineListener.java - listener of tracking engine changes
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+/**
+ * This interface is implemented by classes which want to be notified
+ * about changes of the tracking engine. All methods are called on
+ * the engine's event thread. Indices are positions in the engine's task
+ * list.
+ * @author luk
+ */
+public interface TaskEngineListener {
+
+    /**
+     * Called when the whole task list has been replaced (e.g. loaded).
+     */
+    public void tasksReloaded();
+
+    /**
+     * Called after tasks have been inserted.
+     * @param start index of the first inserted task
+     * @param end index of the last inserted task (including)
+     */
+    public void tasksInserted(int start, int end);
+
+    /**
+     * Called after tasks have been removed. If several tasks have been
+     * removed at once the tasks between them need not have been removed.
+     * @param start former index of the first removed task
+     * @param end former index of the last removed task (including)
+     */
+    public void tasksRemoved(int start, int end);
+
+    /**
+     * Called after tasks have changed (state, consumption, name or price).
+     * @param start index of the first changed task
+     * @param end index of the last changed task (including)
+     */
+    public void tasksUpdated(int start, int end);
+
+    /**
+     * Called after a task has been renamed, before the change is passed
+     * to {@link #tasksUpdated(int, int)}.
+     * @param index index of the renamed task
+     */
+    public void taskRenamed(int index);
+
+    /**
+     * Called when an error occurs which the user should be told about.
+     * @param message error message
+     */
+    public void errorOccurred(String message);
+
+}
@@ -0,0 +1,578 @@
+/*
+ * TaskExporter.java - streaming export of tasks and summaries
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class exports the tasks or their summaries in the CSV or JSON
+ * format. The output is streamed: the tasks are read from the engine
+ * in blocks (which may be done by any thread), the blocks are formatted
+ * in parallel and written in order, and only a few blocks are held
+ * in memory at a time. Summaries (grouped by price rate or name prefix)
+ * are computed by fork-join tasks over the task set.
+ *
+ * The reports are:
+ * <UL>
+ * <LI><CODE>tasks</CODE> - all tasks ordered by identifiers (and
+ * the totals in JSON)</LI>
+ * <LI><CODE>totals</CODE> - totals over all tasks</LI>
+ * <LI><CODE>rates</CODE> - summaries of the tasks with the same price
+ * rate</LI>
+ * <LI><CODE>prefixes</CODE> - summaries of the tasks with the same name
+ * prefix (the part before the separator; the whole name if there is
+ * no separator)</LI>
+ * </UL>
+ *
+ * Times are written in milliseconds. The tasks should not be changed
+ * during the export; a changed task may be missed or written twice.
+ * @author luk
+ */
+public class TaskExporter {
+
+    /**
+     * format: comma-separated values
+     */
+    public static final int CSV = 0;
+
+    /**
+     * format: JSON
+     */
+    public static final int JSON = 1;
+
+    /**
+     * report: all tasks
+     */
+    public static final int TASKS = 0;
+
+    /**
+     * report: totals
+     */
+    public static final int TOTALS = 1;
+
+    /**
+     * report: summaries by price rate
+     */
+    public static final int RATES = 2;
+
+    /**
+     * report: summaries by name prefix
+     */
+    public static final int PREFIXES = 3;
+
+    /**
+     * number of tasks formatted as one block
+     */
+    public static final int BLOCK = 4096;
+
+    /**
+     * number of tasks summarized by one fork-join task
+     */
+    public static final int THRESHOLD = 16384;
+
+    private static final int CHUNK = 256;
+
+    private static final String[] FORMATS = { "csv", "json" };
+    private static final String[] REPORTS = { "tasks", "totals", "rates", "prefixes" };
+
+    private int format = CSV;
+    private int report = TASKS;
+    private String separator = ":";
+    private File output = null;
+
+    /**
+     * This class represents the summary of a group of tasks.
+     */
+    public static class Group {
+        private int count = 0;
+        private int running = 0;
+        private long consumption = 0L;
+        private double totalPrice = 0;
+
+        private void add(TaskRecord r) {
+            count++;
+            if (r.isRunning())
+                running++;
+            consumption += r.getConsumption();
+            totalPrice += r.getTotalPrice();
+        }
+
+        private void add(Group g) {
+            count += g.count;
+            running += g.running;
+            consumption += g.consumption;
+            totalPrice += g.totalPrice;
+        }
+
+        /**
+         * Returns the number of tasks.
+         * @return task count
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the number of running tasks.
+         * @return running task count
+         */
+        public int getRunningCount() {
+            return running;
+        }
+
+        /**
+         * Returns the total time consumption.
+         * @return total consumption [ms]
+         */
+        public long getConsumption() {
+            return consumption;
+        }
+
+        /**
+         * Returns the total price.
+         * @return total price [currency unit]
+         */
+        public double getTotalPrice() {
+            return totalPrice;
+        }
+    }
+
+    /**
+     * Function assigning tasks to groups.
+     */
+    private static abstract class Grouping<K> {
+        abstract K getKey(TaskRecord r);
+    }
+
+    /**
+     * Fork-join task summarizing a range of tasks.
+     */
+    private static class Summarizer<K> extends RecursiveTask<HashMap<K, Group>> {
+        private static final long serialVersionUID = 1L;
+
+        private TaskEngine engine = null;
+        private Grouping<K> grouping = null;
+        private int start = 0;
+        private int end = 0;
+
+        private Summarizer(TaskEngine engine, Grouping<K> grouping, int start, int end) {
+            this.engine = engine;
+            this.grouping = grouping;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected HashMap<K, Group> compute() {
+            if (end - start > THRESHOLD) {
+                int mid = (start + end) >>> 1;
+                Summarizer<K> left = new Summarizer<K>(engine, grouping, start, mid);
+                left.fork();
+                HashMap<K, Group> res = new Summarizer<K>(engine, grouping, mid, end).compute();
+                merge(res, left.join());
+                return res;
+            }
+
+            HashMap<K, Group> res = new HashMap<K, Group>();
+            TaskRecord[] recs = newRecords(CHUNK);
+            int pos = start;
+            while (pos < end) {
+                int cnt = Math.min(engine.readTasks(pos, recs), end - pos);
+                if (cnt <= 0)
+                    break;
+
+                for (int i=0; i<cnt; i++) {
+                    K key = grouping.getKey(recs[i]);
+                    Group g = res.get(key);
+                    if (g == null) {
+                        g = new Group();
+                        res.put(key, g);
+                    }
+                    g.add(recs[i]);
+                }
+                pos += cnt;
+            }
+            return res;
+        }
+
+        private static <K> void merge(HashMap<K, Group> dst, HashMap<K, Group> src) {
+            Iterator<Map.Entry<K, Group>> it = src.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<K, Group> e = it.next();
+                Group g = dst.get(e.getKey());
+                if (g == null)
+                    dst.put(e.getKey(), e.getValue());
+                else
+                    g.add(e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Creates an exporter of the tasks in the CSV format.
+     */
+    public TaskExporter() {
+    }
+
+    /**
+     * Parses the export options from the command line arguments
+     * (following the <CODE>export</CODE> command).
+     * @param args arguments
+     * @return exporter
+     * @throws IllegalArgumentException if the arguments are invalid
+     */
+    public static TaskExporter parse(String[] args) {
+        TaskExporter exp = new TaskExporter();
+        for (int i=1; i<args.length; i++) {
+            if (i + 1 == args.length)
+                throw new IllegalArgumentException("missing value of " + args[i]);
+
+            String value = args[++i];
+            if (args[i - 1].equals("-f"))
+                exp.setFormat(find(FORMATS, value, "format"));
+            else if (args[i - 1].equals("-r"))
+                exp.setReport(find(REPORTS, value, "report"));
+            else if (args[i - 1].equals("-s"))
+                exp.setSeparator(value);
+            else if (args[i - 1].equals("-o"))
+                exp.setOutput(new File(value));
+            else
+                throw new IllegalArgumentException("unknown option: " + args[i - 1]);
+        }
+        return exp;
+    }
+
+    private static int find(String[] names, String name, String what) {
+        for (int i=0; i<names.length; i++) {
+            if (names[i].equals(name))
+                return i;
+        }
+        throw new IllegalArgumentException("unknown " + what + ": " + name);
+    }
+
+    /**
+     * Sets the output format.
+     * @param format {@link #CSV} or {@link #JSON}
+     */
+    public void setFormat(int format) {
+        this.format = format;
+    }
+
+    /**
+     * Sets the report.
+     * @param report {@link #TASKS}, {@link #TOTALS}, {@link #RATES}
+     * or {@link #PREFIXES}
+     */
+    public void setReport(int report) {
+        this.report = report;
+    }
+
+    /**
+     * Sets the separator of name prefixes.
+     * @param separator separator
+     */
+    public void setSeparator(String separator) {
+        this.separator = separator;
+    }
+
+    /**
+     * Sets the output file.
+     * @param output output file; <CODE>null</CODE> for the standard output
+     */
+    public void setOutput(File output) {
+        this.output = output;
+    }
+
+    /**
+     * Writes the report to the output file (or the standard output).
+     * @param engine tracking engine
+     * @throws IOException if the report cannot be written
+     */
+    public void export(TaskEngine engine) throws IOException {
+        if (output == null) {
+            Writer w = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), 65536);
+            export(engine, w);
+            w.flush();
+            return;
+        }
+
+        FileChannel ch = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        Writer w = new BufferedWriter(Channels.newWriter(ch, "UTF-8"), 65536);
+        try {
+            export(engine, w);
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Writes the report. The engine is only read, so this method may be
+     * called by any thread.
+     * @param engine tracking engine
+     * @param w writer
+     * @throws IOException if the report cannot be written
+     */
+    public void export(TaskEngine engine, Writer w) throws IOException {
+        switch (report) {
+            case TASKS:
+                writeTasks(engine, w);
+                break;
+            case TOTALS:
+                writeTotals(engine.getTotals(), w);
+                break;
+            case RATES:
+                writeGroups(summarizeRates(engine), w);
+                break;
+            case PREFIXES:
+                writeGroups(summarizePrefixes(engine, separator), w);
+                break;
+        }
+    }
+
+    /**
+     * Summarizes the tasks by their price rates.
+     * @param engine tracking engine
+     * @return summaries ordered by the rates
+     */
+    public static SortedMap<Double, Group> summarizeRates(TaskEngine engine) {
+        return summarize(engine, new Grouping<Double>() {
+            Double getKey(TaskRecord r) {
+                return Double.valueOf(r.getPrice());
+            }
+        });
+    }
+
+    /**
+     * Summarizes the tasks by the prefixes of their names.
+     * @param engine tracking engine
+     * @param separator prefix separator
+     * @return summaries ordered by the prefixes
+     */
+    public static SortedMap<String, Group> summarizePrefixes(TaskEngine engine, final String separator) {
+        return summarize(engine, new Grouping<String>() {
+            String getKey(TaskRecord r) {
+                String name = r.getName();
+                int pos = name.indexOf(separator);
+                return (pos < 0 ? name : name.substring(0, pos)).trim();
+            }
+        });
+    }
+
+    private static <K> SortedMap<K, Group> summarize(TaskEngine engine, Grouping<K> grouping) {
+        Summarizer<K> s = new Summarizer<K>(engine, grouping, 0, engine.getTotals().getTaskCount());
+        return new TreeMap<K, Group>(ForkJoinPool.commonPool().invoke(s));
+    }
+
+    /**
+     * Writes all tasks. Blocks of tasks are formatted in parallel; the
+     * number of blocks in progress is limited, so memory use does not
+     * depend on the number of tasks.
+     */
+    private void writeTasks(final TaskEngine engine, Writer w) throws IOException {
+        if (format == CSV)
+            w.write("id,name,consumption,price,totalPrice,running\n");
+        else
+            w.write("{\"tasks\":[");
+
+        int count = engine.getTotals().getTaskCount();
+        int window = 2 * ForkJoinPool.commonPool().getParallelism();
+        ArrayDeque<Future<String>> blocks = new ArrayDeque<Future<String>>();
+        int next = 0;
+        boolean empty = true;
+        while (next < count || !blocks.isEmpty()) {
+            while (next < count && blocks.size() < window) {
+                final int start = next;
+                blocks.add(ForkJoinPool.commonPool().submit(new Callable<String>() {
+                    public String call() {
+                        return formatBlock(engine, start);
+                    }
+                }));
+                next += BLOCK;
+            }
+
+            String s = get(blocks.poll());
+            if (s.length() == 0)
+                continue;
+            if (format == JSON && !empty)
+                w.write(',');
+            w.write(s);
+            empty = false;
+        }
+
+        if (format == JSON) {
+            StringBuilder sb = new StringBuilder("],\"totals\":");
+            TaskJson.appendTotals(sb, engine.getTotals());
+            sb.append("}\n");
+            w.write(sb.toString());
+        }
+    }
+
+    /**
+     * Formats one block of tasks.
+     * @param engine tracking engine
+     * @param start index of the first task
+     * @return formatted tasks
+     */
+    private String formatBlock(TaskEngine engine, int start) {
+        TaskRecord[] recs = newRecords(CHUNK);
+        StringBuilder sb = new StringBuilder(BLOCK * 64);
+        int pos = start;
+        int end = start + BLOCK;
+        while (pos < end) {
+            int cnt = Math.min(engine.readTasks(pos, recs), end - pos);
+            if (cnt <= 0)
+                break;
+
+            for (int i=0; i<cnt; i++) {
+                TaskRecord r = recs[i];
+                if (format == CSV) {
+                    sb.append(r.getId()).append(',');
+                    appendCsv(sb, r.getName());
+                    sb.append(',').append(r.getConsumption());
+                    sb.append(',').append(r.getPrice());
+                    sb.append(',').append(r.getTotalPrice());
+                    sb.append(',').append(r.isRunning()).append('\n');
+                }
+                else {
+                    if (pos + i > start)
+                        sb.append(',');
+                    TaskJson.appendTask(sb, r);
+                }
+            }
+            pos += cnt;
+        }
+        return sb.toString();
+    }
+
+    private void writeTotals(TaskTotals tt, Writer w) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        if (format == CSV) {
+            sb.append("count,running,consumption,totalPrice\n");
+            sb.append(tt.getTaskCount()).append(',');
+            sb.append(tt.getRunningCount()).append(',');
+            sb.append(tt.getConsumption()).append(',');
+            sb.append(tt.getTotalPrice()).append('\n');
+        }
+        else {
+            TaskJson.appendTotals(sb, tt);
+            sb.append('\n');
+        }
+        w.write(sb.toString());
+    }
+
+    private void writeGroups(SortedMap<?, Group> groups, Writer w) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(format == CSV ? "group,count,running,consumption,totalPrice\n" : "{\"groups\":[");
+
+        Iterator<? extends Map.Entry<?, Group>> it = groups.entrySet().iterator();
+        boolean first = true;
+        while (it.hasNext()) {
+            Map.Entry<?, Group> e = it.next();
+            Group g = e.getValue();
+            if (format == CSV) {
+                appendCsv(sb, e.getKey().toString());
+                sb.append(',').append(g.count);
+                sb.append(',').append(g.running);
+                sb.append(',').append(g.consumption);
+                sb.append(',').append(g.totalPrice).append('\n');
+            }
+            else {
+                if (!first)
+                    sb.append(',');
+                sb.append("{\"group\":");
+                if (e.getKey() instanceof String)
+                    TaskJson.appendString(sb, (String) e.getKey());
+                else
+                    TaskJson.appendNumber(sb, ((Double) e.getKey()).doubleValue());
+                sb.append(",\"count\":").append(g.count);
+                sb.append(",\"running\":").append(g.running);
+                sb.append(",\"consumption\":").append(g.consumption);
+                sb.append(",\"totalPrice\":");
+                TaskJson.appendNumber(sb, g.totalPrice);
+                sb.append('}');
+            }
+            first = false;
+
+            if (sb.length() > 65536) {
+                w.write(sb.toString());
+                sb.setLength(0);
+            }
+        }
+
+        if (format == JSON)
+            sb.append("]}\n");
+        w.write(sb.toString());
+    }
+
+    /**
+     * Appends a CSV field. It is quoted if it contains a comma, a quote
+     * or a line break.
+     * @param sb target buffer
+     * @param s field value
+     */
+    private static void appendCsv(StringBuilder sb, String s) {
+        boolean quote = false;
+        for (int i=0; i<s.length() && !quote; i++) {
+            char c = s.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            sb.append(s);
+            return;
+        }
+
+        sb.append('"');
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"')
+                sb.append('"');
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private static TaskRecord[] newRecords(int cnt) {
+        TaskRecord[] recs = new TaskRecord[cnt];
+        for (int i=0; i<cnt; i++) {
+            recs[i] = new TaskRecord();
+        }
+        return recs;
+    }
+
+    private static String get(Future<String> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot format tasks (" + e.getCause() + ").");
+        }
+    }
+
+}
@@ -44,6 +44,13 @@ public class TaskFrame extends JFrame implements ListSelectionListener {
      */
     public static final int CONS_COL_WIDTH = 180;
     
+    /**
+     * Delay (in milliseconds) of the footer update after a table change
+     */
+    public static final int TOTALS_DELAY = 1000;
+    
+    private javax.swing.Timer totalsTimer = null;
+    
     /**
      * Creates new form TaskFrame
      */
@@ -54,7 +61,40 @@ public class TaskFrame extends JFrame implements ListSelectionListener {
         tc.setMaxWidth(CONS_COL_WIDTH);
         tc.setPreferredWidth(CONS_COL_WIDTH);
         jTable1.getSelectionModel().addListSelectionListener(this);
+        jTable1.getTableHeader().addMouseListener(new java.awt.event.MouseAdapter() {
+            @Override
+            public void mouseClicked(java.awt.event.MouseEvent e) {
+                int col = jTable1.convertColumnIndexToModel(jTable1.columnAtPoint(e.getPoint()));
+                if (col >= 0)
+                    sortPressed(col);
+            }
+        });
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                model.setFilter(filterField.getText());
+            }
+            public void removeUpdate(DocumentEvent e) {
+                model.setFilter(filterField.getText());
+            }
+            public void changedUpdate(DocumentEvent e) {
+                model.setFilter(filterField.getText());
+            }
+        });
+        totalsTimer = new javax.swing.Timer(TOTALS_DELAY, new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent e) {
+                updateTotals();
+            }
+        });
+        totalsTimer.setRepeats(false);
+        model.addTableModelListener(new TableModelListener() {
+            public void tableChanged(TableModelEvent e) {
+                if (!totalsTimer.isRunning())
+                    totalsTimer.start();
+            }
+        });
+        ToolTipManager.sharedInstance().registerComponent(totalLabel);
         updateButtons();
+        updateTotals();
         
         try {
             String xs = startSettings.getProperty("window.location.x");
@@ -90,7 +130,8 @@ public class TaskFrame extends JFrame implements ListSelectionListener {
      * Updates the buttons' state.
      */
     private void updateButtons() {
-        int cnt = jTable1.getSelectedRowCount();
+        addButton.setEnabled(model.isLoaded());
+        int cnt = model.isLoaded() ? jTable1.getSelectedRowCount() : 0;
         if (cnt == 0) {
             startButton.setEnabled(false);
             stopButton.setEnabled(false);
@@ -115,6 +156,110 @@ public class TaskFrame extends JFrame implements ListSelectionListener {
         propsButton.setEnabled(cnt == 1);
     }
     
+    /**
+     * Updates the footer with the totals over all tasks. The totals
+     * are maintained by the engine, so no task is visited here. Until
+     * the data are loaded the cached totals are shown. Table changes
+     * are coalesced by the timer, so the footer is updated at most
+     * once per tick; the tooltip is built when it is shown.
+     */
+    private void updateTotals() {
+        String text = null;
+        TaskHeader h = model.getHeader();
+        if (h != null) {
+            text = "Total: " + Task.formatConsumption(h.getConsumption())
+                    + ", " + Task.formatPrice(h.getTotalPrice());
+        }
+        else {
+            TaskTotals tt = model.getEngine().getTotals();
+            text = "Total: " + Task.formatConsumption(tt.getConsumption())
+                    + ", " + Task.formatPrice(tt.getTotalPrice());
+        }
+        
+        if (!text.equals(totalLabel.getText()))
+            totalLabel.setText(text);
+    }
+    
+    /**
+     * Creates the footer tooltip with the totals for each price rate.
+     * @return tooltip text, or <CODE>null</CODE> if there are less
+     * than two price rates or the data have not been loaded yet
+     */
+    private String createTotalsTip() {
+        if (model.getHeader() != null)
+            return null;
+        
+        TaskTotals tt = model.getEngine().getTotals();
+        double[] rates = tt.getPriceRates();
+        if (rates.length < 2)
+            return null;
+
+        StringBuilder sb = new StringBuilder("<html>");
+        for (int i=0; i<rates.length; i++) {
+            if (i > 0)
+                sb.append("<br>");
+            sb.append(Task.formatPrice(rates[i]));
+            sb.append(" per hour: ");
+            sb.append(Task.formatConsumption(tt.getConsumption(rates[i])));
+            sb.append(", ");
+            sb.append(Task.formatPrice(tt.getTotalPrice(rates[i])));
+        }
+        sb.append("</html>");
+        return sb.toString();
+    }
+    
+    /**
+     * Footer label which creates its tooltip on demand.
+     */
+    private class TotalsLabel extends JLabel {
+        @Override
+        public String getToolTipText(java.awt.event.MouseEvent e) {
+            return createTotalsTip();
+        }
+    }
+    
+    /**
+     * Updates the buttons and the totals after the data have been loaded.
+     */
+    public void loadFinished() {
+        updateButtons();
+        updateTotals();
+    }
+
+    /**
+     * Returns the tracking engine.
+     * @return tracking engine
+     */
+    public TaskEngine getEngine() {
+        return model.getEngine();
+    }
+
+    /**
+     * Changes the sort order after a column header has been clicked.
+     * Repeated clicks switch between ascending order, descending order
+     * and the creation order.
+     * @param col model column index
+     */
+    private void sortPressed(int col) {
+        if (col != model.getSortColumn())
+            model.setSort(col, false);
+        else if (!model.isDescending())
+            model.setSort(col, true);
+        else
+            model.setSort(TaskView.BY_ID, false);
+        
+        TableColumnModel cm = jTable1.getColumnModel();
+        for (int i=0; i<cm.getColumnCount(); i++) {
+            TableColumn tc = cm.getColumn(i);
+            int mc = tc.getModelIndex();
+            String name = model.getColumnName(mc);
+            if (mc == model.getSortColumn())
+                name += model.isDescending() ? " \u25BC" : " \u25B2";
+            tc.setHeaderValue(name);
+        }
+        jTable1.getTableHeader().repaint();
+    }
+    
     /**
      * Updates the buttons according the current selection.
      * @param e list selection event
@@ -139,8 +284,10 @@ public class TaskFrame extends JFrame implements ListSelectionListener {
         removeButton = new javax.swing.JButton();
         resetButton = new javax.swing.JButton();
         propsButton = new javax.swing.JButton();
+        filterField = new javax.swing.JTextField();
         jScrollPane1 = new javax.swing.JScrollPane();
         jTable1 = new javax.swing.JTable();
+        totalLabel = new TotalsLabel();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setTitle("LWTT");
@@ -197,6 +344,8 @@ public class TaskFrame extends JFrame implements ListSelectionListener {
             }
         });
 
+        filterField.setToolTipText("Show only tasks whose names contain this text");
+
         org.jdesktop.layout.GroupLayout jPanel1Layout = new org.jdesktop.layout.GroupLayout(jPanel1);
         jPanel1.setLayout(jPanel1Layout);
         jPanel1Layout.setHorizontalGroup(
@@ -213,7 +362,9 @@ public class TaskFrame extends JFrame implements ListSelectionListener {
                 .add(resetButton)
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                 .add(propsButton)
-                .addContainerGap(152, Short.MAX_VALUE))
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.UNRELATED)
+                .add(filterField, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 131, Short.MAX_VALUE)
+                .addContainerGap())
         );
         jPanel1Layout.setVerticalGroup(
             jPanel1Layout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
@@ -223,6 +374,7 @@ public class TaskFrame extends JFrame implements ListSelectionListener {
             .add(removeButton, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 25, Short.MAX_VALUE)
             .add(resetButton, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 25, Short.MAX_VALUE)
             .add(propsButton)
+            .add(filterField, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
         );
 
         jSplitPane1.setTopComponent(jPanel1);
@@ -261,15 +413,22 @@ public class TaskFrame extends JFrame implements ListSelectionListener {
 
         jSplitPane1.setRightComponent(jScrollPane1);
 
+        totalLabel.setHorizontalAlignment(javax.swing.SwingConstants.RIGHT);
+        totalLabel.setText(" ");
+
         org.jdesktop.layout.GroupLayout layout = new org.jdesktop.layout.GroupLayout(getContentPane());
         getContentPane().setLayout(layout);
         layout.setHorizontalGroup(
             layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
             .add(org.jdesktop.layout.GroupLayout.TRAILING, jSplitPane1, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 572, Short.MAX_VALUE)
+            .add(totalLabel, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 572, Short.MAX_VALUE)
         );
         layout.setVerticalGroup(
             layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
-            .add(jSplitPane1, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 441, Short.MAX_VALUE)
+            .add(layout.createSequentialGroup()
+                .add(jSplitPane1, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 420, Short.MAX_VALUE)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(totalLabel))
         );
 
         pack();
@@ -284,7 +443,7 @@ public class TaskFrame extends JFrame implements ListSelectionListener {
 
     private void windowClosing(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_windowClosing
         model.stopAllTasks();
-        model.saveToFile();
+        model.close();
     }//GEN-LAST:event_windowClosing
 
     private void removePressed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_removePressed
@@ -296,6 +455,7 @@ public class TaskFrame extends JFrame implements ListSelectionListener {
     }//GEN-LAST:event_removePressed
 
     private void addPressed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_addPressed
+        filterField.setText("");
         model.addNewTask();
     }//GEN-LAST:event_addPressed
 
@@ -326,14 +486,14 @@ private void propsPressed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_pro
         d.setPrice(t.getPrice());
         d.setVisible(true);
         if (d.getReturnStatus() == TaskPropertiesDialog.RET_OK) {
-            t.setPrice(d.getPrice());
-            model.fireTableCellUpdated(start, 2);
+            model.setPrice(start, d.getPrice());
         }
     }
 }//GEN-LAST:event_propsPressed
           
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JButton addButton;
+    private javax.swing.JTextField filterField;
     private javax.swing.JPanel jPanel1;
     private javax.swing.JScrollPane jScrollPane1;
     private javax.swing.JSplitPane jSplitPane1;
@@ -343,6 +503,7 @@ private void propsPressed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_pro
     private javax.swing.JButton resetButton;
     private javax.swing.JButton startButton;
     private javax.swing.JButton stopButton;
+    private javax.swing.JLabel totalLabel;
     // End of variables declaration//GEN-END:variables
     
 }
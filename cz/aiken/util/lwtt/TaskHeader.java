@@ -0,0 +1,305 @@
+/*
+ * TaskHeader.java - cache of the data shown at startup
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * This class represents a small cache of the data needed to show
+ * the main window at startup: the settings (window geometry), the totals
+ * and the first {@link #ROWS} tasks. It is written whenever the data are
+ * saved, so the window can be shown from it at once while the full data
+ * are loaded in the background. Its size does not depend on the number
+ * of tasks.
+ *
+ * The file has the following format:
+ * <PRE>
+ * header:  magic (int), version (int)
+ * settings: count (int), key and value (string) for each
+ * totals:  task count (int), consumption (long), total price (double)
+ * tasks:   count (int); id (int), name (string), consumption (long),
+ *          price (double) for each
+ * trailer: CRC-32 of all preceding bytes (int)
+ * </PRE>
+ * Strings are stored as their length (int) and their UTF-8 bytes.
+ * @author luk
+ */
+public class TaskHeader {
+
+    /**
+     * file magic number ("LWTH")
+     */
+    public static final int MAGIC = 0x4C575448;
+
+    /**
+     * current file format version
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * number of cached tasks
+     */
+    public static final int ROWS = 50;
+
+    private Properties settings = new Properties();
+    private int taskCount = 0;
+    private long consumption = 0L;
+    private double totalPrice = 0;
+
+    private int count = 0;
+    private int[] ids = null;
+    private String[] names = null;
+    private long[] consumptions = null;
+    private double[] prices = null;
+
+    /**
+     * Creates a header of the given data.
+     *
+     * <I>This constructor may be called only by the engine's event
+     * thread.</I>
+     * @param settings application settings
+     * @param store task store
+     * @param totals totals over all tasks
+     */
+    public TaskHeader(Properties settings, TaskStore store, TaskTotals totals) {
+        this.settings.putAll(settings);
+        taskCount = totals.getTaskCount();
+        consumption = totals.getConsumption();
+        totalPrice = totals.getTotalPrice();
+
+        allocate(Math.min(ROWS, store.size()));
+        for (int i=0; i<count; i++) {
+            ids[i] = store.getId(i);
+            names[i] = store.getName(i);
+            consumptions[i] = store.getConsumption(i);
+            prices[i] = store.getPrice(i);
+        }
+    }
+
+    private TaskHeader() {
+    }
+
+    private void allocate(int cnt) {
+        count = cnt;
+        ids = new int[cnt];
+        names = new String[cnt];
+        consumptions = new long[cnt];
+        prices = new double[cnt];
+    }
+
+    /**
+     * Loads a header from the given file.
+     * @param file header file
+     * @return header
+     * @throws IOException if the file cannot be read, it has a bad format
+     * or it is damaged
+     */
+    public static TaskHeader load(File file) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (data.length < 12)
+            throw new IOException("file too short");
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        in.skipBytes(data.length - 4);
+        if (in.readInt() != (int) crc.getValue())
+            throw new IOException("checksum mismatch");
+
+        in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+        if (in.readInt() != MAGIC)
+            throw new IOException("not a header file");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("unsupported version " + version);
+
+        TaskHeader h = new TaskHeader();
+        int scnt = in.readInt();
+        for (int i=0; i<scnt; i++) {
+            String key = readString(in);
+            h.settings.setProperty(key, readString(in));
+        }
+
+        h.taskCount = in.readInt();
+        h.consumption = in.readLong();
+        h.totalPrice = in.readDouble();
+
+        int cnt = in.readInt();
+        if (cnt < 0 || cnt > ROWS)
+            throw new IOException("bad task count " + cnt);
+        h.allocate(cnt);
+        for (int i=0; i<cnt; i++) {
+            h.ids[i] = in.readInt();
+            h.names[i] = readString(in);
+            h.consumptions[i] = in.readLong();
+            h.prices[i] = in.readDouble();
+        }
+        return h;
+    }
+
+    /**
+     * Saves the header to the given file. The file is written to
+     * the storage device and then it replaces the old one at once,
+     * so it never contains a partially written header.
+     * @param file header file
+     * @throws IOException if the header cannot be written
+     */
+    public void save(File file) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        out.writeInt(settings.size());
+        Iterator<String> it = settings.stringPropertyNames().iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            writeString(out, key);
+            writeString(out, settings.getProperty(key));
+        }
+
+        out.writeInt(taskCount);
+        out.writeLong(consumption);
+        out.writeDouble(totalPrice);
+
+        out.writeInt(count);
+        for (int i=0; i<count; i++) {
+            out.writeInt(ids[i]);
+            writeString(out, names[i]);
+            out.writeLong(consumptions[i]);
+            out.writeDouble(prices[i]);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bos.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            bos.writeTo(fos);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > in.available())
+            throw new IOException("bad string length " + len);
+
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    /**
+     * Returns the settings.
+     * @return settings
+     */
+    public Properties getSettings() {
+        return settings;
+    }
+
+    /**
+     * Returns the number of all tasks.
+     * @return task count
+     */
+    public int getTaskCount() {
+        return taskCount;
+    }
+
+    /**
+     * Returns the total time consumption of all tasks.
+     * @return total consumption [ms]
+     */
+    public long getConsumption() {
+        return consumption;
+    }
+
+    /**
+     * Returns the total price of all tasks.
+     * @return total price [currency unit]
+     */
+    public double getTotalPrice() {
+        return totalPrice;
+    }
+
+    /**
+     * Returns the number of cached tasks.
+     * @return cached task count
+     */
+    public int getRowCount() {
+        return count;
+    }
+
+    /**
+     * Returns the identifier of the given cached task.
+     * @param index task index
+     * @return task identifier
+     */
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * Returns the name of the given cached task.
+     * @param index task index
+     * @return task name
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Returns the time consumption of the given cached task.
+     * @param index task index
+     * @return time consumption [ms]
+     */
+    public long getConsumption(int index) {
+        return consumptions[index];
+    }
+
+    /**
+     * Returns the price per hour of the given cached task.
+     * @param index task index
+     * @return price per hour
+     */
+    public double getPrice(int index) {
+        return prices[index];
+    }
+
+}
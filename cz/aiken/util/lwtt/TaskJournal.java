@@ -0,0 +1,547 @@
+/*
+ * TaskJournal.java - append-only journal of task changes
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+
+/**
+ * This class represents the append-only journal of task changes. Each
+ * change is encoded as a compact binary record which is written at the end
+ * of the journal file, so the cost of recording does not depend on
+ * the number of tasks.
+ * The journal is replayed over the last saved data on load and rotated
+ * whenever the full data are saved (compaction). The rotated records are
+ * kept until the next rotation, so they can be replayed over the previous
+ * data generation if the last saved data are damaged.
+ *
+ * Every record carries absolute values (not deltas), so replaying a record
+ * which is already contained in the saved data is harmless.
+ *
+ * Each record is framed by its length and a CRC-32 checksum:
+ * <PRE>
+ * length (int), type (byte), task identifier (int), values, CRC-32 (int)
+ * </PRE>
+ * The length covers the type, the identifier and the values, and it is
+ * less than 2^24. Reading stops at the first invalid record (e.g. a record
+ * torn by a crash); it is treated as the end of the journal.
+ * @author luk
+ */
+public class TaskJournal {
+
+    /**
+     * record type: task added (name, consumption, price)
+     */
+    public static final byte ADD = 1;
+
+    /**
+     * record type: task removed
+     */
+    public static final byte REMOVE = 2;
+
+    /**
+     * record type: task started (consumption)
+     */
+    public static final byte START = 3;
+
+    /**
+     * record type: task stopped (consumption)
+     */
+    public static final byte STOP = 4;
+
+    /**
+     * record type: task renamed (name)
+     */
+    public static final byte NAME = 5;
+
+    /**
+     * record type: price changed (price)
+     */
+    public static final byte PRICE = 6;
+
+    /**
+     * record type: consumption changed (consumption)
+     */
+    public static final byte CONSUMPTION = 7;
+
+    /**
+     * maximum length of a record (without the length and the checksum)
+     */
+    public static final int MAX_LENGTH = (1 << 24) - 1;
+
+    private File file = null;
+    private FileChannel channel = null;
+
+    /**
+     * Receiver of decoded journal records.
+     */
+    public interface Receiver {
+        /**
+         * Called for a record of a newly added task.
+         * @param id task identifier
+         * @param name task name
+         * @param consumption time consumption [ms]
+         * @param price price per hour
+         */
+        public void taskAdded(int id, String name, long consumption, double price);
+
+        /**
+         * Called for a record of a task removal.
+         * @param id task identifier
+         */
+        public void taskRemoved(int id);
+
+        /**
+         * Called for a record of a task start, stop or consumption change.
+         * @param id task identifier
+         * @param consumption time consumption [ms]
+         */
+        public void consumptionChanged(int id, long consumption);
+
+        /**
+         * Called for a record of a task name change.
+         * @param id task identifier
+         * @param name new task name
+         */
+        public void nameChanged(int id, String name);
+
+        /**
+         * Called for a record of a price change.
+         * @param id task identifier
+         * @param price new price per hour
+         */
+        public void priceChanged(int id, double price);
+    }
+
+    /**
+     * Creates a new journal instance.
+     * @param file journal file
+     */
+    public TaskJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the journal for appending. The file is created if it does
+     * not exist yet.
+     * @throws IOException if the file cannot be opened
+     */
+    public void open() throws IOException {
+        if (channel != null)
+            return;
+
+        channel = new FileOutputStream(file, true).getChannel();
+    }
+
+    /**
+     * Closes the journal.
+     */
+    public void close() {
+        if (channel == null)
+            return;
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+
+    /**
+     * Checks whether the journal is open.
+     * @return <CODE>true</CODE> if open, <CODE>false</CODE> otherwise
+     */
+    public boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * Returns the current journal size.
+     * @return size [bytes]
+     * @throws IOException if the size cannot be determined
+     */
+    public long size() throws IOException {
+        if (channel == null)
+            return file.length();
+
+        return channel.size();
+    }
+
+    /**
+     * Forces all written records to the storage device.
+     * @throws IOException if an I/O error occurs
+     */
+    public void sync() throws IOException {
+        if (channel != null)
+            channel.force(false);
+    }
+
+    /**
+     * Moves all records to the given file (replacing it) and starts
+     * an empty journal. It is called after the full data have been saved.
+     * @param prev file for the records
+     * @throws IOException if an I/O error occurs
+     */
+    public void rotate(File prev) throws IOException {
+        boolean reopen = channel != null;
+        close();
+        if (file.exists())
+            Files.move(file.toPath(), prev.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (reopen)
+            open();
+    }
+
+    /**
+     * Appends an encoded record to the journal.
+     * @param record encoded record
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(byte[] record) throws IOException {
+        if (channel == null)
+            return;
+
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Encodes a record of a newly added task.
+     * @param t task
+     * @return encoded record
+     */
+    public static byte[] taskAdded(Task t) {
+        byte[] name = encodeName(t);
+        ByteBuffer buf = begin(ADD, t.getId(), 4 + name.length + 16);
+        buf.putInt(name.length);
+        buf.put(name);
+        buf.putLong(t.getConsumption());
+        buf.putDouble(t.getPrice());
+        return end(buf);
+    }
+
+    /**
+     * Encodes a record of a task removal.
+     * @param t task
+     * @return encoded record
+     */
+    public static byte[] taskRemoved(Task t) {
+        return end(begin(REMOVE, t.getId(), 0));
+    }
+
+    /**
+     * Encodes a record of a task start.
+     * @param t task
+     * @return encoded record
+     */
+    public static byte[] taskStarted(Task t) {
+        return encodeConsumption(START, t);
+    }
+
+    /**
+     * Encodes a record of a task stop.
+     * @param t task
+     * @return encoded record
+     */
+    public static byte[] taskStopped(Task t) {
+        return encodeConsumption(STOP, t);
+    }
+
+    /**
+     * Encodes a record of the current consumption of a task. It is used
+     * for tasks which have been reset and for periodic checkpoints
+     * of running tasks.
+     * @param t task
+     * @return encoded record
+     */
+    public static byte[] consumptionChanged(Task t) {
+        return encodeConsumption(CONSUMPTION, t);
+    }
+
+    /**
+     * Encodes a record of a task name change.
+     * @param t task
+     * @return encoded record
+     */
+    public static byte[] nameChanged(Task t) {
+        byte[] name = encodeName(t);
+        ByteBuffer buf = begin(NAME, t.getId(), 4 + name.length);
+        buf.putInt(name.length);
+        buf.put(name);
+        return end(buf);
+    }
+
+    /**
+     * Encodes a record of a price change.
+     * @param t task
+     * @return encoded record
+     */
+    public static byte[] priceChanged(Task t) {
+        ByteBuffer buf = begin(PRICE, t.getId(), 8);
+        buf.putDouble(t.getPrice());
+        return end(buf);
+    }
+
+    /**
+     * Reads the records written after the given position.
+     * @param pos journal position [bytes]
+     * @return encoded records (empty if there are none)
+     * @throws IOException if the journal cannot be read
+     */
+    public byte[] readFrom(long pos) throws IOException {
+        if (!file.exists())
+            return new byte[0];
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long len = raf.length() - pos;
+            if (len <= 0)
+                return new byte[0];
+            if (len > Integer.MAX_VALUE)
+                throw new IOException("journal too large");
+
+            byte[] b = new byte[(int) len];
+            raf.seek(pos);
+            raf.readFully(b);
+            return b;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Replays the journal over the given tasks. Tasks are added, removed
+     * and modified according to the records. The replay stops at the first
+     * invalid record (e.g. an incomplete one after a crash); if the journal
+     * is open, it is truncated there, so new records are not written
+     * behind it.
+     * @param tasks task store
+     * @return number of replayed records
+     * @throws IOException if the journal cannot be read
+     */
+    public int replay(final TaskStore tasks) throws IOException {
+        byte[] b = readFrom(0L);
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        int cnt = read(buf, new Receiver() {
+            public void taskAdded(int id, String name, long consumption, double price) {
+                if (tasks.find(id) < 0)
+                    tasks.add(new Task(id, name, consumption, price));
+            }
+            public void taskRemoved(int id) {
+                tasks.removeById(id);
+            }
+            public void consumptionChanged(int id, long consumption) {
+                int row = tasks.find(id);
+                if (row >= 0)
+                    tasks.setConsumption(row, consumption);
+            }
+            public void nameChanged(int id, String name) {
+                int row = tasks.find(id);
+                if (row >= 0)
+                    tasks.setName(row, name);
+            }
+            public void priceChanged(int id, double price) {
+                int row = tasks.find(id);
+                if (row >= 0)
+                    tasks.setPrice(row, price);
+            }
+        });
+
+        if (buf.hasRemaining() && channel != null)
+            channel.truncate(buf.position());
+        return cnt;
+    }
+
+    /**
+     * Decodes the given records and passes them to the receiver.
+     * Decoding stops at the first invalid record.
+     * @param records encoded records
+     * @param r record receiver
+     * @return number of decoded records
+     */
+    public static int read(byte[] records, Receiver r) {
+        return read(ByteBuffer.wrap(records), r);
+    }
+
+    /**
+     * Decodes the records from the given buffer and passes them
+     * to the receiver. Decoding stops at the first invalid record;
+     * the buffer position is left at its start.
+     * @param buf buffer with encoded records
+     * @param r record receiver
+     * @return number of decoded records
+     */
+    private static int read(ByteBuffer buf, Receiver r) {
+        CRC32 crc = new CRC32();
+        int cnt = 0;
+        while (buf.hasRemaining()) {
+            int start = buf.position();
+            boolean valid = false;
+            try {
+                valid = decodeFramed(buf, crc, r);
+            } catch (BufferUnderflowException e) {
+                // incomplete record
+            }
+
+            if (!valid) {
+                buf.position(start);
+                break;
+            }
+            cnt++;
+        }
+
+        return cnt;
+    }
+
+    /**
+     * Checks the length and the checksum of a record and decodes it.
+     * @param buf buffer positioned at the record start
+     * @param crc checksum instance
+     * @param r record receiver
+     * @return <CODE>true</CODE> if the record is valid,
+     * <CODE>false</CODE> otherwise
+     */
+    private static boolean decodeFramed(ByteBuffer buf, CRC32 crc, Receiver r) {
+        int len = buf.getInt();
+        if (len < 5 || len > buf.remaining() - 4)
+            return false;
+
+        crc.reset();
+        crc.update(buf.array(), buf.arrayOffset() + buf.position(), len);
+        if ((int) crc.getValue() != buf.getInt(buf.position() + len))
+            return false;
+
+        ByteBuffer rec = buf.slice();
+        rec.limit(len);
+        if (!decode(rec, r))
+            return false;
+
+        buf.position(buf.position() + len + 4);
+        return true;
+    }
+
+    /**
+     * Decodes a record (without the length and the checksum) and passes
+     * it to the receiver. The receiver is called only for a complete
+     * record which fills the whole buffer.
+     * @param buf buffer with the record, positioned at the record type
+     * @param r record receiver
+     * @return <CODE>true</CODE> if the record is valid,
+     * <CODE>false</CODE> otherwise
+     */
+    private static boolean decode(ByteBuffer buf, Receiver r) {
+        byte type = buf.get();
+        int id = buf.getInt();
+        switch (type) {
+            case ADD:
+                String name = readName(buf);
+                long cn = buf.getLong();
+                double pr = buf.getDouble();
+                if (buf.hasRemaining())
+                    return false;
+                r.taskAdded(id, name, cn, pr);
+                return true;
+            case REMOVE:
+                if (buf.hasRemaining())
+                    return false;
+                r.taskRemoved(id);
+                return true;
+            case START:
+            case STOP:
+            case CONSUMPTION:
+                long c = buf.getLong();
+                if (buf.hasRemaining())
+                    return false;
+                r.consumptionChanged(id, c);
+                return true;
+            case NAME:
+                String n = readName(buf);
+                if (buf.hasRemaining())
+                    return false;
+                r.nameChanged(id, n);
+                return true;
+            case PRICE:
+                double p = buf.getDouble();
+                if (buf.hasRemaining())
+                    return false;
+                r.priceChanged(id, p);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String readName(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0 || len > buf.remaining())
+            throw new BufferUnderflowException();
+
+        byte[] b = new byte[len];
+        buf.get(b);
+        try {
+            return new String(b, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encodeConsumption(byte type, Task t) {
+        ByteBuffer buf = begin(type, t.getId(), 8);
+        buf.putLong(t.getConsumption());
+        return end(buf);
+    }
+
+    private static byte[] encodeName(Task t) {
+        try {
+            return t.getName().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ByteBuffer begin(byte type, int id, int len) {
+        if (5 + len > MAX_LENGTH)
+            throw new IllegalArgumentException("journal record too large");
+
+        ByteBuffer buf = ByteBuffer.allocate(4 + 5 + len + 4);
+        buf.putInt(5 + len);
+        buf.put(type);
+        buf.putInt(id);
+        return buf;
+    }
+
+    private static byte[] end(ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 4, buf.position() - 4);
+        buf.putInt((int) crc.getValue());
+        return buf.array();
+    }
+
+}
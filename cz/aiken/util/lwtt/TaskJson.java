@@ -0,0 +1,155 @@
+/*
+ * TaskJson.java - JSON representation of tasks
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+/**
+ * This class writes tasks and totals in the JSON format. Times are
+ * stored in milliseconds, prices as numbers; the wall-clock time when
+ * a task has been started is stored only for running tasks.
+ * @author luk
+ */
+public class TaskJson {
+
+    private TaskJson() {
+    }
+
+    /**
+     * Appends the JSON object representing the given task.
+     * @param sb target buffer
+     * @param r task record
+     */
+    public static void appendTask(StringBuilder sb, TaskRecord r) {
+        sb.append("{\"id\":").append(r.getId());
+        sb.append(",\"name\":");
+        appendString(sb, r.getName());
+        sb.append(",\"consumption\":").append(r.getConsumption());
+        sb.append(",\"price\":");
+        appendNumber(sb, r.getPrice());
+        sb.append(",\"totalPrice\":");
+        appendNumber(sb, r.getTotalPrice());
+        sb.append(",\"running\":").append(r.isRunning());
+        if (r.isRunning())
+            sb.append(",\"runningSince\":").append(r.getRunningSince());
+        sb.append('}');
+    }
+
+    /**
+     * Appends the JSON object representing the given totals, including
+     * the totals for each price rate.
+     * @param sb target buffer
+     * @param tt totals
+     */
+    public static void appendTotals(StringBuilder sb, TaskTotals tt) {
+        sb.append("{\"count\":").append(tt.getTaskCount());
+        sb.append(",\"running\":").append(tt.getRunningCount());
+        sb.append(",\"consumption\":").append(tt.getConsumption());
+        sb.append(",\"totalPrice\":");
+        appendNumber(sb, tt.getTotalPrice());
+        sb.append(",\"rates\":[");
+        double[] rates = tt.getPriceRates();
+        for (int i=0; i<rates.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append("{\"price\":");
+            appendNumber(sb, rates[i]);
+            sb.append(",\"consumption\":").append(tt.getConsumption(rates[i]));
+            sb.append(",\"totalPrice\":");
+            appendNumber(sb, tt.getTotalPrice(rates[i]));
+            sb.append('}');
+        }
+        sb.append("]}");
+    }
+
+    /**
+     * Appends the given identifiers as a JSON array.
+     * @param sb target buffer
+     * @param ids identifiers
+     * @param cnt identifier count
+     */
+    public static void appendIds(StringBuilder sb, int[] ids, int cnt) {
+        sb.append('[');
+        for (int i=0; i<cnt; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(ids[i]);
+        }
+        sb.append(']');
+    }
+
+    /**
+     * Appends a number. Values which cannot be represented in JSON
+     * (infinity, NaN) are written as <CODE>null</CODE>.
+     * @param sb target buffer
+     * @param d number
+     */
+    public static void appendNumber(StringBuilder sb, double d) {
+        if (Double.isNaN(d) || Double.isInfinite(d))
+            sb.append("null");
+        else
+            sb.append(d);
+    }
+
+    /**
+     * Appends a quoted and escaped string.
+     * @param sb target buffer
+     * @param s string; <CODE>null</CODE> is written as <CODE>null</CODE>
+     */
+    public static void appendString(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("null");
+            return;
+        }
+
+        sb.append('"');
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\"");
+                    break;
+                case '\\': sb.append("\\\\");
+                    break;
+                case '\n': sb.append("\\n");
+                    break;
+                case '\r': sb.append("\\r");
+                    break;
+                case '\t': sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        sb.append("\\u");
+                        String hex = Integer.toHexString(c);
+                        for (int j=hex.length(); j<4; j++) {
+                            sb.append('0');
+                        }
+                        sb.append(hex);
+                    }
+                    else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * TaskLock.java - data directory lock
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * This class represents the lock which coordinates LWTT instances sharing
+ * a data directory. It is an exclusive lock of a small file, held while
+ * the data files are read or written. The lock is reentrant and it also
+ * excludes the threads of this instance.
+ *
+ * The locked file holds the state shared by the instances:
+ * <PRE>
+ * journal generation (long), next task identifier (int)
+ * </PRE>
+ * The generation is increased whenever the journal is rotated, so the other
+ * instances know where to continue reading the journal.
+ *
+ * If the file cannot be locked (e.g. the file system does not support
+ * locking) the lock is not acquired at all and the data files must not
+ * be written then.
+ * @author luk
+ */
+public class TaskLock {
+
+    private static final int SIZE = 12;
+
+    private File file = null;
+    private FileChannel channel = null;
+    private FileLock lock = null;
+    private ReentrantLock mutex = new ReentrantLock();
+
+    /**
+     * Creates a new lock instance.
+     * @param file lock file
+     */
+    public TaskLock(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the lock file. The file is created if it does not exist yet.
+     * @throws IOException if the file cannot be opened
+     */
+    public void open() throws IOException {
+        if (channel == null)
+            channel = new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    /**
+     * Closes the lock file.
+     */
+    public void close() {
+        mutex.lock();
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            channel = null;
+            lock = null;
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Acquires the lock. It blocks until the lock is available.
+     * @throws IOException if the file cannot be locked; the lock is not
+     * held then
+     */
+    public void lock() throws IOException {
+        mutex.lock();
+        if (mutex.getHoldCount() > 1 || channel == null)
+            return;
+
+        boolean locked = false;
+        try {
+            lock = channel.lock();
+            locked = true;
+        } catch (OverlappingFileLockException e) {
+            throw new IOException("File already locked by this instance", e);
+        } finally {
+            if (!locked)
+                mutex.unlock();
+        }
+    }
+
+    /**
+     * Checks whether the lock is held by the current thread.
+     * @return <CODE>true</CODE> if the lock is held,
+     * <CODE>false</CODE> otherwise
+     */
+    public boolean isHeld() {
+        return mutex.isHeldByCurrentThread();
+    }
+
+    /**
+     * Releases the lock.
+     */
+    public void unlock() {
+        try {
+            if (mutex.getHoldCount() == 1 && lock != null)
+                lock.release();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (mutex.getHoldCount() == 1)
+                lock = null;
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Returns the current journal generation. The lock must be held.
+     * @return generation number
+     * @throws IOException if the file cannot be read
+     */
+    public long getGeneration() throws IOException {
+        ByteBuffer buf = read();
+        return buf == null ? 0L : buf.getLong(0);
+    }
+
+    /**
+     * Sets the journal generation. The lock must be held.
+     * @param gen generation number
+     * @throws IOException if the file cannot be written
+     */
+    public void setGeneration(long gen) throws IOException {
+        ByteBuffer buf = read();
+        if (buf == null)
+            return;
+
+        buf.putLong(0, gen);
+        write(buf);
+    }
+
+    /**
+     * Reserves a block of identifiers for new tasks, so no other instance
+     * can use them.
+     * @param id first identifier proposed by this instance
+     * @param count number of reserved identifiers
+     * @return the first reserved identifier; it is the given one, or
+     * a greater one if the given one has already been reserved by another
+     * instance
+     * @throws IOException if the file cannot be locked, read or written
+     */
+    public int reserveIds(int id, int count) throws IOException {
+        lock();
+        try {
+            ByteBuffer buf = read();
+            if (buf == null)
+                return id;
+
+            id = Math.max(id, buf.getInt(8));
+            buf.putInt(8, id + count);
+            write(buf);
+        } finally {
+            unlock();
+        }
+        return id;
+    }
+
+    private ByteBuffer read() throws IOException {
+        if (channel == null)
+            return null;
+
+        ByteBuffer buf = ByteBuffer.allocate(SIZE);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, buf.position()) < 0)
+                break;
+        }
+        buf.clear();
+        return buf;
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        buf.clear();
+        while (buf.hasRemaining()) {
+            channel.write(buf, buf.position());
+        }
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * TaskMetrics.java - runtime metrics
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * This class collects the runtime metrics of the engine: latency
+ * histograms of the hot paths, the amount of written data and the task
+ * counts. Recording is cheap and allocation-free, so the metrics are
+ * always on.
+ *
+ * The metrics are exposed as JMX MBeans (domain
+ * <CODE>cz.aiken.util.lwtt</CODE>) and can be written to a text report.
+ * @author luk
+ */
+public class TaskMetrics implements TaskMetricsMBean {
+
+    /**
+     * JMX domain of the metrics
+     */
+    public static final String DOMAIN = "cz.aiken.util.lwtt";
+
+    private LatencyHistogram tick = new LatencyHistogram("tick");
+    private LatencyHistogram update = new LatencyHistogram("update");
+    private LatencyHistogram stall = new LatencyHistogram("stall");
+    private LatencyHistogram save = new LatencyHistogram("save");
+    private LatencyHistogram load = new LatencyHistogram("load");
+    private LatencyHistogram[] histograms = { tick, update, stall, save, load };
+
+    private AtomicLong bytesWritten = new AtomicLong();
+    private volatile long snapshotSize = 0L;
+    private volatile int taskCount = 0;
+    private volatile int runningCount = 0;
+
+    private ArrayList<ObjectName> registered = new ArrayList<ObjectName>();
+
+    /**
+     * Creates a new metrics instance.
+     */
+    public TaskMetrics() {
+    }
+
+    /**
+     * Returns the histogram of tick processing (repainting running tasks).
+     * @return tick histogram
+     */
+    public LatencyHistogram getTickLatency() {
+        return tick;
+    }
+
+    /**
+     * Returns the histogram of table updates (passing the collected
+     * changes to the table).
+     * @return update histogram
+     */
+    public LatencyHistogram getUpdateLatency() {
+        return update;
+    }
+
+    /**
+     * Returns the histogram of event thread stalls (delays between
+     * posting an event and its processing).
+     * @return stall histogram
+     */
+    public LatencyHistogram getStallLatency() {
+        return stall;
+    }
+
+    /**
+     * Returns the histogram of data saving.
+     * @return save histogram
+     */
+    public LatencyHistogram getSaveLatency() {
+        return save;
+    }
+
+    /**
+     * Returns the histogram of data loading.
+     * @return load histogram
+     */
+    public LatencyHistogram getLoadLatency() {
+        return load;
+    }
+
+    /**
+     * Adds written data to the counter.
+     * @param bytes number of written bytes
+     */
+    public void addBytesWritten(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Sets the size of the last written snapshot.
+     * @param size snapshot size [bytes]
+     */
+    public void setSnapshotSize(long size) {
+        snapshotSize = size;
+    }
+
+    public long getSnapshotSize() {
+        return snapshotSize;
+    }
+
+    /**
+     * Sets the task counts.
+     * @param tasks number of tasks
+     * @param running number of running tasks
+     */
+    public void setTaskCount(int tasks, int running) {
+        taskCount = tasks;
+        runningCount = running;
+    }
+
+    public int getTaskCount() {
+        return taskCount;
+    }
+
+    public int getRunningCount() {
+        return runningCount;
+    }
+
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("LWTT metrics, ").append(new Date()).append('\n');
+        sb.append("tasks: ").append(taskCount).append(" (").append(runningCount).append(" running)\n");
+        sb.append("bytes written: ").append(bytesWritten.get()).append('\n');
+        sb.append("snapshot size: ").append(snapshotSize).append('\n');
+        for (int i=0; i<histograms.length; i++) {
+            sb.append(histograms[i]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public void reset() {
+        for (int i=0; i<histograms.length; i++) {
+            histograms[i].reset();
+        }
+        bytesWritten.set(0L);
+    }
+
+    /**
+     * Writes the report to the given file. The file is replaced
+     * atomically.
+     * @param file report file
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeReport(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            w.write(getReport());
+        } finally {
+            w.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Registers the MBeans to the platform MBean server. If the MBeans
+     * are already registered (by another engine in the same process)
+     * nothing is done.
+     */
+    public void register() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(mbs, this, new ObjectName(DOMAIN + ":type=Metrics"));
+            for (int i=0; i<histograms.length; i++) {
+                register(mbs, histograms[i], new ObjectName(DOMAIN + ":type=Latency,name=" + histograms[i].getName()));
+            }
+        } catch (InstanceAlreadyExistsException e) {
+            unregister();
+        } catch (JMException e) {
+            e.printStackTrace();
+            unregister();
+        }
+    }
+
+    /**
+     * Unregisters the MBeans.
+     */
+    public void unregister() {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        for (int i=0; i<registered.size(); i++) {
+            try {
+                mbs.unregisterMBean(registered.get(i));
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        registered.clear();
+    }
+
+    private void register(MBeanServer mbs, Object bean, ObjectName name) throws JMException {
+        mbs.registerMBean(bean, name);
+        registered.add(name);
+    }
+
+}
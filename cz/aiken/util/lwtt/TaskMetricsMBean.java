@@ -0,0 +1,68 @@
+/*
+ * TaskMetricsMBean.java - management interface of runtime metrics
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+/**
+ * This interface exposes the {@link TaskMetrics} counters through JMX.
+ * The latency histograms are registered as separate MBeans.
+ * @author luk
+ */
+public interface TaskMetricsMBean {
+
+    /**
+     * Returns the number of tasks.
+     * @return task count
+     */
+    public int getTaskCount();
+
+    /**
+     * Returns the number of running tasks.
+     * @return running task count
+     */
+    public int getRunningCount();
+
+    /**
+     * Returns the amount of data written to the data files.
+     * @return number of bytes
+     */
+    public long getBytesWritten();
+
+    /**
+     * Returns the size of the last written snapshot.
+     * @return snapshot size [bytes]
+     */
+    public long getSnapshotSize();
+
+    /**
+     * Returns a text report of all metrics.
+     * @return report
+     */
+    public String getReport();
+
+    /**
+     * Resets the histograms and counters.
+     */
+    public void reset();
+
+}
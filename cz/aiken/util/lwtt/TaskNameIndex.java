@@ -0,0 +1,177 @@
+/*
+ * TaskNameIndex.java - trigram index of task names
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.util.*;
+
+/**
+ * This class represents an index of task names for substring searching.
+ * Each name is split into trigrams (substrings of three characters) and
+ * the task identifier is added to the list of each trigram. The lists are
+ * sorted, so the candidates for a searched text are found by intersecting
+ * the lists of its trigrams.
+ *
+ * The index never removes anything: a renamed or removed task may still be
+ * returned as a candidate. Candidates therefore have to be verified by
+ * the caller.
+ * @author luk
+ */
+public class TaskNameIndex {
+
+    /**
+     * length of indexed substrings
+     */
+    public static final int GRAM = 3;
+
+    private HashMap<Integer, IdList> grams = new HashMap<Integer, IdList>();
+
+    /**
+     * Sorted list of task identifiers.
+     */
+    private static class IdList {
+        private int[] ids = new int[4];
+        private int size = 0;
+
+        private void add(int id) {
+            if (size > 0 && ids[size - 1] < id) {
+                append(id);
+                return;
+            }
+
+            int pos = Arrays.binarySearch(ids, 0, size, id);
+            if (pos >= 0)
+                return;
+
+            pos = -pos - 1;
+            append(0);
+            System.arraycopy(ids, pos, ids, pos + 1, size - pos - 1);
+            ids[pos] = id;
+        }
+
+        private void append(int id) {
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+    }
+
+    /**
+     * Creates an empty index.
+     */
+    public TaskNameIndex() {
+    }
+
+    /**
+     * Folds the case of the given text. Each character is folded
+     * separately (to the lower case of its upper case), so the length
+     * of the text is kept and the folded texts are equal exactly when
+     * <CODE>String.regionMatches(true, ...)</CODE> considers them equal.
+     * @param s text
+     * @return folded text
+     */
+    public static String fold(String s) {
+        char[] c = s.toCharArray();
+        for (int i=0; i<c.length; i++) {
+            c[i] = Character.toLowerCase(Character.toUpperCase(c[i]));
+        }
+        return new String(c);
+    }
+
+    /**
+     * Adds a task name to the index.
+     * @param id task identifier
+     * @param name folded task name (see {@link #fold(String)})
+     */
+    public void add(int id, String name) {
+        for (int i=0; i+GRAM<=name.length(); i++) {
+            Integer key = Integer.valueOf(getKey(name, i));
+            IdList l = grams.get(key);
+            if (l == null) {
+                l = new IdList();
+                grams.put(key, l);
+            }
+            l.add(id);
+        }
+    }
+
+    /**
+     * Finds the tasks whose names may contain the given text.
+     * @param text folded text (at least {@link #GRAM} characters)
+     * @return sorted identifiers of candidate tasks
+     */
+    public int[] find(String text) {
+        if (text.length() < GRAM)
+            throw new IllegalArgumentException("text too short: " + text);
+
+        int[] res = null;
+        int cnt = 0;
+        for (int i=0; i+GRAM<=text.length(); i++) {
+            IdList l = grams.get(Integer.valueOf(getKey(text, i)));
+            if (l == null)
+                return new int[0];
+
+            if (res == null) {
+                res = Arrays.copyOf(l.ids, l.size);
+                cnt = l.size;
+            }
+            else {
+                cnt = intersect(res, cnt, l);
+            }
+        }
+
+        return cnt == res.length ? res : Arrays.copyOf(res, cnt);
+    }
+
+    /**
+     * Removes all identifiers not contained in the given list.
+     * @param ids sorted identifiers
+     * @param cnt identifier count
+     * @param l list
+     * @return new identifier count
+     */
+    private static int intersect(int[] ids, int cnt, IdList l) {
+        int n = 0;
+        int j = 0;
+        for (int i=0; i<cnt && j<l.size; i++) {
+            while (j < l.size && l.ids[j] < ids[i]) {
+                j++;
+            }
+            if (j < l.size && l.ids[j] == ids[i])
+                ids[n++] = ids[i];
+        }
+        return n;
+    }
+
+    /**
+     * Computes the key of the trigram at the given position. Keys of
+     * different trigrams may collide, which only adds candidates.
+     * @param s text
+     * @param pos trigram position
+     * @return trigram key
+     */
+    private static int getKey(String s, int pos) {
+        return (s.charAt(pos) << 20) ^ (s.charAt(pos + 1) << 10) ^ s.charAt(pos + 2);
+    }
+
+}
@@ -0,0 +1,648 @@
+/*
+ * TaskPersister.java - background persistence of task data
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class performs all data file I/O on a dedicated background thread.
+ * Journal records and snapshots are processed strictly in the order they
+ * have been passed in. If several snapshots pile up before the thread gets
+ * to them only the latest one is written.
+ *
+ * Snapshots are written to a temporary file which is synced and then
+ * atomically renamed over the data file. The replaced data file and
+ * the journal records leading from it to the new snapshot are kept as
+ * the previous generation. If the data file cannot be loaded (it is
+ * truncated or its checksum does not match) the previous generation is
+ * loaded instead and the journals are replayed over it.
+ *
+ * Several instances may share the data files. All reads and writes are
+ * done while holding the {@link TaskLock}. Before writing, an instance
+ * reads the records appended by the others since its last read and passes
+ * them to the change handler, so the changes are merged incrementally.
+ * The journal generation kept by the lock tells whether the journal has
+ * been rotated in the meantime; then the rest of the previous journal is
+ * read first. Records which are not contained in a written snapshot are
+ * carried over to the new journal.
+ *
+ * Failures are reported to the error listener through the callback
+ * executor (i.e. on the engine's event thread).
+ * @author luk
+ */
+public class TaskPersister {
+
+    private File file = null;
+    private File journalFile = null;
+    private TaskJournal journal = null;
+    private TaskLock lock = null;
+    private boolean fallback = false;
+    private boolean readOnly = false;
+
+    private long generation = 0L;
+    private long readPos = 0L;
+    private ChangeHandler changeHandler = null;
+    private TaskMetrics metrics = new TaskMetrics();
+    private AtomicBoolean polling = new AtomicBoolean(false);
+
+    private ExecutorService executor = null;
+    private AtomicReference<TaskSnapshot> pending = new AtomicReference<TaskSnapshot>();
+
+    private volatile boolean journalOpen = false;
+    private volatile long journalSize = 0L;
+
+    private Executor callbackExecutor = null;
+    private TaskEngineListener errorListener = null;
+
+    /**
+     * Handler of changes made by other instances. It is called through
+     * the callback executor.
+     */
+    public interface ChangeHandler {
+        /**
+         * Called for the journal records written by other instances.
+         * @param records encoded records
+         */
+        public void merge(byte[] records);
+
+        /**
+         * Called if the changes cannot be merged (some of them are no longer
+         * available) and all data have to be loaded again.
+         */
+        public void reload();
+
+        /**
+         * Called when a snapshot has been saved.
+         * @param saved saved snapshot
+         * @param loaded the saved data loaded from the new data file
+         */
+        public void saved(TaskSnapshot saved, TaskSnapshot loaded);
+    }
+
+    /**
+     * Creates a new persister.
+     * @param file data file
+     * @param journalFile journal file
+     * @param lock data directory lock
+     * @param callbackExecutor executor used for error reporting
+     * and change handling
+     */
+    public TaskPersister(File file, File journalFile, TaskLock lock, Executor callbackExecutor) {
+        this.file = file;
+        this.journalFile = journalFile;
+        this.lock = lock;
+        this.callbackExecutor = callbackExecutor;
+        journal = new TaskJournal(journalFile);
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LWTT persistence");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Returns the path where the previous generation of the given file
+     * is kept.
+     * @param file data or journal file
+     * @return previous generation path
+     */
+    public static File getPreviousPath(File file) {
+        return new File(file.getPath() + ".prev");
+    }
+
+    /**
+     * Checks whether there are any saved data (of any generation).
+     * @return <CODE>true</CODE> if data exist, <CODE>false</CODE> otherwise
+     */
+    public boolean exists() {
+        return file.exists() || getPreviousPath(file).exists();
+    }
+
+    /**
+     * Loads the last good snapshot. If the data file is missing or damaged
+     * (bad format, version or checksum) the previous generation is loaded;
+     * a damaged data file is renamed (with the <CODE>.damaged</CODE>
+     * suffix) so it is neither lost nor rotated into the previous
+     * generation by the next save (if the lock is held). Other I/O errors (which may be
+     * transient) are thrown and the data file is kept as it is.
+     * @return loaded snapshot
+     * @throws IOException if no generation can be loaded
+     */
+    public TaskSnapshot load() throws IOException {
+        fallback = false;
+        IOException ex = null;
+        if (file.exists()) {
+            try {
+                return TaskSnapshot.load(file);
+            } catch (TaskSnapshot.BadFormatException e) {
+                ex = e;
+                if (!readOnly && lock.isHeld())
+                    setAside(file);
+            }
+        }
+
+        File prev = getPreviousPath(file);
+        if (prev.exists()) {
+            try {
+                TaskSnapshot s = TaskSnapshot.load(prev);
+                fallback = true;
+                if (ex != null)
+                    reportError("Cannot load data from file (" + ex.getLocalizedMessage() + "), previous version loaded.");
+                return s;
+            } catch (IOException e) {
+                if (ex == null)
+                    ex = e;
+            }
+        }
+
+        throw ex != null ? ex : new FileNotFoundException(file.getPath());
+    }
+
+    /**
+     * Sets the listener where errors should be reported to.
+     * @param l listener
+     */
+    public void setErrorListener(TaskEngineListener l) {
+        errorListener = l;
+    }
+
+    /**
+     * Sets the metrics where the saving and the written data are recorded.
+     * @param m metrics
+     */
+    public void setMetrics(TaskMetrics m) {
+        metrics = m;
+    }
+
+    /**
+     * Sets the handler of changes made by other instances.
+     * @param h handler
+     */
+    public void setChangeHandler(ChangeHandler h) {
+        changeHandler = h;
+    }
+
+    /**
+     * Locks the data files against other instances (and the persistence
+     * thread). It is used for loading the data.
+     * @throws IOException if the data files cannot be locked; nothing
+     * may be written then
+     */
+    public void lock() throws IOException {
+        lock.lock();
+    }
+
+    /**
+     * Unlocks the data files.
+     */
+    public void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Opens the lock file and the journal. It is called before any record
+     * is written.
+     * @throws IOException if the files cannot be opened
+     */
+    public void open() throws IOException {
+        lock.open();
+        journal.open();
+        journalSize = journal.size();
+        journalOpen = true;
+    }
+
+    /**
+     * Opens only the lock file. The data can be loaded then, but nothing
+     * is written: no journal records, no snapshots and no damaged file
+     * is set aside. The lock file is not created if the data directory
+     * does not exist.
+     * @throws IOException if the lock file cannot be opened
+     */
+    public void openReadOnly() throws IOException {
+        readOnly = true;
+        if (file.getAbsoluteFile().getParentFile().exists())
+            lock.open();
+    }
+
+    /**
+     * Checks whether the journal is usable.
+     * @return <CODE>true</CODE> if records are written to the journal,
+     * <CODE>false</CODE> otherwise
+     */
+    public boolean isJournalOpen() {
+        return journalOpen;
+    }
+
+    /**
+     * Returns the journal size after the records written so far.
+     * @return journal size [bytes]
+     */
+    public long getJournalSize() {
+        return journalSize;
+    }
+
+    /**
+     * Replays the journal over the given tasks. If the previous data
+     * generation has been loaded the previous journal is replayed first.
+     * It must be called before any record is written.
+     * @param tasks task store
+     * @return number of replayed records
+     * @throws IOException if the journal cannot be read
+     */
+    public int replay(TaskStore tasks) throws IOException {
+        lock.lock();
+        try {
+            // the journal may have been rotated since it was opened
+            if (journal.isOpen()) {
+                journal.close();
+                journal.open();
+            }
+
+            int cnt = 0;
+            if (fallback)
+                cnt += new TaskJournal(getPreviousPath(journalFile)).replay(tasks);
+            cnt += journal.replay(tasks);
+
+            generation = lock.getGeneration();
+            readPos = journal.size();
+            journalSize = readPos;
+            return cnt;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Schedules a journal record for writing.
+     * @param record encoded record
+     */
+    public void record(final byte[] record) {
+        if (!journalOpen)
+            return;
+
+        executor.execute(new Runnable() {
+            public void run() {
+                writeRecord(record);
+            }
+        });
+    }
+
+    /**
+     * Schedules reading of the changes made by other instances. It is
+     * called when the journal has been modified.
+     */
+    public void poll() {
+        if (executor.isShutdown() || polling.getAndSet(true))
+            return;
+
+        executor.execute(new Runnable() {
+            public void run() {
+                polling.set(false);
+                try {
+                    lock.lock();
+                } catch (IOException e) {
+                    reportError("Cannot read changes from journal (" + e.getLocalizedMessage() + ").");
+                    return;
+                }
+                try {
+                    catchUp();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedules another I/O operation. It is run on the persistence
+     * thread in order with the journal records and snapshots.
+     * @param r operation
+     */
+    public void execute(Runnable r) {
+        if (executor.isShutdown())
+            return;
+
+        executor.execute(r);
+    }
+
+    /**
+     * Waits until all operations scheduled so far are finished, i.e. all
+     * journal records are written.
+     */
+    public void flush() {
+        if (executor.isShutdown())
+            return;
+
+        try {
+            executor.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Schedules a journal sync. All records scheduled so far are forced
+     * to the storage device.
+     */
+    public void sync() {
+        if (!journalOpen)
+            return;
+
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    journal.sync();
+                } catch (IOException e) {
+                    journalFailed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedules a snapshot for saving. The snapshot is written to
+     * a temporary file which then replaces the data file, and the journal
+     * is rotated afterwards.
+     * @param s snapshot
+     */
+    public void save(TaskSnapshot s) {
+        if (readOnly || executor.isShutdown())
+            return;
+
+        if (pending.getAndSet(s) != null)
+            return;
+
+        executor.execute(new Runnable() {
+            public void run() {
+                TaskSnapshot ps = pending.getAndSet(null);
+                if (ps != null)
+                    writeSnapshot(ps);
+            }
+        });
+    }
+
+    /**
+     * Finishes all scheduled operations and closes the journal. It blocks
+     * until everything is written.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        journal.close();
+        journalOpen = false;
+        lock.close();
+    }
+
+    private void writeRecord(byte[] record) {
+        if (!journal.isOpen())
+            return;
+
+        try {
+            lock.lock();
+        } catch (IOException e) {
+            journalFailed(e);
+            return;
+        }
+        try {
+            catchUp();
+            journal.write(record);
+            metrics.addBytesWritten(record.length);
+            readPos = journal.size();
+            journalSize = readPos;
+        } catch (IOException e) {
+            journalFailed(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the records written by other instances since the last read
+     * and passes them to the change handler. The lock must be held.
+     * @return the read records
+     */
+    private byte[] catchUp() {
+        byte[] b = null;
+        try {
+            long gen = lock.getGeneration();
+            if (gen == generation) {
+                b = journal.readFrom(readPos);
+                readPos += b.length;
+            }
+            else if (gen == generation + 1) {
+                byte[] b1 = new TaskJournal(getPreviousPath(journalFile)).readFrom(readPos);
+                byte[] b2 = journal.readFrom(0L);
+                b = new byte[b1.length + b2.length];
+                System.arraycopy(b1, 0, b, 0, b1.length);
+                System.arraycopy(b2, 0, b, b1.length, b2.length);
+                readPos = b2.length;
+                reopenJournal();
+            }
+            else {
+                // records of a whole generation have been missed
+                reopenJournal();
+                readPos = journal.size();
+                generation = gen;
+                handleReload();
+                return new byte[0];
+            }
+            generation = gen;
+        } catch (IOException e) {
+            reportError("Cannot read changes from journal (" + e.getLocalizedMessage() + ").");
+            return new byte[0];
+        }
+
+        if (b.length > 0)
+            handleMerge(b);
+        return b;
+    }
+
+    private void reopenJournal() throws IOException {
+        if (!journal.isOpen())
+            return;
+
+        journal.close();
+        journal.open();
+    }
+
+    private void writeSnapshot(TaskSnapshot s) {
+        try {
+            lock.lock();
+        } catch (IOException e) {
+            reportError("Cannot save data to file (" + e.getLocalizedMessage() + ").");
+            return;
+        }
+        try {
+            writeSnapshot(s, catchUp());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeSnapshot(TaskSnapshot s, byte[] unsaved) {
+        long t0 = System.nanoTime();
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            s.save(tmp);
+            metrics.setSnapshotSize(tmp.length());
+            metrics.addBytesWritten(tmp.length());
+            if (file.exists())
+                Files.move(file.toPath(), getPreviousPath(file).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDir();
+        } catch (IOException e) {
+            tmp.delete();
+            reportError("Cannot save data to file (" + e.getLocalizedMessage() + ").");
+            return;
+        }
+        handleSaved(s);
+
+        try {
+            journal.rotate(getPreviousPath(journalFile));
+            lock.setGeneration(++generation);
+            journal.write(unsaved);
+            readPos = journal.size();
+            journalSize = readPos;
+            syncDir();
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+
+        metrics.getSaveLatency().recordSince(t0);
+    }
+
+    /**
+     * Forces the renames in the data directory to the storage device.
+     * Some platforms do not support syncing directories; it is ignored
+     * there.
+     */
+    private void syncDir() {
+        try {
+            FileChannel fc = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ);
+            try {
+                fc.force(true);
+            } finally {
+                fc.close();
+            }
+        } catch (IOException e) {
+            // not supported
+        }
+    }
+
+    private static void setAside(File f) {
+        try {
+            Files.move(f.toPath(), new File(f.getPath() + ".damaged").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void journalFailed(IOException e) {
+        if (!journal.isOpen())
+            return;
+
+        journal.close();
+        journalOpen = false;
+        reportError("Cannot write to journal (" + e.getLocalizedMessage() + ").");
+    }
+
+    private void handleMerge(final byte[] records) {
+        final ChangeHandler h = changeHandler;
+        if (h == null)
+            return;
+
+        callbackExecutor.execute(new Runnable() {
+            public void run() {
+                h.merge(records);
+            }
+        });
+    }
+
+    private void handleReload() {
+        final ChangeHandler h = changeHandler;
+        if (h == null)
+            return;
+
+        callbackExecutor.execute(new Runnable() {
+            public void run() {
+                h.reload();
+            }
+        });
+    }
+
+    /**
+     * Loads the saved data file and passes it to the change handler,
+     * so the previously loaded data can be released.
+     * @param s saved snapshot
+     */
+    private void handleSaved(final TaskSnapshot s) {
+        final ChangeHandler h = changeHandler;
+        if (h == null)
+            return;
+
+        final TaskSnapshot loaded;
+        try {
+            loaded = TaskSnapshot.load(file);
+        } catch (IOException e) {
+            reportError("Cannot load saved data (" + e.getLocalizedMessage() + ").");
+            return;
+        }
+
+        callbackExecutor.execute(new Runnable() {
+            public void run() {
+                h.saved(s, loaded);
+            }
+        });
+    }
+
+    private void reportError(final String msg) {
+        final TaskEngineListener l = errorListener;
+        if (l == null)
+            return;
+
+        callbackExecutor.execute(new Runnable() {
+            public void run() {
+                l.errorOccurred(msg);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * TaskRecord.java - copy of task values
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+/**
+ * This class holds a copy of the values of one task, read by a thread
+ * other than the engine's event thread (see
+ * {@link TaskEngine#readTask(int, TaskRecord)}). An instance may be
+ * reused for reading many tasks.
+ * @author luk
+ */
+public class TaskRecord {
+
+    private int id = -1;
+    private String name = null;
+    private long consumption = 0L;
+    private double price = 0;
+    private boolean running = false;
+    private long runningSince = -1L;
+
+    private TaskSnapshot base = null;
+    private int rec = -1;
+
+    /**
+     * Creates an empty record.
+     */
+    public TaskRecord() {
+    }
+
+    /**
+     * Returns the task identifier.
+     * @return task identifier
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the task name.
+     * @return task name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the time consumption (at the time of reading).
+     * @return time consumption [ms]
+     */
+    public long getConsumption() {
+        return consumption;
+    }
+
+    /**
+     * Returns the price per hour.
+     * @return price per hour
+     */
+    public double getPrice() {
+        return price;
+    }
+
+    /**
+     * Checks whether the task has been running.
+     * @return <CODE>true</CODE> for running task,
+     * <CODE>false</CODE> otherwise
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the wall-clock time when the task has been started.
+     * @return start time [ms since the epoch]; -1 if the task is not running
+     */
+    public long getRunningSince() {
+        return runningSince;
+    }
+
+    /**
+     * Returns the total price (at the time of reading).
+     * @return total price [currency unit]
+     */
+    public double getTotalPrice() {
+        return price * consumption / Task.UNITS_PER_HOUR;
+    }
+
+    /**
+     * Sets the values. The name may be left to be read from the snapshot
+     * later (by {@link #resolve()}).
+     */
+    void set(int id, String name, TaskSnapshot base, int rec, long consumption, double price, boolean running, long runningSince) {
+        this.id = id;
+        this.name = name;
+        this.base = base;
+        this.rec = rec;
+        this.consumption = consumption;
+        this.price = price;
+        this.running = running;
+        this.runningSince = runningSince;
+    }
+
+    /**
+     * Reads the name from the snapshot if it has not been set.
+     */
+    void resolve() {
+        if (name == null && base != null)
+            name = base.getName(rec);
+        base = null;
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * TaskRowIndex.java - mapping of task identifiers to table rows
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.util.Arrays;
+
+/**
+ * This class maps task identifiers to row indices. It is a hash map
+ * with open addressing over primitive arrays, so lookups take constant
+ * time and neither keys nor values are boxed.
+ * @author luk
+ */
+public class TaskRowIndex {
+
+    private static final int FREE = -1;
+
+    private int[] keys = null;
+    private int[] values = null;
+    private int size = 0;
+
+    /**
+     * Creates an empty index.
+     */
+    public TaskRowIndex() {
+        allocate(16);
+    }
+
+    /**
+     * Returns the number of mapped identifiers.
+     * @return mapping count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all mappings.
+     */
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    /**
+     * Returns the row of the given task.
+     * @param id task identifier
+     * @return row index; -1 if the identifier is not mapped
+     */
+    public int get(int id) {
+        int mask = keys.length - 1;
+        int i = hash(id) & mask;
+        while (keys[i] != FREE) {
+            if (keys[i] == id)
+                return values[i];
+            i = (i + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Maps the given task to the given row.
+     * @param id task identifier (non-negative)
+     * @param row row index
+     */
+    public void put(int id, int row) {
+        if (id < 0)
+            throw new IllegalArgumentException("task identifier must not be negative");
+
+        if ((size + 1) * 4 > keys.length * 3)
+            rehash(keys.length * 2);
+
+        int mask = keys.length - 1;
+        int i = hash(id) & mask;
+        while (keys[i] != FREE) {
+            if (keys[i] == id) {
+                values[i] = row;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = id;
+        values[i] = row;
+        size++;
+    }
+
+    /**
+     * Removes the mapping of the given task.
+     * @param id task identifier
+     */
+    public void remove(int id) {
+        int mask = keys.length - 1;
+        int i = hash(id) & mask;
+        while (keys[i] != id) {
+            if (keys[i] == FREE)
+                return;
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = FREE;
+        size--;
+
+        // shift the following entries of the cluster back
+        int j = (i + 1) & mask;
+        while (keys[j] != FREE) {
+            int h = hash(keys[j]) & mask;
+            if (((j - h) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                keys[j] = FREE;
+                i = j;
+            }
+            j = (j + 1) & mask;
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+    }
+
+    private void rehash(int capacity) {
+        int[] ok = keys;
+        int[] ov = values;
+        allocate(capacity);
+        size = 0;
+        for (int i=0; i<ok.length; i++) {
+            if (ok[i] != FREE)
+                put(ok[i], ov[i]);
+        }
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,650 @@
+/*
+ * TaskServer.java - HTTP interface of the tracking engine
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class represents an HTTP interface for controlling the tracking
+ * engine by scripts and other programs. It listens only on the loopback
+ * interface. Tasks are identified by their identifiers; responses are
+ * JSON objects (see {@link TaskJson}).
+ *
+ * <TABLE>
+ * <TR><TD><CODE>GET /tasks</CODE></TD><TD>all tasks (or those given
+ * by <CODE>id</CODE>)</TD></TR>
+ * <TR><TD><CODE>GET /tasks/<I>id</I></CODE></TD><TD>one task</TD></TR>
+ * <TR><TD><CODE>GET /totals</CODE></TD><TD>totals over all tasks</TD></TR>
+ * <TR><TD><CODE>POST /add</CODE></TD><TD>creates a task for each
+ * <CODE>name</CODE> (or one unnamed task), optionally with
+ * the <CODE>price</CODE></TD></TR>
+ * <TR><TD><CODE>POST /start</CODE>, <CODE>/stop</CODE>,
+ * <CODE>/reset</CODE>, <CODE>/remove</CODE></TD><TD>changes the tasks
+ * given by <CODE>id</CODE></TD></TR>
+ * <TR><TD><CODE>POST /price</CODE></TD><TD>sets the <CODE>price</CODE>
+ * of the tasks given by <CODE>id</CODE></TD></TR>
+ * </TABLE>
+ *
+ * Parameters are passed in the query string or in a form-encoded body;
+ * the <CODE>id</CODE> parameter may be repeated or contain
+ * comma-separated identifiers, so many tasks are changed by one request.
+ *
+ * Reading requests are served directly by the worker threads (the engine
+ * allows reading by any thread). Changes are queued and performed on
+ * the engine's event thread in batches, so that many concurrent requests
+ * cost only a few event thread runs. A request waits for its change
+ * at most {@link #TIMEOUT} milliseconds.
+ * @author luk
+ */
+public class TaskServer {
+
+    /**
+     * system property with the port number; the server is not started
+     * if it is not set
+     */
+    public static final String PORT_PROPERTY = "lwtt.http.port";
+
+    /**
+     * number of worker threads
+     */
+    public static final int THREADS = 16;
+
+    /**
+     * maximum time of waiting for the event thread [ms]
+     */
+    public static final long TIMEOUT = 10000L;
+
+    /**
+     * maximum number of changes performed in one event thread run
+     */
+    public static final int MAX_BATCH = 256;
+
+    /**
+     * maximum size of a request body [bytes]
+     */
+    public static final int MAX_BODY = 1048576;
+
+    private static final int CHUNK = 256;
+
+    private TaskEngine engine = null;
+    private Executor executor = null;
+    private HttpServer server = null;
+    private ExecutorService workers = null;
+
+    private ConcurrentLinkedQueue<FutureTask<?>> pending = new ConcurrentLinkedQueue<FutureTask<?>>();
+    private AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean stopped = false;
+
+    private Runnable drainer = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Failure of a request.
+     */
+    private static class RequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private int status = 0;
+
+        private RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Change of one task. It is performed on the event thread.
+     */
+    private static abstract class Change {
+        abstract void apply(TaskEngine engine, int index);
+    }
+
+    /**
+     * Creates a server for the given engine.
+     * @param engine tracking engine
+     */
+    public TaskServer(TaskEngine engine) {
+        this.engine = engine;
+        this.executor = engine.getExecutor();
+    }
+
+    /**
+     * Starts the server.
+     * @param port port number (0 for any free port)
+     * @throws IOException if the server cannot be started
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 128);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                serve(ex);
+            }
+        });
+
+        workers = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            private AtomicInteger cnt = new AtomicInteger(0);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LWTT HTTP " + cnt.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(workers);
+        server.start();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     * @return port number
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server. Changes which have not been performed yet are
+     * cancelled.
+     *
+     * <I>This method may be called only by the engine's event thread.</I>
+     */
+    public void stop() {
+        stopped = true;
+        if (server != null)
+            server.stop(0);
+        if (workers != null)
+            workers.shutdownNow();
+        drain();
+    }
+
+    /**
+     * Serves one request.
+     * @param ex HTTP exchange
+     * @throws IOException if the response cannot be sent
+     */
+    private void serve(HttpExchange ex) throws IOException {
+        try {
+            if (!isLocal(ex))
+                throw new RequestException(403, "Cannot accept request from other origin.");
+
+            String path = ex.getRequestURI().getPath();
+            Map<String, List<String>> params = parseParams(ex);
+
+            if (path.equals("/tasks")) {
+                checkMethod(ex, "GET");
+                listTasks(ex, params);
+            }
+            else if (path.startsWith("/tasks/")) {
+                checkMethod(ex, "GET");
+                getTask(ex, parseId(path.substring(7)));
+            }
+            else if (path.equals("/totals")) {
+                checkMethod(ex, "GET");
+                StringBuilder sb = new StringBuilder();
+                TaskJson.appendTotals(sb, engine.getTotals());
+                send(ex, 200, sb);
+            }
+            else if (path.equals("/add")) {
+                checkMethod(ex, "POST");
+                addTasks(ex, params);
+            }
+            else {
+                Change c = getChange(path, params);
+                if (c == null)
+                    throw new RequestException(404, "Cannot find " + path + ".");
+                checkMethod(ex, "POST");
+                changeTasks(ex, parseIds(params.get("id")), c);
+            }
+        } catch (RequestException e) {
+            StringBuilder sb = new StringBuilder("{\"error\":");
+            TaskJson.appendString(sb, e.getMessage());
+            sb.append('}');
+            send(ex, e.status, sb);
+        } finally {
+            ex.close();
+        }
+    }
+
+    /**
+     * Sends all tasks (or the requested ones) as the <CODE>tasks</CODE>
+     * array. The response is streamed in chunks.
+     * @param ex HTTP exchange
+     * @param params request parameters
+     * @throws IOException if the response cannot be sent
+     * @throws RequestException if the parameters are invalid
+     */
+    private void listTasks(HttpExchange ex, Map<String, List<String>> params) throws IOException, RequestException {
+        List<String> idParams = params.get("id");
+        int[] ids = idParams == null ? null : parseIds(idParams);
+
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        ex.sendResponseHeaders(200, 0);
+        Writer w = new BufferedWriter(new OutputStreamWriter(ex.getResponseBody(), "UTF-8"), 65536);
+
+        TaskRecord[] recs = new TaskRecord[CHUNK];
+        for (int i=0; i<recs.length; i++) {
+            recs[i] = new TaskRecord();
+        }
+
+        StringBuilder sb = new StringBuilder("{\"tasks\":[");
+        boolean first = true;
+        if (ids == null) {
+            int pos = 0;
+            int cnt = 0;
+            while ((cnt = engine.readTasks(pos, recs)) > 0) {
+                for (int i=0; i<cnt; i++) {
+                    if (!first)
+                        sb.append(',');
+                    TaskJson.appendTask(sb, recs[i]);
+                    first = false;
+                }
+                w.append(sb);
+                sb.setLength(0);
+                pos += cnt;
+            }
+        }
+        else {
+            for (int i=0; i<ids.length; i++) {
+                if (!engine.readTask(ids[i], recs[0]))
+                    continue;
+                if (!first)
+                    sb.append(',');
+                TaskJson.appendTask(sb, recs[0]);
+                first = false;
+            }
+        }
+        sb.append("]}");
+        w.append(sb);
+        w.flush();
+    }
+
+    /**
+     * Sends one task.
+     * @param ex HTTP exchange
+     * @param id task identifier
+     * @throws IOException if the response cannot be sent
+     * @throws RequestException if there is no such task
+     */
+    private void getTask(HttpExchange ex, int id) throws IOException, RequestException {
+        TaskRecord r = new TaskRecord();
+        if (!engine.readTask(id, r))
+            throw new RequestException(404, "Cannot find task " + id + ".");
+
+        StringBuilder sb = new StringBuilder();
+        TaskJson.appendTask(sb, r);
+        send(ex, 200, sb);
+    }
+
+    /**
+     * Creates new tasks and sends them as the <CODE>tasks</CODE> array.
+     * @param ex HTTP exchange
+     * @param params request parameters
+     * @throws IOException if the response cannot be sent
+     * @throws RequestException if the parameters are invalid or the tasks
+     * cannot be created in time
+     */
+    private void addTasks(HttpExchange ex, Map<String, List<String>> params) throws IOException, RequestException {
+        List<String> nameParams = params.get("name");
+        final String[] names = nameParams == null
+                ? new String[1] : nameParams.toArray(new String[nameParams.size()]);
+        final Double price = params.containsKey("price") ? Double.valueOf(parsePrice(params)) : null;
+
+        int[] ids = call(new Callable<int[]>() {
+            public int[] call() {
+                int[] res = new int[names.length];
+                for (int i=0; i<names.length; i++) {
+                    Task t = engine.addNewTask();
+                    int index = engine.indexOf(t);
+                    if (names[i] != null)
+                        engine.setName(index, names[i]);
+                    if (price != null)
+                        engine.setPrice(index, price.doubleValue());
+                    res[i] = t.getId();
+                }
+                return res;
+            }
+        });
+
+        TaskRecord r = new TaskRecord();
+        StringBuilder sb = new StringBuilder("{\"tasks\":[");
+        boolean first = true;
+        for (int i=0; i<ids.length; i++) {
+            if (!engine.readTask(ids[i], r))
+                continue;
+            if (!first)
+                sb.append(',');
+            TaskJson.appendTask(sb, r);
+            first = false;
+        }
+        sb.append("]}");
+        send(ex, 200, sb);
+    }
+
+    /**
+     * Returns the change requested by the given path.
+     * @param path request path
+     * @param params request parameters
+     * @return change; <CODE>null</CODE> for an unknown path
+     * @throws RequestException if the parameters are invalid
+     */
+    private static Change getChange(String path, Map<String, List<String>> params) throws RequestException {
+        if (path.equals("/start")) {
+            return new Change() {
+                void apply(TaskEngine engine, int index) {
+                    engine.startTasks(index, index);
+                }
+            };
+        }
+        if (path.equals("/stop")) {
+            return new Change() {
+                void apply(TaskEngine engine, int index) {
+                    engine.stopTasks(index, index);
+                }
+            };
+        }
+        if (path.equals("/reset")) {
+            return new Change() {
+                void apply(TaskEngine engine, int index) {
+                    engine.resetTasks(index, index);
+                }
+            };
+        }
+        if (path.equals("/remove")) {
+            return new Change() {
+                void apply(TaskEngine engine, int index) {
+                    engine.removeTasks(index, index);
+                }
+            };
+        }
+        if (path.equals("/price")) {
+            if (!params.containsKey("price"))
+                throw new RequestException(400, "Cannot set price (no price given).");
+            final double price = parsePrice(params);
+            return new Change() {
+                void apply(TaskEngine engine, int index) {
+                    engine.setPrice(index, price);
+                }
+            };
+        }
+        return null;
+    }
+
+    /**
+     * Applies a change to the given tasks and sends the number of
+     * changed tasks and the identifiers of missing tasks.
+     * @param ex HTTP exchange
+     * @param ids task identifiers
+     * @param c change
+     * @throws IOException if the response cannot be sent
+     * @throws RequestException if the tasks cannot be changed in time
+     */
+    private void changeTasks(HttpExchange ex, final int[] ids, final Change c) throws IOException, RequestException {
+        int[] missing = call(new Callable<int[]>() {
+            public int[] call() {
+                int[] res = new int[ids.length];
+                int n = 0;
+                for (int i=0; i<ids.length; i++) {
+                    int index = engine.indexOf(ids[i]);
+                    if (index < 0)
+                        res[n++] = ids[i];
+                    else
+                        c.apply(engine, index);
+                }
+                return Arrays.copyOf(res, n);
+            }
+        });
+
+        StringBuilder sb = new StringBuilder("{\"changed\":");
+        sb.append(ids.length - missing.length);
+        sb.append(",\"missing\":");
+        TaskJson.appendIds(sb, missing, missing.length);
+        sb.append('}');
+        send(ex, 200, sb);
+    }
+
+    /**
+     * Performs the given operation on the event thread and waits for
+     * the result.
+     * @param op operation
+     * @return operation result
+     * @throws RequestException if the operation has not been performed
+     * in time or it has failed
+     */
+    private <T> T call(Callable<T> op) throws RequestException {
+        FutureTask<T> f = new FutureTask<T>(op);
+        pending.add(f);
+        schedule();
+
+        try {
+            return f.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            f.cancel(false);
+            throw new RequestException(503, "Cannot perform request (engine busy).");
+        } catch (CancellationException e) {
+            throw new RequestException(503, "Cannot perform request (server stopped).");
+        } catch (InterruptedException e) {
+            f.cancel(false);
+            throw new RequestException(503, "Cannot perform request (interrupted).");
+        } catch (ExecutionException e) {
+            throw new RequestException(500, "Cannot perform request (" + e.getCause() + ").");
+        }
+    }
+
+    /**
+     * Schedules draining of the pending changes unless it has already
+     * been scheduled.
+     */
+    private void schedule() {
+        if (!pending.isEmpty() && scheduled.compareAndSet(false, true))
+            executor.execute(drainer);
+    }
+
+    /**
+     * Performs a batch of pending changes. The rest (if any) is left
+     * to the next run, so that the event thread is not blocked for long.
+     */
+    private void drain() {
+        scheduled.set(false);
+        for (int i=0; i<MAX_BATCH; i++) {
+            FutureTask<?> f = pending.poll();
+            if (f == null)
+                return;
+
+            if (stopped)
+                f.cancel(false);
+            else
+                f.run();
+        }
+        schedule();
+    }
+
+    /**
+     * Checks whether the request comes from the local host. Requests
+     * from web pages (with a foreign origin or host name) are refused.
+     * @param ex HTTP exchange
+     * @return <CODE>true</CODE> for a local request,
+     * <CODE>false</CODE> otherwise
+     */
+    private static boolean isLocal(HttpExchange ex) {
+        String host = ex.getRequestHeaders().getFirst("Host");
+        if (host != null && !isLocalHost(host))
+            return false;
+
+        String origin = ex.getRequestHeaders().getFirst("Origin");
+        if (origin == null)
+            return true;
+
+        try {
+            URI u = new URI(origin);
+            return u.getHost() != null && isLocalHost(u.getHost());
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether the given host name (possibly with a port number)
+     * denotes the loopback interface.
+     * @param host host name
+     * @return <CODE>true</CODE> for a loopback name,
+     * <CODE>false</CODE> otherwise
+     */
+    private static boolean isLocalHost(String host) {
+        int end = host.startsWith("[") ? host.indexOf(']') + 1 : host.indexOf(':');
+        if (end > 0)
+            host = host.substring(0, end);
+        return host.equals("localhost") || host.equals("127.0.0.1") || host.equals("[::1]");
+    }
+
+    /**
+     * Checks the request method.
+     * @param ex HTTP exchange
+     * @param method expected method
+     * @throws RequestException if the method differs
+     */
+    private static void checkMethod(HttpExchange ex, String method) throws RequestException {
+        if (!ex.getRequestMethod().equals(method))
+            throw new RequestException(405, "Cannot accept method " + ex.getRequestMethod() + " (" + method + " expected).");
+    }
+
+    /**
+     * Parses the parameters from the query string and the form-encoded
+     * request body.
+     * @param ex HTTP exchange
+     * @return parameters
+     * @throws IOException if the body cannot be read
+     * @throws RequestException if the body is too large
+     */
+    private static Map<String, List<String>> parseParams(HttpExchange ex) throws IOException, RequestException {
+        HashMap<String, List<String>> params = new HashMap<String, List<String>>();
+        parseParams(ex.getRequestURI().getRawQuery(), params);
+
+        if (ex.getRequestMethod().equals("POST")) {
+            InputStream is = ex.getRequestBody();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int len = 0;
+            while ((len = is.read(buf)) > 0) {
+                body.write(buf, 0, len);
+                if (body.size() > MAX_BODY)
+                    throw new RequestException(413, "Cannot accept request body (too large).");
+            }
+            parseParams(body.toString("UTF-8"), params);
+        }
+
+        return params;
+    }
+
+    private static void parseParams(String s, Map<String, List<String>> params) throws UnsupportedEncodingException {
+        if (s == null || s.length() == 0)
+            return;
+
+        String[] pairs = s.split("&");
+        for (int i=0; i<pairs.length; i++) {
+            if (pairs[i].length() == 0)
+                continue;
+
+            int eq = pairs[i].indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pairs[i] : pairs[i].substring(0, eq), "UTF-8");
+            String value = eq < 0 ? "" : URLDecoder.decode(pairs[i].substring(eq + 1), "UTF-8");
+            List<String> l = params.get(key);
+            if (l == null) {
+                l = new ArrayList<String>();
+                params.put(key, l);
+            }
+            l.add(value);
+        }
+    }
+
+    /**
+     * Parses task identifiers.
+     * @param values parameter values (with comma-separated identifiers)
+     * @return identifiers
+     * @throws RequestException if there is no identifier or an identifier
+     * is malformed
+     */
+    private static int[] parseIds(List<String> values) throws RequestException {
+        if (values == null)
+            throw new RequestException(400, "Cannot change tasks (no id given).");
+
+        int[] ids = new int[16];
+        int cnt = 0;
+        for (int i=0; i<values.size(); i++) {
+            String[] parts = values.get(i).split(",");
+            for (int j=0; j<parts.length; j++) {
+                if (parts[j].trim().length() == 0)
+                    continue;
+                if (cnt == ids.length)
+                    ids = Arrays.copyOf(ids, cnt * 2);
+                ids[cnt++] = parseId(parts[j]);
+            }
+        }
+        return Arrays.copyOf(ids, cnt);
+    }
+
+    private static int parseId(String s) throws RequestException {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "Cannot parse task identifier (" + s + ").");
+        }
+    }
+
+    private static double parsePrice(Map<String, List<String>> params) throws RequestException {
+        String s = params.get("price").get(0);
+        try {
+            double d = Double.parseDouble(s.trim());
+            if (Double.isNaN(d) || Double.isInfinite(d) || d < 0)
+                throw new NumberFormatException();
+            return d;
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "Cannot parse price (" + s + ").");
+        }
+    }
+
+    /**
+     * Sends a JSON response.
+     * @param ex HTTP exchange
+     * @param status HTTP status
+     * @param json response body
+     * @throws IOException if the response cannot be sent
+     */
+    private static void send(HttpExchange ex, int status, CharSequence json) throws IOException {
+        byte[] data = json.toString().getBytes("UTF-8");
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        ex.sendResponseHeaders(status, data.length);
+        OutputStream os = ex.getResponseBody();
+        os.write(data);
+        os.flush();
+    }
+
+}
@@ -0,0 +1,417 @@
+/*
+ * TaskSnapshot.java - binary snapshot of task data
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * This class represents a snapshot of the application data (settings
+ * and tasks). A snapshot is stored in a versioned binary file with
+ * fixed-size records, so it can be loaded through a memory-mapped buffer
+ * without any parsing.
+ *
+ * The file consists of a header, setting records, task records and
+ * a pool of UTF-8 encoded strings the records point to:
+ * <PRE>
+ * header:  magic (int), version (int), setting count (int),
+ *          task count (int), string pool size (int)
+ * setting: key offset (int), key length (int),
+ *          value offset (int), value length (int)
+ * task:    id (int), consumption (long), price (double),
+ *          name offset (int), name length (int)
+ * trailer: CRC-32 of all preceding bytes (int)
+ * </PRE>
+ * The checksum is verified on load, so a truncated or damaged file is
+ * rejected as a whole.
+ * Task records are ordered by the task identifiers. A loaded snapshot
+ * keeps the file content in a single buffer and reads the records
+ * on demand, so loading does not create any per-task objects. The file
+ * is neither kept open nor mapped, so it can be replaced by the next
+ * saving.
+ * @author luk
+ */
+public class TaskSnapshot {
+
+    /**
+     * This exception is thrown if a data file is damaged, i.e. it has
+     * a bad format, version or checksum (unlike other I/O errors, which
+     * may be transient).
+     */
+    public static class BadFormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates a new exception.
+         * @param msg error message
+         */
+        public BadFormatException(String msg) {
+            super(msg);
+        }
+    }
+
+    /**
+     * file magic number ("LWTT")
+     */
+    public static final int MAGIC = 0x4C575454;
+
+    /**
+     * current file format version
+     */
+    public static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 20;
+    private static final int SETTING_SIZE = 16;
+    private static final int TASK_SIZE = 28;
+    private static final int TRAILER_SIZE = 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Properties settings = null;
+    private int count = 0;
+
+    private int[] ids = null;
+    private long[] consumptions = null;
+    private double[] prices = null;
+    private String[] names = null;
+
+    private ByteBuffer buf = null;
+    private int tstart = 0;
+    private int pstart = 0;
+
+    private TaskSnapshot source = null;
+
+    /**
+     * Creates a snapshot of the given settings and tasks. The values
+     * are copied, so the snapshot does not change with the tasks.
+     * @param settings application settings
+     * @param tasks tasks
+     */
+    public TaskSnapshot(Properties settings, List<Task> tasks) {
+        this(settings, tasks.size());
+        for (int i=0; i<count; i++) {
+            Task t = tasks.get(i);
+            ids[i] = t.getId();
+            consumptions[i] = t.getConsumption();
+            prices[i] = t.getPrice();
+            names[i] = t.getName();
+        }
+    }
+
+    /**
+     * Creates a snapshot of the given settings and stored tasks. The values
+     * are copied without creating task instances.
+     * @param settings application settings
+     * @param store task store
+     */
+    public TaskSnapshot(Properties settings, TaskStore store) {
+        this(settings, store.size());
+        source = store.getBase();
+        for (int i=0; i<count; i++) {
+            ids[i] = store.getId(i);
+            consumptions[i] = store.getConsumption(i);
+            prices[i] = store.getPrice(i);
+            names[i] = store.getName(i);
+        }
+    }
+
+    private TaskSnapshot(Properties settings, int cnt) {
+        this.settings = new Properties();
+        this.settings.putAll(settings);
+        count = cnt;
+        ids = new int[cnt];
+        consumptions = new long[cnt];
+        prices = new double[cnt];
+        names = new String[cnt];
+    }
+
+    private TaskSnapshot(ByteBuffer buf, int cnt, int tstart, int pstart) {
+        settings = new Properties();
+        count = cnt;
+        this.buf = buf;
+        this.tstart = tstart;
+        this.pstart = pstart;
+    }
+
+    /**
+     * Returns the application settings.
+     * @return settings
+     */
+    public Properties getSettings() {
+        return settings;
+    }
+
+    /**
+     * Returns the number of tasks.
+     * @return task count
+     */
+    public int getTaskCount() {
+        return count;
+    }
+
+    /**
+     * Returns the identifier of the given task record.
+     * @param index record index
+     * @return task identifier
+     */
+    public int getId(int index) {
+        if (buf == null)
+            return ids[index];
+
+        return buf.getInt(tstart + index * TASK_SIZE);
+    }
+
+    /**
+     * Returns the consumption of the given task record.
+     * @param index record index
+     * @return time consumption [ms]
+     */
+    public long getConsumption(int index) {
+        if (buf == null)
+            return consumptions[index];
+
+        return buf.getLong(tstart + index * TASK_SIZE + 4);
+    }
+
+    /**
+     * Returns the price of the given task record.
+     * @param index record index
+     * @return price per hour
+     */
+    public double getPrice(int index) {
+        if (buf == null)
+            return prices[index];
+
+        return buf.getDouble(tstart + index * TASK_SIZE + 12);
+    }
+
+    /**
+     * Returns the name of the given task record.
+     * @param index record index
+     * @return task name
+     */
+    public String getName(int index) {
+        if (buf == null)
+            return names[index];
+
+        int pos = tstart + index * TASK_SIZE + 20;
+        return getString(buf, pstart + buf.getInt(pos), buf.getInt(pos + 4));
+    }
+
+    /**
+     * Returns the index of the task record with the given identifier.
+     * @param id task identifier
+     * @return record index; -1 if there is no such record
+     */
+    public int find(int id) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midId = getId(mid);
+            if (midId < id)
+                lo = mid + 1;
+            else if (midId > id)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the snapshot the store has read the task names from when
+     * this snapshot was taken (see {@link TaskStore#rebase(TaskSnapshot, TaskSnapshot)}).
+     * @return source snapshot; <CODE>null</CODE> if the snapshot has not
+     * been taken from a store, or the store has had no snapshot
+     */
+    TaskSnapshot getSource() {
+        return source;
+    }
+
+    /**
+     * Creates a task instance from the given task record.
+     * @param index record index
+     * @return new task instance
+     */
+    public Task createTask(int index) {
+        return new Task(getId(index), getName(index), getConsumption(index), getPrice(index));
+    }
+
+    /**
+     * Loads a snapshot from the given file. The file is read at once
+     * and closed, but only the settings are decoded; the task records
+     * are decoded when they are accessed.
+     * @param file snapshot file
+     * @return loaded snapshot
+     * @throws BadFormatException if the file is damaged
+     * @throws IOException if the file cannot be read
+     */
+    public static TaskSnapshot load(File file) throws IOException {
+        FileInputStream is = new FileInputStream(file);
+        try {
+            FileChannel fc = is.getChannel();
+            long size = fc.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+                throw new BadFormatException("bad file size");
+
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining()) {
+                if (fc.read(buf) < 0)
+                    throw new BadFormatException("bad file size");
+            }
+            buf.clear();
+            if (buf.getInt(0) != MAGIC)
+                throw new BadFormatException("not a LWTT data file");
+
+            int version = buf.getInt(4);
+            if (version != VERSION)
+                throw new BadFormatException("unsupported file version " + version);
+
+            int scnt = buf.getInt(8);
+            int tcnt = buf.getInt(12);
+            int psize = buf.getInt(16);
+            long pstart = HEADER_SIZE + (long) scnt * SETTING_SIZE + (long) tcnt * TASK_SIZE;
+            if (scnt < 0 || tcnt < 0 || psize < 0 || pstart + psize + TRAILER_SIZE != size)
+                throw new BadFormatException("bad file size");
+
+            int end = (int) size - TRAILER_SIZE;
+            ByteBuffer data = buf.duplicate();
+            data.position(0);
+            data.limit(end);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if ((int) crc.getValue() != buf.getInt(end))
+                throw new BadFormatException("bad checksum");
+
+            int tstart = HEADER_SIZE + scnt * SETTING_SIZE;
+            TaskSnapshot s = new TaskSnapshot(buf, tcnt, tstart, (int) pstart);
+            for (int i=0; i<scnt; i++) {
+                int pos = HEADER_SIZE + i * SETTING_SIZE;
+                checkString(buf, pos, psize);
+                checkString(buf, pos + 8, psize);
+                String key = getString(buf, (int) pstart + buf.getInt(pos), buf.getInt(pos + 4));
+                String value = getString(buf, (int) pstart + buf.getInt(pos + 8), buf.getInt(pos + 12));
+                s.settings.setProperty(key, value);
+            }
+
+            for (int i=0; i<tcnt; i++) {
+                int pos = tstart + i * TASK_SIZE;
+                if (i > 0 && buf.getInt(pos) <= buf.getInt(pos - TASK_SIZE))
+                    throw new BadFormatException("bad task order");
+                checkString(buf, pos + 20, psize);
+            }
+
+            return s;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Saves the snapshot to the given file.
+     * @param file snapshot file
+     * @throws IOException if an I/O error occurs
+     */
+    public void save(File file) throws IOException {
+        String[] keys = settings.stringPropertyNames().toArray(new String[0]);
+        Arrays.sort(keys);
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            CheckedOutputStream cos = new CheckedOutputStream(new BufferedOutputStream(fos, 65536), new CRC32());
+            DataOutputStream os = new DataOutputStream(cos);
+
+            byte[][] sbytes = new byte[keys.length * 2][];
+            for (int i=0; i<keys.length; i++) {
+                sbytes[2*i] = keys[i].getBytes("UTF-8");
+                sbytes[2*i+1] = settings.getProperty(keys[i]).getBytes("UTF-8");
+            }
+            byte[][] nbytes = new byte[count][];
+            int psize = 0;
+            for (int i=0; i<sbytes.length; i++) {
+                psize += sbytes[i].length;
+            }
+            for (int i=0; i<count; i++) {
+                nbytes[i] = getName(i).getBytes("UTF-8");
+                psize += nbytes[i].length;
+            }
+
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeInt(keys.length);
+            os.writeInt(count);
+            os.writeInt(psize);
+
+            int off = 0;
+            for (int i=0; i<sbytes.length; i++) {
+                os.writeInt(off);
+                os.writeInt(sbytes[i].length);
+                off += sbytes[i].length;
+            }
+
+            for (int i=0; i<count; i++) {
+                os.writeInt(getId(i));
+                os.writeLong(getConsumption(i));
+                os.writeDouble(getPrice(i));
+                os.writeInt(off);
+                os.writeInt(nbytes[i].length);
+                off += nbytes[i].length;
+            }
+
+            for (int i=0; i<sbytes.length; i++) {
+                os.write(sbytes[i]);
+            }
+            for (int i=0; i<nbytes.length; i++) {
+                os.write(nbytes[i]);
+            }
+
+            os.writeInt((int) cos.getChecksum().getValue());
+            os.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void checkString(ByteBuffer buf, int pos, int psize) throws IOException {
+        int off = buf.getInt(pos);
+        int len = buf.getInt(pos + 4);
+        if (off < 0 || len < 0 || off > psize - len)
+            throw new BadFormatException("bad string reference");
+    }
+
+    private static String getString(ByteBuffer buf, int pos, int len) {
+        byte[] b = new byte[len];
+        for (int i=0; i<len; i++) {
+            b[i] = buf.get(pos + i);
+        }
+        return new String(b, UTF8);
+    }
+
+}
@@ -0,0 +1,669 @@
+/*
+ * TaskStore.java - column-oriented task storage
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * This class represents the list of tasks, ordered by the task identifiers.
+ * The task values are kept in parallel primitive arrays (one column per
+ * field), so there is no object per task:
+ * <UL>
+ * <LI>identifiers, consumption, price and the running state are
+ * copied from the loaded data snapshot,</LI>
+ * <LI>names are read from the snapshot until they are changed; changed
+ * names are interned. When the data are saved the store is rebased onto
+ * the saved snapshot, so the previous one is released.</LI>
+ * </UL>
+ * {@link Task} instances returned by the store are lightweight views
+ * of the columns. The views are created on demand and held in a bounded
+ * LRU cache (they keep the formatted texts shown in the table).
+ *
+ * The store is modified only by the engine's event thread, which also
+ * reads it directly. Other threads read it through
+ * {@link #readById(int, TaskRecord)} and {@link #readRows(int, TaskRecord[])}:
+ * modifications are done under a write lock, so the readers get
+ * consistent values. A single task is read optimistically (without
+ * blocking the event thread unless a modification interferes).
+ * @author luk
+ */
+public class TaskStore {
+
+    /**
+     * maximum number of cached task views
+     */
+    public static final int CACHE_SIZE = 1024;
+
+    /**
+     * number of optimistic attempts to read rows before locking
+     */
+    private static final int OPTIMISTIC_TRIES = 3;
+
+    private TaskTicker ticker = null;
+    private TaskSnapshot base = null;
+    private StampedLock lock = new StampedLock();
+
+    private int size = 0;
+    private int version = 0;
+    private int[] ids = null;
+    private int[] recs = null;
+    private long[] consumptions = null;
+    private double[] prices = null;
+    private String[] names = null;
+    private boolean[] running = null;
+    private long[] startTimes = null;
+
+    private LinkedHashMap<Integer, Task> cache = new LinkedHashMap<Integer, Task>(CACHE_SIZE * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Task> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Creates an empty store.
+     * @param ticker ticker assigned to the task views
+     */
+    public TaskStore(TaskTicker ticker) {
+        this.ticker = ticker;
+        allocate(16);
+    }
+
+    /**
+     * Replaces the content of the store by the tasks of the given snapshot.
+     * @param s snapshot; <CODE>null</CODE> makes the store empty
+     */
+    public void reset(TaskSnapshot s) {
+        cache.clear();
+        long stamp = lock.writeLock();
+        try {
+            base = s;
+            version++;
+
+            size = s == null ? 0 : s.getTaskCount();
+            allocate(Math.max(size, 16));
+            for (int i=0; i<size; i++) {
+                ids[i] = s.getId(i);
+                recs[i] = i;
+                consumptions[i] = s.getConsumption(i);
+                prices[i] = s.getPrice(i);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        if (size > 0)
+            Task.useId(ids[size - 1]);
+    }
+
+    /**
+     * Moves the names read from a snapshot onto another snapshot with
+     * the same names (the saved data). It is skipped if the store does
+     * not read the names from the expected snapshot (e.g. the data have
+     * been reloaded meanwhile).
+     * @param from snapshot the names are expected to be read from
+     * @param to snapshot the names are to be read from
+     */
+    public void rebase(TaskSnapshot from, TaskSnapshot to) {
+        if (base != from)
+            return;
+
+        long stamp = lock.writeLock();
+        try {
+            for (int i=0; i<size; i++) {
+                if (names[i] != null)
+                    continue;
+
+                int rec = to.find(ids[i]);
+                if (rec >= 0)
+                    recs[i] = rec;
+                else
+                    names[i] = base.getName(recs[i]).intern();
+            }
+            base = to;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the snapshot the names are read from.
+     * @return snapshot; <CODE>null</CODE> if there is none
+     */
+    TaskSnapshot getBase() {
+        return base;
+    }
+
+    /**
+     * Returns the number of tasks.
+     * @return task count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of task views held in memory.
+     * @return number of cached views
+     */
+    public int getResidentCount() {
+        return cache.size();
+    }
+
+    /**
+     * Returns the structural version of the store. It changes whenever
+     * rows are inserted or removed.
+     * @return version number
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the row of the task with the given identifier.
+     * @param id task identifier
+     * @return row index; -1 if there is no such task
+     */
+    public int find(int id) {
+        int row = Arrays.binarySearch(ids, 0, size, id);
+        return row < 0 ? -1 : row;
+    }
+
+    /**
+     * Returns the identifier of the task at the given row.
+     * @param row row index
+     * @return task identifier
+     */
+    public int getId(int row) {
+        check(row);
+        return ids[row];
+    }
+
+    /**
+     * Returns the current consumption of the task at the given row.
+     * For a running task it includes the time elapsed since its start.
+     * @param row row index
+     * @return time consumption [ms]
+     */
+    public long getConsumption(int row) {
+        check(row);
+        if (!running[row])
+            return consumptions[row];
+
+        return consumptions[row] + (System.nanoTime() - startTimes[row]) / 1000000L;
+    }
+
+    /**
+     * Returns the consumption of the task at the given row accumulated
+     * before it has been started last time.
+     * @param row row index
+     * @return base consumption [ms]
+     */
+    long getBaseConsumption(int row) {
+        check(row);
+        return consumptions[row];
+    }
+
+    /**
+     * Sets the consumption of the task at the given row. A running task
+     * continues to be tracked from the new value.
+     * @param row row index
+     * @param consumption new time consumption [ms]
+     */
+    public void setConsumption(int row, long consumption) {
+        check(row);
+        long stamp = lock.writeLock();
+        try {
+            consumptions[row] = consumption;
+            startTimes[row] = System.nanoTime();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the price of the task at the given row.
+     * @param row row index
+     * @return price per hour
+     */
+    public double getPrice(int row) {
+        check(row);
+        return prices[row];
+    }
+
+    /**
+     * Sets the price of the task at the given row.
+     * @param row row index
+     * @param price new price per hour
+     */
+    public void setPrice(int row, double price) {
+        check(row);
+        long stamp = lock.writeLock();
+        try {
+            prices[row] = price;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the name of the task at the given row.
+     * @param row row index
+     * @return task name
+     */
+    public String getName(int row) {
+        check(row);
+        String name = names[row];
+        return name != null ? name : base.getName(recs[row]);
+    }
+
+    /**
+     * Sets the name of the task at the given row.
+     * @param row row index
+     * @param name new task name
+     */
+    public void setName(int row, String name) {
+        check(row);
+        name = name.intern();
+        long stamp = lock.writeLock();
+        try {
+            names[row] = name;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Checks whether the task at the given row is running.
+     * @param row row index
+     * @return <CODE>true</CODE> for running task,
+     * <CODE>false</CODE> otherwise
+     */
+    public boolean isRunning(int row) {
+        check(row);
+        return running[row];
+    }
+
+    /**
+     * Returns the monotonic clock value when the task at the given row
+     * has been started.
+     * @param row row index
+     * @return start time [ns]
+     */
+    long getStartTime(int row) {
+        check(row);
+        return startTimes[row];
+    }
+
+    /**
+     * Returns the wall-clock time when the task at the given row
+     * has been started.
+     * @param row row index
+     * @return start time [ms since the epoch]; -1 if the task is not running
+     */
+    public long getRunningSince(int row) {
+        check(row);
+        if (!running[row])
+            return -1L;
+
+        return System.currentTimeMillis() - (System.nanoTime() - startTimes[row]) / 1000000L;
+    }
+
+    /**
+     * Marks the task at the given row as running. Registering the task
+     * with the ticker is left to the caller.
+     * @param row row index
+     * @return <CODE>true</CODE> if started, <CODE>false</CODE> if already running
+     */
+    boolean start(int row) {
+        check(row);
+        if (running[row])
+            return false;
+
+        long stamp = lock.writeLock();
+        try {
+            running[row] = true;
+            startTimes[row] = System.nanoTime();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return true;
+    }
+
+    /**
+     * Marks the task at the given row as stopped. The elapsed time is
+     * added to its consumption.
+     * @param row row index
+     * @return <CODE>true</CODE> if stopped, <CODE>false</CODE> if not running
+     */
+    boolean stop(int row) {
+        check(row);
+        if (!running[row])
+            return false;
+
+        long stamp = lock.writeLock();
+        try {
+            consumptions[row] = getConsumption(row);
+            running[row] = false;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the task at the given row.
+     * @param row row index
+     * @return task view
+     */
+    public Task get(int row) {
+        check(row);
+        Integer key = Integer.valueOf(ids[row]);
+        Task t = cache.get(key);
+        if (t == null) {
+            t = new Task(this, ids[row]);
+            t.setTicker(ticker);
+            cache.put(key, t);
+        }
+        return t;
+    }
+
+    /**
+     * Returns the task with the given identifier.
+     * @param id task identifier
+     * @return task view; <CODE>null</CODE> if there is no such task
+     */
+    public Task getById(int id) {
+        int row = find(id);
+        return row < 0 ? null : get(row);
+    }
+
+    /**
+     * Adds a task. It is inserted according to its identifier; the given
+     * instance becomes a view of the stored values.
+     * @param t detached task
+     * @return row index of the task
+     */
+    public int add(Task t) {
+        int row;
+        long stamp = lock.writeLock();
+        try {
+            row = insert(t.getId(), t.getName(), t.getBaseConsumption(), t.getPrice());
+            running[row] = t.isRunning();
+            startTimes[row] = t.getStartTime();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        t.bind(this);
+        t.setTicker(ticker);
+        cache.put(Integer.valueOf(t.getId()), t);
+        return row;
+    }
+
+    /**
+     * Adds a task which is not running, without creating a task instance.
+     * @param id task identifier
+     * @param name task name
+     * @param consumption time consumption [ms]
+     * @param price price per hour
+     * @return row index of the task
+     */
+    public int add(int id, String name, long consumption, double price) {
+        Task.useId(id);
+        long stamp = lock.writeLock();
+        try {
+            return insert(id, name, consumption, price);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the task at the given row. The cached view (if any) is
+     * detached, so it keeps the last values.
+     * @param row row index
+     */
+    public void remove(int row) {
+        check(row);
+        Task t = cache.remove(Integer.valueOf(ids[row]));
+        if (t != null) {
+            t.detach();
+            t.setTicker(null);
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            shift(row + 1, row, size - row - 1);
+            size--;
+            version++;
+            names[size] = null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the tasks at the given rows in one pass. The cached views
+     * (if any) are detached, so they keep the last values.
+     * @param rows row indices in ascending order, without duplicates
+     * @param cnt number of rows
+     */
+    public void remove(int[] rows, int cnt) {
+        for (int i=0; i<cnt; i++) {
+            check(rows[i]);
+            Task t = cache.remove(Integer.valueOf(ids[rows[i]]));
+            if (t != null) {
+                t.detach();
+                t.setTicker(null);
+            }
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            int to = rows[0];
+            for (int i=0; i<cnt; i++) {
+                int from = rows[i] + 1;
+                int len = (i + 1 < cnt ? rows[i + 1] : size) - from;
+                shift(from, to, len);
+                to += len;
+            }
+            for (int i=to; i<size; i++) {
+                names[i] = null;
+            }
+            size = to;
+            version++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the task with the given identifier.
+     * @param id task identifier
+     */
+    public void removeById(int id) {
+        int row = find(id);
+        if (row >= 0)
+            remove(row);
+    }
+
+    /**
+     * Reads the values of the task with the given identifier. It may be
+     * called by any thread.
+     * @param id task identifier
+     * @param r record where the values are stored to
+     * @return <CODE>true</CODE> if the task has been found,
+     * <CODE>false</CODE> otherwise
+     */
+    public boolean readById(int id, TaskRecord r) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                int row = Arrays.binarySearch(ids, 0, size, id);
+                boolean found = row >= 0 && read(row, r);
+                if (lock.validate(stamp)) {
+                    r.resolve();
+                    return found;
+                }
+            } catch (RuntimeException e) {
+                // inconsistent state, read again under the lock
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            int row = find(id);
+            boolean found = row >= 0 && read(row, r);
+            r.resolve();
+            return found;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Reads the values of consecutive tasks at once. It may be called
+     * by any thread; the records are consistent with each other. The rows
+     * are read optimistically; the lock is taken only if modifications
+     * keep interfering.
+     * @param start index of the first row
+     * @param out records where the values are stored to
+     * @return number of read records (0 if there are no more rows)
+     */
+    public int readRows(int start, TaskRecord[] out) {
+        for (int k=0; k<OPTIMISTIC_TRIES; k++) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0L)
+                continue;
+
+            try {
+                int cnt = copyRows(start, out);
+                if (lock.validate(stamp))
+                    return resolveRows(out, cnt);
+            } catch (RuntimeException e) {
+                // inconsistent state, read again
+            }
+        }
+
+        long stamp = lock.readLock();
+        try {
+            return resolveRows(out, copyRows(start, out));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private int copyRows(int start, TaskRecord[] out) {
+        int cnt = Math.max(0, Math.min(out.length, size - start));
+        for (int i=0; i<cnt; i++) {
+            read(start + i, out[i]);
+        }
+        return cnt;
+    }
+
+    private static int resolveRows(TaskRecord[] out, int cnt) {
+        for (int i=0; i<cnt; i++) {
+            out[i].resolve();
+        }
+        return cnt;
+    }
+
+    /**
+     * Copies the values of the given row. The name is left to be read
+     * from the snapshot by the caller.
+     */
+    private boolean read(int row, TaskRecord r) {
+        long since = -1L;
+        long cn = consumptions[row];
+        if (running[row]) {
+            long elapsed = (System.nanoTime() - startTimes[row]) / 1000000L;
+            cn += elapsed;
+            since = System.currentTimeMillis() - elapsed;
+        }
+
+        r.set(ids[row], names[row], base, recs[row], cn, prices[row], running[row], since);
+        return true;
+    }
+
+    private int insert(int id, String name, long consumption, double price) {
+        int row = size > 0 && ids[size - 1] < id ? -size - 1 : Arrays.binarySearch(ids, 0, size, id);
+        if (row >= 0)
+            throw new IllegalArgumentException("duplicate task identifier: " + id);
+
+        row = -row - 1;
+        if (size == ids.length)
+            grow();
+
+        shift(row, row + 1, size - row);
+        ids[row] = id;
+        recs[row] = -1;
+        consumptions[row] = consumption;
+        prices[row] = price;
+        names[row] = name.intern();
+        running[row] = false;
+        startTimes[row] = 0L;
+        size++;
+        version++;
+        return row;
+    }
+
+    private void allocate(int cap) {
+        ids = new int[cap];
+        recs = new int[cap];
+        consumptions = new long[cap];
+        prices = new double[cap];
+        names = new String[cap];
+        running = new boolean[cap];
+        startTimes = new long[cap];
+    }
+
+    private void grow() {
+        int cap = ids.length * 2;
+        ids = Arrays.copyOf(ids, cap);
+        recs = Arrays.copyOf(recs, cap);
+        consumptions = Arrays.copyOf(consumptions, cap);
+        prices = Arrays.copyOf(prices, cap);
+        names = Arrays.copyOf(names, cap);
+        running = Arrays.copyOf(running, cap);
+        startTimes = Arrays.copyOf(startTimes, cap);
+    }
+
+    private void shift(int from, int to, int len) {
+        System.arraycopy(ids, from, ids, to, len);
+        System.arraycopy(recs, from, recs, to, len);
+        System.arraycopy(consumptions, from, consumptions, to, len);
+        System.arraycopy(prices, from, prices, to, len);
+        System.arraycopy(names, from, names, to, len);
+        System.arraycopy(running, from, running, to, len);
+        System.arraycopy(startTimes, from, startTimes, to, len);
+    }
+
+    private void check(int row) {
+        if (row < 0 || row >= size)
+            throw new IndexOutOfBoundsException("row: " + row + ", size: " + size);
+    }
+
+}
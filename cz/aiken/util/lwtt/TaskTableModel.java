@@ -25,34 +25,185 @@ package cz.aiken.util.lwtt;
 
 import javax.swing.*;
 import javax.swing.table.*;
-import java.util.*;
 import java.io.*;
-import java.awt.event.*;
-import java.math.*;
-import java.text.*;
+import java.util.*;
+import java.util.concurrent.Executor;
 
 /**
- * This class represents the task table model.
+ * This class represents the task table model. It is an adapter which
+ * presents the tasks of the tracking engine to the task table. The rows
+ * are the positions in a sorted and filtered {@link TaskView}; they are
+ * converted to engine indices for all operations.
+ *
+ * If there is a header of the data saved last time (see
+ * {@link TaskHeader}), the table shows the cached tasks first and
+ * the engine loads the data on a background thread. Until the data are
+ * loaded the tasks cannot be changed and the engine callbacks are held
+ * back, so the engine is used by one thread at a time.
  * @author luk
  */
-public class TaskTableModel extends AbstractTableModel implements ActionListener {
+public class TaskTableModel extends AbstractTableModel implements TaskEngineListener {
     
-    private ArrayList<Task> tasks = new ArrayList<Task>();
-    private javax.swing.Timer timer = new javax.swing.Timer(300000, this);
-    
-    private MessageFormat timeFormat = new MessageFormat("{0,number}:{1,number,00}");
-    private MessageFormat priceFormat = new MessageFormat("{0,number}.{1,number,00}");
+    private TaskEngine engine = null;
+    private TaskView view = null;
+    private TableChangeBatch changes = new TableChangeBatch(this);
+    private TaskServer server = null;
+    private TaskCommandServer commands = null;
     
     private TaskFrame taskFrame = null;
     
+    private TaskHeader header = null;
+    private Thread loader = null;
+    private ArrayList<Runnable> deferred = new ArrayList<Runnable>();
+    private boolean loaded = false;
+    private boolean closed = false;
+    private String filter = "";
+    
     /**
-     * Creates a new instance of TaskTableModel
+     * Creates a new instance of TaskTableModel. If the header of the data
+     * can be read, the data are loaded in the background; otherwise they
+     * are loaded at once.
      * @param tf task frame instance
      */
     public TaskTableModel(TaskFrame tf) {
         taskFrame = tf;
-        loadFromFile();
-        timer.start();
+        File dir = TaskEngine.getDefaultDir();
+        engine = new TaskEngine(dir, new Executor() {
+            public void execute(Runnable r) {
+                synchronized (TaskTableModel.this) {
+                    if (deferred != null) {
+                        deferred.add(r);
+                        return;
+                    }
+                }
+                SwingUtilities.invokeLater(r);
+            }
+        });
+        changes.setLatencyHistogram(engine.getMetrics().getUpdateLatency());
+        view = new TaskView(engine);
+
+        File hf = TaskEngine.getHeaderPath(dir);
+        if (hf.exists()) {
+            try {
+                header = TaskHeader.load(hf);
+            } catch (IOException e) {
+                System.err.println("Cannot load data header (" + e.getLocalizedMessage() + ").");
+            }
+        }
+
+        if (header == null) {
+            openEngine();
+            taskFrame.setStartSettings(engine.getSettings());
+            loadFinished();
+            return;
+        }
+
+        taskFrame.setStartSettings(header.getSettings());
+        loader = new Thread("LWTT loader") {
+            @Override
+            public void run() {
+                openEngine();
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (!closed)
+                            loadFinished();
+                    }
+                });
+            }
+        };
+        loader.setDaemon(true);
+        loader.start();
+    }
+    
+    /**
+     * Opens the engine (which loads the data). Errors are shown on
+     * the event-dispatching thread.
+     */
+    private void openEngine() {
+        TaskEngineAdapter errors = new TaskEngineAdapter() {
+            @Override
+            public void errorOccurred(final String message) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        TaskTableModel.this.errorOccurred(message);
+                    }
+                });
+            }
+        };
+        engine.addListener(errors);
+        engine.open();
+        engine.removeListener(errors);
+    }
+    
+    /**
+     * Replaces the cached tasks by the loaded ones, passes the held back
+     * engine callbacks and starts the servers. The server of command
+     * line commands is always started, the HTTP server only if
+     * {@link TaskServer#PORT_PROPERTY} is set.
+     */
+    private void loadFinished() {
+        // keep the held callbacks ahead of the new ones
+        synchronized (this) {
+            for (int i=0; i<deferred.size(); i++) {
+                SwingUtilities.invokeLater(deferred.get(i));
+            }
+            deferred = null;
+        }
+        
+        loaded = true;
+        header = null;
+        view.addListener(this);
+        if (filter.length() > 0)
+            view.setFilter(filter);
+        fireTableDataChanged();
+        if (loader != null) {
+            loader = null;
+            taskFrame.loadFinished();
+        }
+        
+        commands = new TaskCommandServer(engine, TaskEngine.getSocketPath(engine.getDir()));
+        try {
+            commands.start();
+        } catch (IOException e) {
+            System.err.println("Cannot accept commands (" + e.getLocalizedMessage() + ").");
+        }
+        
+        int port = Integer.getInteger(TaskServer.PORT_PROPERTY, 0).intValue();
+        if (port > 0) {
+            server = new TaskServer(engine);
+            try {
+                server.start(port);
+            } catch (IOException e) {
+                server = null;
+                errorOccurred("Cannot start HTTP server (" + e.getLocalizedMessage() + ").");
+            }
+        }
+    }
+    
+    /**
+     * Returns the tracking engine.
+     * @return tracking engine
+     */
+    public TaskEngine getEngine() {
+        return engine;
+    }
+    
+    /**
+     * Checks whether the data have been loaded. Until then the table
+     * shows the cached tasks and the tasks cannot be changed.
+     * @return <CODE>true</CODE> if the data are loaded,
+     * <CODE>false</CODE> otherwise
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+    
+    /**
+     * Returns the header shown until the data are loaded.
+     * @return data header; <CODE>null</CODE> if the data are loaded
+     */
+    public TaskHeader getHeader() {
+        return header;
     }
 
     /**
@@ -63,17 +214,25 @@ public class TaskTableModel extends AbstractTableModel implements ActionListener
      * it returns <CODE>null</CODE>
      */
     public Object getValueAt(int rowIndex, int columnIndex) {
+        if (!loaded) {
+            switch (columnIndex) {
+                case 0:
+                    return header.getName(rowIndex);
+                case 1:
+                    return Task.formatConsumption(header.getConsumption(rowIndex));
+                case 2:
+                    return Task.formatPrice(header.getConsumption(rowIndex) / Task.UNITS_PER_HOUR * header.getPrice(rowIndex));
+                default: return null;
+            }
+        }
+        
         switch (columnIndex) {
             case 0:
-                return tasks.get(rowIndex).getName();
+                return getTask(rowIndex).getName();
             case 1:
-                long mins = tasks.get(rowIndex).getConsumption() / 60000;
-                BigDecimal hm[] = new BigDecimal((int) mins).divideAndRemainder(new BigDecimal(60));
-                return timeFormat.format(hm);
+                return getTask(rowIndex).getConsumptionText();
             case 2:
-                double tp = tasks.get(rowIndex).getTotalPrice();
-                BigDecimal pr[] = new BigDecimal(tp * 100).divideAndRemainder(new BigDecimal(100));
-                return priceFormat.format(pr);
+                return getTask(rowIndex).getTotalPriceText();
             default: return null;
         }
     }
@@ -83,7 +242,9 @@ public class TaskTableModel extends AbstractTableModel implements ActionListener
      * @return row count
      */
     public int getRowCount() {
-        return tasks.size();
+        if (!loaded)
+            return header == null ? 0 : header.getRowCount();
+        return view.size();
     }
 
     /**
@@ -103,8 +264,11 @@ public class TaskTableModel extends AbstractTableModel implements ActionListener
      */
     @Override
     public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
+        if (!loaded)
+            return;
+        
         switch (columnIndex) {
-            case 0: tasks.get(rowIndex).setName((String) aValue);
+            case 0: engine.setName(view.getIndex(rowIndex), (String) aValue);
                 break;
         }
     }
@@ -145,28 +309,44 @@ public class TaskTableModel extends AbstractTableModel implements ActionListener
      * Checks whether the given cell is editable.
      * @param rowIndex row index
      * @param columnIndex column index
-     * @return <CODE>true</CODE> for the first column (index 0),
-     * <CODE>false</CODE> otherwise
+     * @return <CODE>true</CODE> for the first column (index 0) once
+     * the data are loaded, <CODE>false</CODE> otherwise
      */
     @Override
     public boolean isCellEditable(int rowIndex, int columnIndex) {
-        return columnIndex == 0;
+        return loaded && columnIndex == 0;
     }
     
+    /**
+     * Returns the task at the given index.
+     * @param index task index
+     * @return task
+     */
     public Task getTask(int index) {
-        return tasks.get(index);
+        return engine.getTask(view.getIndex(index));
+    }
+    
+    /**
+     * Sets the price per hour of the given task.
+     * @param index task index
+     * @param price new price value
+     */
+    public void setPrice(int index, double price) {
+        if (!loaded)
+            return;
+        
+        engine.setPrice(view.getIndex(index), price);
     }
     
     /**
      * Creates a new task.
      */
     public void addNewTask() {
-        Task t = new Task();
-        t.setActionListener(this);
-        tasks.add(t);
+        if (!loaded)
+            return;
         
-        int row = tasks.size()-1;
-        fireTableRowsInserted(row, row);
+        changes.flush();
+        engine.addNewTask();
     }
     
     /**
@@ -175,13 +355,16 @@ public class TaskTableModel extends AbstractTableModel implements ActionListener
      * @param end end index (including)
      */
     public void removeTasks(int start, int end) {
-        for (int i=end; i>=start; i--) {
-            Task t = tasks.remove(i);
-            t.stop();
-            t.setActionListener(null);
-        }
+        if (!loaded)
+            return;
         
-        fireTableRowsDeleted(start, end);
+        changes.flush();
+        int[] ids = getIds(start, end);
+        int[] indices = new int[ids.length];
+        for (int i=0; i<ids.length; i++) {
+            indices[i] = engine.indexOf(ids[i]);
+        }
+        engine.removeTasks(indices);
     }
     
     /**
@@ -190,12 +373,14 @@ public class TaskTableModel extends AbstractTableModel implements ActionListener
      * @param end end index (including)
      */
     public void startTasks(int start, int end) {
-        for (int i=start; i<=end; i++) {
-            Task t = tasks.get(i);
-            t.start();
-            fireTableCellUpdated(i, 1);
-            fireTableCellUpdated(i, 2);
-        }        
+        if (!loaded)
+            return;
+        
+        int[] ids = getIds(start, end);
+        for (int i=0; i<ids.length; i++) {
+            int index = engine.indexOf(ids[i]);
+            engine.startTasks(index, index);
+        }
     }
     
     /**
@@ -204,11 +389,13 @@ public class TaskTableModel extends AbstractTableModel implements ActionListener
      * @param end end index (including)
      */
     public void stopTasks(int start, int end) {
-        for (int i=start; i<=end; i++) {
-            Task t = tasks.get(i);
-            t.stop();
-            fireTableCellUpdated(i, 1);
-            fireTableCellUpdated(i, 2);
+        if (!loaded)
+            return;
+        
+        int[] ids = getIds(start, end);
+        for (int i=0; i<ids.length; i++) {
+            int index = engine.indexOf(ids[i]);
+            engine.stopTasks(index, index);
         }
     }
     
@@ -216,167 +403,191 @@ public class TaskTableModel extends AbstractTableModel implements ActionListener
      * Stops all tasks.
      */
     public void stopAllTasks() {
-        Iterator<Task> it = tasks.iterator();
-        while (it.hasNext()) {
-            it.next().stop();
-        }
+        if (!loaded)
+            return;
         
-        fireTableDataChanged();
+        engine.stopAllTasks();
     }
     
     /**
      * Resets the given tasks.
      * @param start index of the first resetted task
-     * @param end index of the first NOT resetted task (the first task beyond the interval)
+     * @param end index of the last resetted task (including)
      */
     public void resetTasks(int start, int end) {
-        for (int i=start; i<=end; i++) {
-            Task t = tasks.get(i);
-            t.setConsumption(0);
-            fireTableCellUpdated(i, 1);
-            fireTableCellUpdated(i, 2);
+        if (!loaded)
+            return;
+        
+        int[] ids = getIds(start, end);
+        for (int i=0; i<ids.length; i++) {
+            int index = engine.indexOf(ids[i]);
+            engine.resetTasks(index, index);
         }
     }
     
     /**
-     * Destroys the timer controlling automatic data saving.
+     * Checks whether the given task is running.
+     * @param index task index
+     * @return <CODE>true</CODE> for running task,
+     * <CODE>false</CODE> otherwise
      */
-    public void cancelAutoSave() {
-        timer.stop();
+    public boolean isRunning(int index) {
+        if (!loaded)
+            return false;
+        return engine.isRunning(view.getIndex(index));
     }
     
     /**
-     * Returns the absolute path to the directory where LWTT data should be
-     * saved.
-     * @return directory path
+     * Returns the identifiers of the tasks in the given rows. Operations
+     * work with identifiers because the rows may move while they run.
+     * @param start first row
+     * @param end last row (including)
+     * @return task identifiers
      */
-    public static File getDir() {
-        Properties sys = System.getProperties();
-        return new File(sys.getProperty("user.home"), ".lwtt");
+    private int[] getIds(int start, int end) {
+        int[] ids = new int[end - start + 1];
+        for (int i=0; i<ids.length; i++) {
+            ids[i] = view.getId(start + i);
+        }
+        return ids;
     }
     
     /**
-     * Returns the absolute path to the file where LWTT data should be
-     * saved.
-     * @return absolute file path
+     * Sorts the rows by the given column.
+     * @param column column index; -1 for the creation order
+     * @param descending <CODE>true</CODE> for descending order
      */
-    public static File getPath() {
-        return new File(getDir(), "data.xml");
+    public void setSort(int column, boolean descending) {
+        if (!loaded)
+            return;
+        
+        changes.flush();
+        view.setSort(column, descending);
     }
     
     /**
-     * Checks whether the given task is running.
-     * @param index task index
-     * @return <CODE>true</CODE> for running task,
-     * <CODE>false</CODE> otherwise
+     * Returns the sort column.
+     * @return column index; -1 for the creation order
      */
-    public boolean isRunning(int index) {
-        return tasks.get(index).isRunning();
+    public int getSortColumn() {
+        return view.getSortColumn();
     }
     
     /**
-     * Loads application's data from the file.
+     * Checks whether the rows are sorted in descending order.
+     * @return <CODE>true</CODE> for descending, <CODE>false</CODE> for ascending order
      */
-    public synchronized void loadFromFile() {
-        tasks.clear();
-        
-        File file = getPath();
-        if (!file.exists()) {
-            Properties props = new Properties();
-            taskFrame.setStartSettings(props);
+    public boolean isDescending() {
+        return view.isDescending();
+    }
+    
+    /**
+     * Shows only the tasks whose names contain the given text. Until
+     * the data are loaded the text is only remembered.
+     * @param text filter text; empty for all tasks
+     */
+    public void setFilter(String text) {
+        filter = text;
+        if (!loaded)
             return;
-        }
         
-        try {
-            FileInputStream is = new FileInputStream(file);
-            Properties props = new Properties();
-            props.loadFromXML(is);
-            is.close();
-            
-            taskFrame.setStartSettings(props);
-            
-            Iterator<Object> it = props.keySet().iterator();
-            while (it.hasNext()) {
-                String key = (String) it.next();
-                if (key.endsWith(".name")) {
-                    String ids = key.substring(0, key.length() - 5);
-                    String name = props.getProperty(ids + ".name");
-                    String cons = props.getProperty(ids + ".consumption");
-                    String price = props.getProperty(ids + ".price", "1");
-                    try {
-                        int id = Integer.parseInt(ids);
-                        long cn = Long.parseLong(cons);
-                        double pr = Double.parseDouble(price);
-                        Task t = new Task(id, name, cn, pr);
-                        t.setActionListener(this);
-                        tasks.add(t);
-                    } catch (NumberFormatException e) {
-                        JOptionPane.showMessageDialog(null, "Cannot load data from file (bad format).", "Error", JOptionPane.ERROR_MESSAGE);
-                    }                    
-                }
-            }
-            
-            Collections.sort(tasks);
-            
-            fireTableDataChanged();
-            
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        changes.flush();
+        view.setFilter(text);
     }
     
     /**
-     * Saves application's data to the file.
+     * Stores the window geometry to the settings.
      */
-    public synchronized void saveToFile() {
-        File dir = getDir();
-        if (!dir.exists()) {
-            if (!dir.mkdir()) {
-                JOptionPane.showMessageDialog(null, "Cannot save data to file (cannot create data directory).", "Error", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
-        }
-        
-        Properties props = new Properties();
+    private void storeSettings() {
+        Properties props = engine.getSettings();
         props.setProperty("window.location.x", Integer.toString(taskFrame.getX()));
         props.setProperty("window.location.y", Integer.toString(taskFrame.getY()));
         props.setProperty("window.size.w", Integer.toString(taskFrame.getWidth()));
         props.setProperty("window.size.h", Integer.toString(taskFrame.getHeight()));
-        for (int i=0; i<tasks.size(); i++) {
-            Task t = tasks.get(i);
-            String id = Integer.toString(t.getId());
-            props.setProperty(id + ".name", t.getName());
-            props.setProperty(id + ".consumption", Long.toString(t.getConsumption()));
-            props.setProperty(id + ".price", Double.toString(t.getPrice()));
+    }
+    
+    /**
+     * Saves application's data to the file. Only the data snapshot is
+     * taken by the caller; the file is written on the background thread.
+     */
+    public void saveToFile() {
+        storeSettings();
+        engine.save();
+    }
+    
+    /**
+     * Stops the servers, saves the data and waits until all pending data
+     * are written. No data can be saved after this call.
+     */
+    public void close() {
+        if (loader != null) {
+            try {
+                loader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
+        closed = true;
         
-        try {
-            FileOutputStream os = new FileOutputStream(getPath());
-            props.storeToXML(os, "LWTT task data");
-            os.close();
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(null, "Cannot save data to file (" + e.getLocalizedMessage() + ").", "Error", JOptionPane.ERROR_MESSAGE);
-        }
+        if (server != null)
+            server.stop();
+        if (commands != null)
+            commands.stop();
+        storeSettings();
+        engine.close();
     }
-
+    
     /**
-     * Processes an action event.
-     * 
-     * If the event has been generated by the auto-save timer it saves
-     * the data. Otherwise (a button action occurred) it updates
-     * the appropriate table cell.
-     * @param e action event
-     */
-    public void actionPerformed(ActionEvent e) {
-        Object src = e.getSource();
-        if (src == timer) {
-            saveToFile();
-        }
-        else {
-            int row = tasks.indexOf(src);
-            fireTableCellUpdated(row, 1);
-            fireTableCellUpdated(row, 2);
-        }
+     * Updates the whole table after the tasks have been reloaded.
+     */
+    public void tasksReloaded() {
+        changes.clear();
+        fireTableDataChanged();
+    }
+    
+    /**
+     * Updates the table after tasks have been inserted.
+     * @param start index of the first inserted task
+     * @param end index of the last inserted task (including)
+     */
+    public void tasksInserted(int start, int end) {
+        changes.rowsInserted(start, end);
+        fireTableRowsInserted(start, end);
+    }
+    
+    /**
+     * Updates the table after tasks have been removed.
+     * @param start former index of the first removed task
+     * @param end former index of the last removed task (including)
+     */
+    public void tasksRemoved(int start, int end) {
+        changes.rowsRemoved(start, end);
+        fireTableRowsDeleted(start, end);
+    }
+    
+    /**
+     * Marks the rows of changed tasks for repainting. The changes are
+     * passed to the table in one batch.
+     * @param start index of the first changed task
+     * @param end index of the last changed task (including)
+     */
+    public void tasksUpdated(int start, int end) {
+        changes.rowsUpdated(start, end);
+    }
+    
+    /**
+     * Does nothing; the row is repainted as an updated one.
+     * @param index index of the renamed task
+     */
+    public void taskRenamed(int index) {
+    }
+    
+    /**
+     * Shows an error message.
+     * @param message error message
+     */
+    public void errorOccurred(String message) {
+        JOptionPane.showMessageDialog(null, message, "Error", JOptionPane.ERROR_MESSAGE);
     }
     
 }
@@ -0,0 +1,153 @@
+/*
+ * TaskTicker.java - shared time source for running tasks
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class provides a single repaint timer for all running tasks.
+ * Tasks compute their consumption from the clock, so a tick only
+ * calls the tick handler once, regardless of how many tasks are running.
+ *
+ * The timer runs on the given scheduler, but the tick handler is always
+ * called through the given executor (e.g. on the event-dispatching
+ * thread). A tick is skipped if the previous one has not been handled yet.
+ * @author luk
+ */
+public class TaskTicker implements Runnable {
+
+    private LinkedHashSet<Task> running = new LinkedHashSet<Task>();
+    private Runnable handler = null;
+
+    private ScheduledExecutorService scheduler = null;
+    private Executor executor = null;
+    private ScheduledFuture<?> future = null;
+    private AtomicBoolean pending = new AtomicBoolean(false);
+    private int period = 0;
+    private volatile long postTime = 0L;
+    private LatencyHistogram dispatchLatency = null;
+
+    private Runnable tick = new Runnable() {
+        public void run() {
+            pending.set(false);
+            if (dispatchLatency != null)
+                dispatchLatency.recordSince(postTime);
+            tick();
+        }
+    };
+
+    /**
+     * Creates a new ticker.
+     * @param period tick period [ms]
+     * @param scheduler scheduler running the timer
+     * @param executor executor calling the tick handler
+     */
+    public TaskTicker(int period, ScheduledExecutorService scheduler, Executor executor) {
+        this.period = period;
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the handler called on each tick.
+     * @param r tick handler
+     */
+    public void setTickHandler(Runnable r) {
+        handler = r;
+    }
+
+    /**
+     * Sets the histogram where the delays between posting ticks to
+     * the executor and their processing are recorded. The delays show
+     * how long the event thread is blocked.
+     * @param h histogram
+     */
+    public void setDispatchLatency(LatencyHistogram h) {
+        dispatchLatency = h;
+    }
+
+    /**
+     * Registers a running task. The timer is started with the first
+     * registered task.
+     * @param t task
+     */
+    public void add(Task t) {
+        if (!running.add(t))
+            return;
+
+        if (future == null)
+            future = scheduler.scheduleAtFixedRate(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Unregisters a task. The timer is stopped when no task is running.
+     * @param t task
+     */
+    public void remove(Task t) {
+        if (!running.remove(t))
+            return;
+
+        if (running.isEmpty() && future != null) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    /**
+     * Returns the running tasks.
+     * @return unmodifiable collection of running tasks
+     */
+    public Collection<Task> getRunningTasks() {
+        return Collections.unmodifiableCollection(running);
+    }
+
+    /**
+     * Returns the number of running tasks.
+     * @return running task count
+     */
+    public int getRunningCount() {
+        return running.size();
+    }
+
+    /**
+     * Passes the tick to the executor. It is called by the scheduler.
+     */
+    public void run() {
+        if (pending.compareAndSet(false, true)) {
+            postTime = System.nanoTime();
+            executor.execute(tick);
+        }
+    }
+
+    /**
+     * Calls the tick handler.
+     */
+    public void tick() {
+        if (handler != null)
+            handler.run();
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ * TaskTotals.java - aggregated totals over all tasks
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * This class maintains the total time consumption and total price over
+ * all tasks, both overall and per price rate. The totals are updated
+ * incrementally when a task is added, removed or changed; they are never
+ * computed by scanning the tasks.
+ *
+ * Running tasks need no updates on ticks: an aggregate keeps the sum of
+ * the start times of its running tasks, so the time elapsed by all of them
+ * is derived from the current clock value in constant time.
+ *
+ * A task must be removed from the totals before it is changed and added
+ * again afterwards.
+ *
+ * The totals are updated by the engine's event thread, but they may be
+ * read by any thread without blocking: the aggregates are kept in
+ * a concurrent map and each aggregate is read optimistically (and read
+ * again if it has been updated meanwhile), so a reader never sees
+ * a partially updated aggregate.
+ * @author luk
+ */
+public class TaskTotals {
+
+    /**
+     * This class represents the aggregated values of a set of tasks.
+     */
+    public static class Aggregate {
+        private StampedLock lock = new StampedLock();
+        private int count = 0;
+        private long base = 0L;
+        private int runningCount = 0;
+        private long startSum = 0L;
+        private double priceBase = 0;
+        private double runningPrice = 0;
+        private double priceStartSum = 0;
+
+        /**
+         * Returns the number of tasks.
+         * @return task count
+         */
+        public int getCount() {
+            long stamp = lock.tryOptimisticRead();
+            int c = count;
+            if (lock.validate(stamp))
+                return c;
+
+            stamp = lock.readLock();
+            try {
+                return count;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Returns the number of running tasks.
+         * @return running task count
+         */
+        public int getRunningCount() {
+            long stamp = lock.tryOptimisticRead();
+            int c = runningCount;
+            if (lock.validate(stamp))
+                return c;
+
+            stamp = lock.readLock();
+            try {
+                return runningCount;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Returns the total time consumption.
+         * @param now current monotonic clock value [ns]
+         * @return total consumption [ms]
+         */
+        long getConsumption(long now) {
+            long stamp = lock.tryOptimisticRead();
+            long b = base;
+            int rc = runningCount;
+            long ss = startSum;
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    b = base;
+                    rc = runningCount;
+                    ss = startSum;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return b + (rc * now - ss) / 1000000L;
+        }
+
+        /**
+         * Returns the total price.
+         * @param now current monotonic clock value [ns]
+         * @param origin clock origin of the totals [ns]
+         * @return total price [currency unit]
+         */
+        double getTotalPrice(long now, long origin) {
+            long stamp = lock.tryOptimisticRead();
+            double pb = priceBase;
+            double rp = runningPrice;
+            double pss = priceStartSum;
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    pb = priceBase;
+                    rp = runningPrice;
+                    pss = priceStartSum;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+
+            double ms = (now - origin) / 1000000.0;
+            return (pb + rp * ms - pss) / Task.UNITS_PER_HOUR;
+        }
+
+        /**
+         * Adds (sign 1) or removes (sign -1) the contribution of a task.
+         * @param t task
+         * @param sign 1 or -1
+         * @param origin clock origin of the totals [ns]
+         */
+        void update(Task t, int sign, long origin) {
+            long bc = t.getBaseConsumption();
+            double price = t.getPrice();
+            boolean running = t.isRunning();
+            long st = t.getStartTime();
+
+            long stamp = lock.writeLock();
+            try {
+                count += sign;
+                base += sign * bc;
+                priceBase += sign * price * bc;
+
+                if (running) {
+                    runningCount += sign;
+                    startSum += sign * st;
+                    runningPrice += sign * price;
+                    priceStartSum += sign * price * ((st - origin) / 1000000.0);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Adds (sign 1) or removes (sign -1) the contribution of a task
+         * which is not running.
+         * @param bc task consumption [ms]
+         * @param price task price
+         * @param sign 1 or -1
+         */
+        void update(long bc, double price, int sign) {
+            long stamp = lock.writeLock();
+            try {
+                count += sign;
+                base += sign * bc;
+                priceBase += sign * price * bc;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    private long origin = System.nanoTime();
+    private volatile Aggregate total = new Aggregate();
+    private ConcurrentSkipListMap<Double, Aggregate> rates = new ConcurrentSkipListMap<Double, Aggregate>();
+
+    /**
+     * Creates empty totals.
+     */
+    public TaskTotals() {
+    }
+
+    /**
+     * Removes all tasks from the totals.
+     */
+    public void clear() {
+        total = new Aggregate();
+        rates.clear();
+    }
+
+    /**
+     * Adds a task to the totals.
+     * @param t task
+     */
+    public void add(Task t) {
+        total.update(t, 1, origin);
+
+        Double key = Double.valueOf(t.getPrice());
+        Aggregate a = rates.get(key);
+        if (a == null) {
+            a = new Aggregate();
+            rates.put(key, a);
+        }
+        a.update(t, 1, origin);
+    }
+
+    /**
+     * Adds a stored task which is not running to the totals. No task
+     * instance is needed.
+     * @param consumption task consumption [ms]
+     * @param price task price
+     */
+    public void add(long consumption, double price) {
+        total.update(consumption, price, 1);
+
+        Double key = Double.valueOf(price);
+        Aggregate a = rates.get(key);
+        if (a == null) {
+            a = new Aggregate();
+            rates.put(key, a);
+        }
+        a.update(consumption, price, 1);
+    }
+
+    /**
+     * Removes a task from the totals.
+     * @param t task
+     */
+    public void remove(Task t) {
+        total.update(t, -1, origin);
+
+        Double key = Double.valueOf(t.getPrice());
+        Aggregate a = rates.get(key);
+        if (a != null) {
+            a.update(t, -1, origin);
+            if (a.getCount() == 0)
+                rates.remove(key);
+        }
+    }
+
+    /**
+     * Returns the number of tasks.
+     * @return task count
+     */
+    public int getTaskCount() {
+        return total.getCount();
+    }
+
+    /**
+     * Returns the number of running tasks.
+     * @return running task count
+     */
+    public int getRunningCount() {
+        return total.getRunningCount();
+    }
+
+    /**
+     * Returns the total time consumption of all tasks.
+     * @return total consumption [ms]
+     */
+    public long getConsumption() {
+        return total.getConsumption(System.nanoTime());
+    }
+
+    /**
+     * Returns the total price of all tasks.
+     * @return total price [currency unit]
+     */
+    public double getTotalPrice() {
+        return total.getTotalPrice(System.nanoTime(), origin);
+    }
+
+    /**
+     * Returns the price rates used by at least one task.
+     * @return ascending price rates
+     */
+    public double[] getPriceRates() {
+        ArrayList<Double> keys = new ArrayList<Double>(rates.keySet());
+        double[] res = new double[keys.size()];
+        for (int i=0; i<res.length; i++) {
+            res[i] = keys.get(i).doubleValue();
+        }
+        return res;
+    }
+
+    /**
+     * Returns the aggregate of the tasks with the given price rate.
+     * @param price price rate
+     * @return aggregate; <CODE>null</CODE> if no task has this rate
+     */
+    public Aggregate getRate(double price) {
+        return rates.get(Double.valueOf(price));
+    }
+
+    /**
+     * Returns the total time consumption of the tasks with the given
+     * price rate.
+     * @param price price rate
+     * @return total consumption [ms]
+     */
+    public long getConsumption(double price) {
+        Aggregate a = getRate(price);
+        return a == null ? 0L : a.getConsumption(System.nanoTime());
+    }
+
+    /**
+     * Returns the total price of the tasks with the given price rate.
+     * @param price price rate
+     * @return total price [currency unit]
+     */
+    public double getTotalPrice(double price) {
+        Aggregate a = getRate(price);
+        return a == null ? 0 : a.getTotalPrice(System.nanoTime(), origin);
+    }
+
+}
@@ -0,0 +1,584 @@
+/*
+ * TaskView.java - sorted and filtered view of the tracked tasks
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.util.*;
+
+/**
+ * This class represents a sorted and filtered view of the engine's tasks.
+ * The view keeps the identifiers of the visible tasks in the sort order,
+ * together with a precomputed sort key of each task, so a changed task
+ * is moved to its new position by a binary search instead of sorting
+ * the whole view again. This also applies to running tasks on each tick.
+ *
+ * The filter selects tasks whose names contain the given text (case
+ * insensitive). If the filter text is extended (typed further) only
+ * the currently visible tasks are checked; otherwise the candidates
+ * are found by a {@link TaskNameIndex}, which is built on first use.
+ *
+ * The view listens to the engine and passes the changes to its own
+ * listeners, with indices converted to view positions.
+ *
+ * <I>The view may be used only by the engine's event thread.</I>
+ * @author luk
+ */
+public class TaskView implements TaskEngineListener {
+
+    /**
+     * sorting by task identifiers (creation order)
+     */
+    public static final int BY_ID = -1;
+
+    /**
+     * sorting by task names
+     */
+    public static final int BY_NAME = 0;
+
+    /**
+     * sorting by time consumption
+     */
+    public static final int BY_CONSUMPTION = 1;
+
+    /**
+     * sorting by total price
+     */
+    public static final int BY_PRICE = 2;
+
+    private TaskEngine engine = null;
+
+    private int column = BY_ID;
+    private boolean descending = false;
+    private String filter = "";
+    private TaskNameIndex nameIndex = null;
+
+    private int size = 0;
+    private int[] ids = new int[16];
+    private double[] numKeys = new double[16];
+    private String[] strKeys = new String[16];
+    private TaskRowIndex positions = new TaskRowIndex();
+
+    private ArrayList<TaskEngineListener> listeners = new ArrayList<TaskEngineListener>();
+
+    /**
+     * Creates a view of the given engine's tasks. It must be created
+     * before the engine loads the data.
+     * @param engine tracking engine
+     */
+    public TaskView(TaskEngine engine) {
+        this.engine = engine;
+        engine.addListener(this);
+    }
+
+    /**
+     * Adds a listener.
+     * @param l listener
+     */
+    public void addListener(TaskEngineListener l) {
+        listeners.add(l);
+    }
+
+    /**
+     * Removes a listener.
+     * @param l listener
+     */
+    public void removeListener(TaskEngineListener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Returns the number of visible tasks.
+     * @return task count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the identifier of the task at the given position.
+     * @param pos view position
+     * @return task identifier
+     */
+    public int getId(int pos) {
+        if (pos < 0 || pos >= size)
+            throw new IndexOutOfBoundsException("position: " + pos + ", size: " + size);
+
+        return ids[pos];
+    }
+
+    /**
+     * Returns the engine index of the task at the given position.
+     * @param pos view position
+     * @return task index
+     */
+    public int getIndex(int pos) {
+        return engine.indexOf(getId(pos));
+    }
+
+    /**
+     * Returns the position of the task with the given identifier.
+     * @param id task identifier
+     * @return view position; -1 if the task is not visible
+     */
+    public int getPosition(int id) {
+        return positions.get(id);
+    }
+
+    /**
+     * Returns the sort column.
+     * @return one of {@link #BY_ID}, {@link #BY_NAME},
+     * {@link #BY_CONSUMPTION} and {@link #BY_PRICE}
+     */
+    public int getSortColumn() {
+        return column;
+    }
+
+    /**
+     * Checks whether the tasks are sorted in descending order.
+     * @return <CODE>true</CODE> for descending, <CODE>false</CODE> for ascending order
+     */
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * Sets the sort order.
+     * @param column sort column
+     * @param descending <CODE>true</CODE> for descending order
+     */
+    public void setSort(int column, boolean descending) {
+        if (column == this.column && descending == this.descending)
+            return;
+
+        this.column = column;
+        this.descending = descending;
+        build(Arrays.copyOf(ids, size), size, false);
+        fireReloaded();
+    }
+
+    /**
+     * Returns the filter text.
+     * @return lower-case filter text; empty if no filter is applied
+     */
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * Sets the filter text. Only the tasks whose names contain the text
+     * remain visible.
+     * @param text filter text; empty for no filter
+     */
+    public void setFilter(String text) {
+        String f = TaskNameIndex.fold(text.trim());
+        if (f.equals(filter))
+            return;
+
+        boolean refine = f.indexOf(filter) >= 0;
+        filter = f;
+        if (refine) {
+            build(Arrays.copyOf(ids, size), size, true);
+        }
+        else if (f.length() >= TaskNameIndex.GRAM) {
+            int[] cand = getNameIndex().find(f);
+            build(cand, cand.length, column == BY_ID && !descending);
+        }
+        else {
+            buildAll();
+        }
+
+        fireReloaded();
+    }
+
+    /**
+     * Rebuilds the view after the tasks have been reloaded.
+     */
+    public void tasksReloaded() {
+        nameIndex = null;
+        buildAll();
+        fireReloaded();
+    }
+
+    /**
+     * Adds the inserted tasks to the view (if they match the filter).
+     * @param start index of the first inserted task
+     * @param end index of the last inserted task (including)
+     */
+    public void tasksInserted(int start, int end) {
+        for (int i=start; i<=end; i++) {
+            int id = engine.getId(i);
+            if (nameIndex != null)
+                nameIndex.add(id, TaskNameIndex.fold(engine.getName(i)));
+
+            if (matches(i)) {
+                int pos = insert(id, i);
+                fireInserted(pos, pos);
+            }
+        }
+    }
+
+    /**
+     * Removes the tasks which are no longer contained in the engine.
+     * The view is compacted in one pass; the removed positions are
+     * reported in contiguous ranges, from the last one.
+     * @param start former index of the first removed task
+     * @param end former index of the last removed task (including)
+     */
+    public void tasksRemoved(int start, int end) {
+        int[] removed = new int[size];
+        int cnt = 0;
+        int to = 0;
+        for (int pos=0; pos<size; pos++) {
+            int id = ids[pos];
+            if (engine.indexOf(id) < 0) {
+                positions.remove(id);
+                removed[cnt++] = pos;
+                continue;
+            }
+
+            if (to < pos) {
+                ids[to] = id;
+                numKeys[to] = numKeys[pos];
+                strKeys[to] = strKeys[pos];
+                positions.put(id, to);
+            }
+            to++;
+        }
+        for (int pos=to; pos<size; pos++) {
+            strKeys[pos] = null;
+        }
+        size = to;
+
+        int i = cnt - 1;
+        while (i >= 0) {
+            int last = removed[i];
+            while (i > 0 && removed[i - 1] == removed[i] - 1) {
+                i--;
+            }
+            fireRemoved(removed[i], last);
+            i--;
+        }
+    }
+
+    /**
+     * Moves the changed tasks to their new positions and applies
+     * the filter to them.
+     * @param start index of the first changed task
+     * @param end index of the last changed task (including)
+     */
+    public void tasksUpdated(int start, int end) {
+        for (int i=start; i<=end; i++) {
+            int id = engine.getId(i);
+            int pos = positions.get(id);
+            if (!matches(i)) {
+                if (pos >= 0) {
+                    remove(pos);
+                    fireRemoved(pos, pos);
+                }
+            }
+            else if (pos < 0) {
+                pos = insert(id, i);
+                fireInserted(pos, pos);
+            }
+            else {
+                int np = reposition(pos, i);
+                fireUpdated(Math.min(pos, np), Math.max(pos, np));
+            }
+        }
+    }
+
+    /**
+     * Adds the new name of the task to the name index.
+     * @param index index of the renamed task
+     */
+    public void taskRenamed(int index) {
+        if (nameIndex != null)
+            nameIndex.add(engine.getId(index), TaskNameIndex.fold(engine.getName(index)));
+    }
+
+    /**
+     * Passes the error message to the listeners.
+     * @param message error message
+     */
+    public void errorOccurred(String message) {
+        for (int i=0; i<listeners.size(); i++) {
+            listeners.get(i).errorOccurred(message);
+        }
+    }
+
+    /**
+     * Returns the name index. It is built on first use.
+     * @return name index
+     */
+    private TaskNameIndex getNameIndex() {
+        if (nameIndex == null) {
+            nameIndex = new TaskNameIndex();
+            int cnt = engine.getTaskCount();
+            for (int i=0; i<cnt; i++) {
+                nameIndex.add(engine.getId(i), TaskNameIndex.fold(engine.getName(i)));
+            }
+        }
+
+        return nameIndex;
+    }
+
+    /**
+     * Builds the view from all tasks of the engine.
+     */
+    private void buildAll() {
+        int cnt = engine.getTaskCount();
+        int[] cand = new int[cnt];
+        for (int i=0; i<cnt; i++) {
+            cand[i] = engine.getId(i);
+        }
+        build(cand, cnt, column == BY_ID && !descending);
+    }
+
+    /**
+     * Builds the view from the given candidate tasks. Candidates which
+     * do not exist or do not match the filter are left out.
+     * @param cand candidate identifiers
+     * @param cnt candidate count
+     * @param sorted <CODE>true</CODE> if the candidates are already in
+     * the sort order
+     */
+    private void build(int[] cand, int cnt, boolean sorted) {
+        size = 0;
+        ensureCapacity(cnt);
+        for (int i=0; i<cnt; i++) {
+            int index = engine.indexOf(cand[i]);
+            if (index < 0 || !matches(index))
+                continue;
+
+            ids[size] = cand[i];
+            setKey(size, index);
+            size++;
+        }
+
+        if (!sorted)
+            sort();
+
+        positions.clear();
+        for (int i=0; i<size; i++) {
+            positions.put(ids[i], i);
+        }
+    }
+
+    /**
+     * Sorts the view according to the precomputed keys. The positions
+     * are sorted by a merge sort, which is stable and needs no boxing.
+     */
+    private void sort() {
+        int[] perm = new int[size];
+        for (int i=0; i<size; i++) {
+            perm[i] = i;
+        }
+        mergeSort(perm, new int[size], 0, size);
+
+        int[] nids = new int[ids.length];
+        double[] nnum = new double[ids.length];
+        String[] nstr = new String[ids.length];
+        for (int i=0; i<size; i++) {
+            int k = perm[i];
+            nids[i] = ids[k];
+            nnum[i] = numKeys[k];
+            nstr[i] = strKeys[k];
+        }
+        ids = nids;
+        numKeys = nnum;
+        strKeys = nstr;
+    }
+
+    private void mergeSort(int[] a, int[] tmp, int from, int to) {
+        if (to - from < 2)
+            return;
+
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid);
+        mergeSort(a, tmp, mid, to);
+        if (compare(a[mid - 1], a[mid]) <= 0)
+            return;
+
+        System.arraycopy(a, from, tmp, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k=from; k<to; k++) {
+            if (j >= to || (i < mid && compare(tmp[i], tmp[j]) <= 0))
+                a[k] = tmp[i++];
+            else
+                a[k] = tmp[j++];
+        }
+    }
+
+    /**
+     * Inserts a task at the position given by its sort key.
+     * @param id task identifier
+     * @param index engine index of the task
+     * @return view position
+     */
+    private int insert(int id, int index) {
+        ensureCapacity(size + 1);
+        ids[size] = id;
+        setKey(size, index);
+        double nk = numKeys[size];
+        String sk = strKeys[size];
+
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(numKeys[mid], strKeys[mid], ids[mid], nk, sk, id) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        System.arraycopy(ids, lo, ids, lo + 1, size - lo);
+        System.arraycopy(numKeys, lo, numKeys, lo + 1, size - lo);
+        System.arraycopy(strKeys, lo, strKeys, lo + 1, size - lo);
+        ids[lo] = id;
+        numKeys[lo] = nk;
+        strKeys[lo] = sk;
+        size++;
+
+        for (int i=lo; i<size; i++) {
+            positions.put(ids[i], i);
+        }
+        return lo;
+    }
+
+    /**
+     * Removes the task at the given position.
+     * @param pos view position
+     */
+    private void remove(int pos) {
+        positions.remove(ids[pos]);
+        System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+        System.arraycopy(numKeys, pos + 1, numKeys, pos, size - pos - 1);
+        System.arraycopy(strKeys, pos + 1, strKeys, pos, size - pos - 1);
+        size--;
+        strKeys[size] = null;
+
+        for (int i=pos; i<size; i++) {
+            positions.put(ids[i], i);
+        }
+    }
+
+    /**
+     * Updates the sort key of the task at the given position and moves
+     * the task if the order has changed.
+     * @param pos view position
+     * @param index engine index of the task
+     * @return new view position
+     */
+    private int reposition(int pos, int index) {
+        int id = ids[pos];
+        setKey(pos, index);
+        if ((pos == 0 || compare(pos - 1, pos) < 0) && (pos == size - 1 || compare(pos, pos + 1) < 0))
+            return pos;
+
+        remove(pos);
+        return insert(id, index);
+    }
+
+    /**
+     * Computes the sort key of the task at the given position.
+     * @param pos view position
+     * @param index engine index of the task
+     */
+    private void setKey(int pos, int index) {
+        switch (column) {
+            case BY_NAME:
+                strKeys[pos] = TaskNameIndex.fold(engine.getName(index));
+                break;
+            case BY_CONSUMPTION:
+                numKeys[pos] = engine.getConsumption(index);
+                break;
+            case BY_PRICE:
+                numKeys[pos] = engine.getConsumption(index) / Task.UNITS_PER_HOUR * engine.getPrice(index);
+                break;
+            default:
+                numKeys[pos] = ids[pos];
+        }
+    }
+
+    private boolean matches(int index) {
+        if (filter.length() == 0)
+            return true;
+
+        String name = engine.getName(index);
+        int len = filter.length();
+        for (int i=0; i+len<=name.length(); i++) {
+            if (name.regionMatches(true, i, filter, 0, len))
+                return true;
+        }
+        return false;
+    }
+
+    private int compare(int p1, int p2) {
+        return compare(numKeys[p1], strKeys[p1], ids[p1], numKeys[p2], strKeys[p2], ids[p2]);
+    }
+
+    private int compare(double n1, String s1, int id1, double n2, String s2, int id2) {
+        int c = column == BY_NAME ? s1.compareTo(s2) : Double.compare(n1, n2);
+        if (c == 0)
+            c = id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+
+        return descending ? -c : c;
+    }
+
+    private void ensureCapacity(int cap) {
+        if (cap <= ids.length)
+            return;
+
+        int n = Math.max(cap, ids.length * 2);
+        ids = Arrays.copyOf(ids, n);
+        numKeys = Arrays.copyOf(numKeys, n);
+        strKeys = Arrays.copyOf(strKeys, n);
+    }
+
+    private void fireReloaded() {
+        for (int i=0; i<listeners.size(); i++) {
+            listeners.get(i).tasksReloaded();
+        }
+    }
+
+    private void fireInserted(int start, int end) {
+        for (int i=0; i<listeners.size(); i++) {
+            listeners.get(i).tasksInserted(start, end);
+        }
+    }
+
+    private void fireRemoved(int start, int end) {
+        for (int i=0; i<listeners.size(); i++) {
+            listeners.get(i).tasksRemoved(start, end);
+        }
+    }
+
+    private void fireUpdated(int start, int end) {
+        for (int i=0; i<listeners.size(); i++) {
+            listeners.get(i).tasksUpdated(start, end);
+        }
+    }
+
+}
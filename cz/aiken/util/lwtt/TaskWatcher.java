@@ -0,0 +1,116 @@
+/*
+ * TaskWatcher.java - data directory watcher
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * This class watches a file in the data directory for changes made
+ * by other processes. It runs a background thread waiting for file system
+ * events; whenever the file is created or modified the handler is called
+ * (on the watcher thread). Events coming in a burst are reported once.
+ * @author luk
+ */
+public class TaskWatcher implements Runnable {
+
+    private File file = null;
+    private Runnable handler = null;
+    private WatchService service = null;
+    private Thread thread = null;
+
+    /**
+     * Creates a new watcher.
+     * @param file watched file
+     * @param handler change handler
+     */
+    public TaskWatcher(File file, Runnable handler) {
+        this.file = file.getAbsoluteFile();
+        this.handler = handler;
+    }
+
+    /**
+     * Starts watching.
+     * @throws IOException if the directory cannot be watched
+     */
+    public void start() throws IOException {
+        if (service != null)
+            return;
+
+        service = FileSystems.getDefault().newWatchService();
+        file.getParentFile().toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = new Thread(this, "LWTT watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void stop() {
+        if (service == null)
+            return;
+
+        try {
+            service.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        service = null;
+    }
+
+    /**
+     * Waits for the file system events and calls the handler.
+     */
+    public void run() {
+        WatchService ws = service;
+        Path name = file.toPath().getFileName();
+        try {
+            while (true) {
+                WatchKey key = ws.take();
+                boolean changed = false;
+                do {
+                    List<WatchEvent<?>> events = key.pollEvents();
+                    for (int i=0; i<events.size(); i++) {
+                        WatchEvent<?> e = events.get(i);
+                        if (e.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(e.context()))
+                            changed = true;
+                    }
+                    key.reset();
+                    key = ws.poll();
+                } while (key != null);
+
+                if (changed)
+                    handler.run();
+            }
+        } catch (InterruptedException e) {
+            // finished
+        } catch (ClosedWatchServiceException e) {
+            // finished
+        }
+    }
+
+}
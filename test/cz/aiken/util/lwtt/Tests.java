@@ -0,0 +1,1904 @@
+/*
+ * Tests.java - functional tests of LWTT
+ *
+ * Copyright (c) 2006, 2007, 2008 Lukas Jelinek, http://www.aiken.cz
+ *
+ * ==========================================================================
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License Version 2 as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * ==========================================================================
+ */
+
+package cz.aiken.util.lwtt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.swing.SwingUtilities;
+import javax.swing.event.*;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * This class runs functional tests of LWTT. It needs no display and is
+ * started by <CODE>make test</CODE>.
+ *
+ * Each test works in its own temporary data directory. The failed tests
+ * are printed and the exit status is non-zero if any test fails.
+ * The optional argument is a substring of the test names to run.
+ * @author luk
+ */
+public class Tests {
+
+    /**
+     * This class represents a single test.
+     */
+    abstract static class Test {
+        String name = null;
+        File dir = null;
+
+        Test(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Runs the test.
+         * @throws Exception if the test fails
+         */
+        abstract void run() throws Exception;
+    }
+
+    /**
+     * Checks the given condition.
+     * @param cond condition
+     * @param msg message describing the failure
+     */
+    static void check(boolean cond, String msg) {
+        if (!cond)
+            throw new AssertionError(msg);
+    }
+
+    /**
+     * Runs the given code by the given executor and waits until it finishes.
+     * @param ex executor
+     * @param r code to run
+     * @throws Exception if the code fails
+     */
+    static void call(ExecutorService ex, Runnable r) throws Exception {
+        ex.submit(r).get();
+    }
+
+    /**
+     * Reads the whole file.
+     * @param file file
+     * @return file content
+     * @throws IOException if the file cannot be read
+     */
+    static byte[] read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] b = new byte[(int) file.length()];
+            in.readFully(b);
+            return b;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Creates the read-only export test. The data of a running instance
+     * (a snapshot and a non-empty journal) are exported by another engine
+     * and the data files must stay unchanged.
+     * @return test
+     */
+    static Test exportReadOnly() {
+        return new Test("export.readOnly") {
+            void run() throws Exception {
+                ExecutorService exA = Executors.newSingleThreadExecutor();
+                final TaskEngine a = new TaskEngine(dir, exA);
+                call(exA, new Runnable() {
+                    public void run() {
+                        a.open();
+                        a.addNewTask();
+                        a.setName(0, "Saved task");
+                        a.save();
+                        a.addNewTask();
+                        a.setName(1, "Journaled task");
+                        a.flush();
+                    }
+                });
+
+                File[] files = new File[] {
+                    TaskEngine.getPath(dir),
+                    TaskEngine.getJournalPath(dir),
+                    TaskEngine.getLockPath(dir),
+                    TaskEngine.getHeaderPath(dir)
+                };
+                try {
+                    check(files[1].length() > 0, "journal is empty");
+                    byte[][] before = new byte[files.length][];
+                    for (int i=0; i<files.length; i++) {
+                        before[i] = read(files[i]);
+                    }
+
+                    ExecutorService exB = Executors.newSingleThreadExecutor();
+                    final TaskEngine b = new TaskEngine(dir, exB);
+                    b.setReadOnly(true);
+                    StringWriter w = new StringWriter();
+                    try {
+                        call(exB, new Runnable() {
+                            public void run() {
+                                b.open();
+                            }
+                        });
+                        TaskExporter exp = new TaskExporter();
+                        exp.export(b, w);
+                    } finally {
+                        call(exB, new Runnable() {
+                            public void run() {
+                                b.close();
+                            }
+                        });
+                        exB.shutdown();
+                    }
+
+                    String out = w.toString();
+                    check(out.indexOf("Saved task") >= 0, "snapshot task not exported");
+                    check(out.indexOf("Journaled task") >= 0, "journal task not exported");
+                    for (int i=0; i<files.length; i++) {
+                        check(Arrays.equals(before[i], read(files[i])), files[i].getName() + " has been changed");
+                    }
+                } finally {
+                    call(exA, new Runnable() {
+                        public void run() {
+                            a.close();
+                        }
+                    });
+                    exA.shutdown();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the reload test. The data are reloaded (as if changes
+     * of another instance have been missed) while a task is running;
+     * it must keep running without losing the tracked time.
+     * @return test
+     */
+    static Test reloadRunning() {
+        return new Test("reload.running") {
+            void run() throws Exception {
+                ExecutorService ex = Executors.newSingleThreadExecutor();
+                final TaskEngine e = new TaskEngine(dir, ex);
+                call(ex, new Runnable() {
+                    public void run() {
+                        e.open();
+                        e.addNewTask();
+                        e.startTasks(0, 0);
+                        e.checkpoint();
+                    }
+                });
+
+                try {
+                    Thread.sleep(200);
+
+                    final long[] res = new long[3];
+                    call(ex, new Runnable() {
+                        public void run() {
+                            res[0] = e.getConsumption(0);
+                            e.load();
+                            res[1] = e.isRunning(0) ? 1 : 0;
+                            res[2] = e.getConsumption(0);
+                        }
+                    });
+                    check(res[1] == 1, "task stopped by reload");
+                    // the consumption is tracked in whole milliseconds
+                    check(res[2] + 1 >= res[0], "tracked time lost (" + res[0] + " ms before, " + res[2] + " ms after)");
+                } finally {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.close();
+                        }
+                    });
+                    ex.shutdown();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the identifier test. More tasks than fit into a reserved
+     * block of identifiers are added, then another engine adds a task;
+     * all identifiers must be unique.
+     * @return test
+     */
+    static Test uniqueIds() {
+        return new Test("ids.unique") {
+            void run() throws Exception {
+                final HashSet<Integer> ids = new HashSet<Integer>();
+                final int cnt = 2 * TaskEngine.ID_BLOCK + 10;
+                for (int n=0; n<2; n++) {
+                    ExecutorService ex = Executors.newSingleThreadExecutor();
+                    final TaskEngine e = new TaskEngine(dir, ex);
+                    final int add = n == 0 ? cnt : 1;
+                    try {
+                        call(ex, new Runnable() {
+                            public void run() {
+                                e.open();
+                                for (int i=0; i<add; i++) {
+                                    ids.add(Integer.valueOf(e.addNewTask().getId()));
+                                }
+                            }
+                        });
+                    } finally {
+                        call(ex, new Runnable() {
+                            public void run() {
+                                e.close();
+                            }
+                        });
+                        ex.shutdown();
+                    }
+                }
+                check(ids.size() == cnt + 1, "identifiers not unique");
+            }
+        };
+    }
+
+    /**
+     * Creates the legacy import test. Each task with malformed entries
+     * (or a negative identifier) must be skipped and reported once.
+     * @return test
+     */
+    static Test legacyErrors() {
+        return new Test("legacy.errors") {
+            void run() throws Exception {
+                File file = new File(dir, "data.xml");
+                Properties p = new Properties();
+                p.setProperty("1.name", "Good task");
+                p.setProperty("1.consumption", "1000");
+                p.setProperty("1.price", "2.5");
+                p.setProperty("2.name", "Bad consumption");
+                p.setProperty("2.consumption", "x");
+                p.setProperty("3.name", "Bad price");
+                p.setProperty("3.consumption", "1000");
+                p.setProperty("3.price", "x");
+                p.setProperty("-1.name", "Negative identifier");
+                p.setProperty("-1.consumption", "1000");
+                p.setProperty("4.name", "No consumption");
+                OutputStream os = new FileOutputStream(file);
+                try {
+                    p.storeToXML(os, null);
+                } finally {
+                    os.close();
+                }
+
+                TaskStore store = new TaskStore(null);
+                LegacyImporter li = new LegacyImporter(file);
+                li.load(store);
+
+                check(store.size() == 1, store.size() + " tasks imported");
+                check(li.getErrorCount() == 4, li.getErrorSummary());
+                String msg = li.getErrorSummary();
+                String[] keys = { "2.consumption", "3.price", "-1.", "4.consumption" };
+                for (int i=0; i<keys.length; i++) {
+                    int pos = msg.indexOf(keys[i]);
+                    check(pos >= 0 && msg.indexOf(keys[i], pos + 1) < 0, msg);
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the view test. Tasks are removed from a sorted and filtered
+     * view at once (in a Turkish locale, where the lower case of I is not
+     * i); the view must keep the remaining tasks in the sort order.
+     * @return test
+     */
+    static Test viewRemove() {
+        return new Test("view.remove") {
+            void run() throws Exception {
+                ExecutorService ex = Executors.newSingleThreadExecutor();
+                final TaskEngine e = new TaskEngine(dir, ex);
+                final TaskView view = new TaskView(e);
+                final Locale locale = Locale.getDefault();
+                final String[] res = new String[1];
+                Locale.setDefault(new Locale("tr", "TR"));
+                try {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.open();
+                            for (int i=0; i<20; i++) {
+                                e.addNewTask();
+                                e.setName(i, (i % 2 == 0 ? "TITLE " : "other ") + (char) ('a' + i));
+                            }
+                            view.setSort(TaskView.BY_NAME, true);
+                            view.setFilter("other");
+                            view.setFilter("title");
+
+                            int[] indices = new int[] { 0, 8, 4, 12, 14, 3 };
+                            e.removeTasks(indices);
+
+                            StringBuilder sb = new StringBuilder();
+                            for (int pos=0; pos<view.size(); pos++) {
+                                int id = view.getId(pos);
+                                if (view.getPosition(id) != pos)
+                                    sb.append("bad position ");
+                                sb.append(e.getName(view.getIndex(pos)).charAt(6));
+                            }
+                            res[0] = sb.toString();
+                        }
+                    });
+                } finally {
+                    Locale.setDefault(locale);
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.close();
+                        }
+                    });
+                    ex.shutdown();
+                }
+                check(res[0].equals("sqkgc"), res[0]);
+            }
+        };
+    }
+
+    /**
+     * Creates the view filter test. The filter must find the same tasks
+     * through the name index as by comparing the names (also for
+     * characters whose lower case is longer), and renamed tasks must be
+     * found by their new names.
+     * @return test
+     */
+    static Test viewFilter() {
+        return new Test("view.filter") {
+            void run() throws Exception {
+                ExecutorService ex = Executors.newSingleThreadExecutor();
+                final TaskEngine e = new TaskEngine(dir, ex);
+                final TaskView view = new TaskView(e);
+                final int[] res = new int[3];
+                try {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.open();
+                            e.addNewTask();
+                            e.setName(0, "\u0130stanbul trip");
+                            e.addNewTask();
+                            e.setName(1, "Other");
+                            view.setFilter("is");
+                            res[0] = view.size();
+                            view.setFilter("ist");
+                            res[1] = view.size();
+                            e.setName(1, "Mistral");
+                            view.setFilter("xyz");
+                            view.setFilter("str");
+                            res[2] = view.size();
+                        }
+                    });
+                } finally {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.close();
+                        }
+                    });
+                    ex.shutdown();
+                }
+                check(res[0] == 1 && res[1] == 1, "filter found " + res[0] + " and " + res[1] + " tasks");
+                check(res[2] == 1, "renamed task not found");
+            }
+        };
+    }
+
+    /**
+     * Creates the table change test. Rows are inserted and removed while
+     * row updates are collected; the updates must be passed with
+     * the moved row indices.
+     * @return test
+     */
+    static Test tableChanges() {
+        return new Test("table.changes") {
+            void run() throws Exception {
+                final ArrayList<String> events = new ArrayList<String>();
+                final AbstractTableModel model = new AbstractTableModel() {
+                    private static final long serialVersionUID = 1L;
+                    public int getRowCount() {
+                        return 20;
+                    }
+                    public int getColumnCount() {
+                        return 1;
+                    }
+                    public Object getValueAt(int row, int col) {
+                        return null;
+                    }
+                };
+                model.addTableModelListener(new TableModelListener() {
+                    public void tableChanged(TableModelEvent e) {
+                        events.add(e.getFirstRow() + "-" + e.getLastRow());
+                    }
+                });
+
+                SwingUtilities.invokeAndWait(new Runnable() {
+                    public void run() {
+                        TableChangeBatch b = new TableChangeBatch(model);
+                        b.rowsUpdated(5, 6);
+                        b.rowsInserted(2, 3);
+                        b.flush();
+                        b.rowsUpdated(5, 8);
+                        b.rowsRemoved(6, 7);
+                        b.flush();
+                        b.rowsUpdated(5, 6);
+                        b.rowsRemoved(4, 8);
+                        b.flush();
+                    }
+                });
+                check(events.toString().equals("[7-8, 5-6]"), events.toString());
+            }
+        };
+    }
+
+    /**
+     * Creates the journal test. Framed records, a torn record and
+     * an unframed record are replayed; the replay must stop at the first
+     * invalid record and cut it off, so the next records are read.
+     * @return test
+     */
+    static Test journalTornTail() {
+        return new Test("journal.tornTail") {
+            void run() throws Exception {
+                File file = new File(dir, "journal.bin");
+                byte[] name = "Unframed task".getBytes("UTF-8");
+                ByteBuffer unframed = ByteBuffer.allocate(5 + 4 + name.length + 16);
+                unframed.put(TaskJournal.ADD);
+                unframed.putInt(1);
+                unframed.putInt(name.length);
+                unframed.put(name);
+                unframed.putLong(1000L);
+                unframed.putDouble(1);
+
+                Task t = new Task(2, "New task", 2000L, 1);
+                byte[] torn = TaskJournal.taskAdded(new Task(3, "Torn task", 0L, 1));
+                torn[torn.length - 1]++;
+
+                TaskJournal j = new TaskJournal(file);
+                j.open();
+                try {
+                    j.write(TaskJournal.taskAdded(t));
+                    t.setName("Renamed task");
+                    j.write(TaskJournal.nameChanged(t));
+                    j.write(torn);
+                    j.write(new byte[] { 0, 0, 0, 9, 42 });
+
+                    TaskStore store = new TaskStore(null);
+                    int cnt = j.replay(store);
+                    check(cnt == 2, cnt + " records replayed");
+                    check(store.size() == 1, store.size() + " tasks replayed");
+                    check(store.getName(store.find(2)).equals("Renamed task"), "name change not replayed");
+
+                    j.write(unframed.array());
+                    store = new TaskStore(null);
+                    cnt = j.replay(store);
+                    check(cnt == 2 && store.find(1) < 0, "unframed record replayed");
+
+                    j.write(TaskJournal.taskRemoved(t));
+                    store = new TaskStore(null);
+                    cnt = j.replay(store);
+                    check(cnt == 3 && store.find(2) < 0, "record after the invalid one not replayed");
+                } finally {
+                    j.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the damaged data test. A data file with a bad format must
+     * be set aside and the previous generation loaded; a data file which
+     * cannot be read (here a directory) must be kept and not overwritten.
+     * @return test
+     */
+    static Test damagedData() {
+        return new Test("data.damaged") {
+            void run() throws Exception {
+                File data = TaskEngine.getPath(dir);
+                File prev = TaskPersister.getPreviousPath(data);
+                File damaged = new File(data.getPath() + ".damaged");
+                ArrayList<Task> l = new ArrayList<Task>();
+                l.add(new Task(1, "Previous task", 0L, 1));
+                new TaskSnapshot(new Properties(), l).save(prev);
+
+                FileOutputStream os = new FileOutputStream(data);
+                try {
+                    os.write("garbage garbage garbage".getBytes("UTF-8"));
+                } finally {
+                    os.close();
+                }
+                check(load(dir) == 1, "previous generation not loaded");
+                check(damaged.exists(), "damaged file not set aside");
+
+                delete(dir);
+                dir.mkdirs();
+                new TaskSnapshot(new Properties(), l).save(prev);
+                data.mkdir();
+                check(load(dir) == 0, "previous generation loaded");
+                check(data.isDirectory() && !damaged.exists(), "unreadable file replaced");
+            }
+        };
+    }
+
+    /**
+     * Creates the lock failure test. A lock which cannot lock the file
+     * must not be held afterwards, and an engine which cannot lock
+     * the data files must not write the data file.
+     * @return test
+     */
+    static Test lockFailure() {
+        return new Test("lock.failure") {
+            void run() throws Exception {
+                File file = TaskEngine.getLockPath(dir);
+                TaskLock a = new TaskLock(file);
+                TaskLock b = new TaskLock(file);
+                a.open();
+                b.open();
+                try {
+                    a.lock();
+                    boolean failed = false;
+                    try {
+                        b.lock();
+                    } catch (IOException e) {
+                        failed = true;
+                    }
+                    check(failed && !b.isHeld(), "lock held without the file lock");
+                    a.unlock();
+
+                    b.lock();
+                    failed = false;
+                    try {
+                        a.lock();
+                    } catch (IOException e) {
+                        failed = true;
+                    }
+                    check(failed, "file not locked after a failure");
+                    b.unlock();
+                } finally {
+                    a.close();
+                    b.close();
+                }
+
+                ExecutorService ex = Executors.newSingleThreadExecutor();
+                final TaskEngine e = new TaskEngine(dir, ex);
+                final ArrayList<String> errors = new ArrayList<String>();
+                e.addListener(new TaskEngineAdapter() {
+                    @Override
+                    public void errorOccurred(String message) {
+                        errors.add(message);
+                    }
+                });
+                TaskLock other = new TaskLock(file);
+                try {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.open();
+                            e.addNewTask();
+                            e.save();
+                            e.flush();
+                        }
+                    });
+                    File data = TaskEngine.getPath(dir);
+                    byte[] before = read(data);
+
+                    other.open();
+                    other.lock();
+                    try {
+                        call(ex, new Runnable() {
+                            public void run() {
+                                e.addNewTask();
+                                e.save();
+                                e.flush();
+                            }
+                        });
+                        call(ex, new Runnable() {
+                            public void run() {
+                            }
+                        });
+                        check(Arrays.equals(before, read(data)), "data file written without the lock");
+                        check(errors.size() > 0, "failure not reported");
+                    } finally {
+                        other.unlock();
+                    }
+                } finally {
+                    other.close();
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.close();
+                        }
+                    });
+                    ex.shutdown();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the session order test. Intervals are appended out of
+     * order (as after setting the clock back); the log must keep them
+     * ordered by the end time, also when it is loaded again, and the range
+     * totals must match the sums of the intervals.
+     * @return test
+     */
+    static Test sessionOrder() {
+        return new Test("sessions.order") {
+            void run() throws Exception {
+                File file = TaskEngine.getSessionPath(dir);
+                long[][] l = {
+                    { 1, 1000, 5000 }, { 2, 6000, 9000 }, { 1, 10000, 20000 },
+                    { 2, 2000, 3000 }, { 1, 21000, 22000 }, { 2, 500, 800 }
+                };
+                SessionLog log = new SessionLog(file);
+                log.open();
+                for (int i=0; i<l.length; i++) {
+                    log.write(log.append((int) l[i][0], l[i][1], l[i][2]));
+                }
+
+                for (int n=0; n<2; n++) {
+                    for (int i=1; i<log.size(); i++) {
+                        check(log.getEnd(i - 1) <= log.getEnd(i), "intervals not ordered");
+                    }
+                    long[][] ranges = { { 0, 30000 }, { 2500, 7000 }, { 700, 1500 }, { 15000, 21500 } };
+                    for (int i=0; i<ranges.length; i++) {
+                        long from = ranges[i][0];
+                        long to = ranges[i][1];
+                        long sum = 0L;
+                        for (int k=0; k<l.length; k++) {
+                            if (l[k][0] == 1)
+                                sum += Math.max(0L, Math.min(l[k][2], to) - Math.max(l[k][1], from));
+                        }
+                        long total = log.getTotal(1, from, to);
+                        check(total == sum, "total " + total + " ms instead of " + sum + " ms (" + from + "-" + to + ")");
+                    }
+
+                    log.close();
+                    log = new SessionLog(file);
+                    log.open();
+                }
+                log.close();
+            }
+        };
+    }
+
+    /**
+     * Creates the report test. Intervals of two tasks are logged in
+     * the last week (one of them crossing the start of the week);
+     * the report of the last two weeks must show the time tracked
+     * by each task in each week.
+     * @return test
+     */
+    static Test reportWeeks() {
+        return new Test("report.weeks") {
+            void run() throws Exception {
+                ExecutorService ex = Executors.newSingleThreadExecutor();
+                final TaskEngine e = new TaskEngine(dir, ex);
+                final int[] ids = new int[2];
+                try {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.open();
+                            ids[0] = e.addNewTask().getId();
+                            e.setName(0, "Alpha");
+                            ids[1] = e.addNewTask().getId();
+                            e.setName(1, "Beta");
+                        }
+                    });
+                } finally {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.close();
+                        }
+                    });
+                    ex.shutdown();
+                }
+
+                long now = System.currentTimeMillis();
+                long week = SessionLog.getCalendarBounds(now, now, Calendar.WEEK_OF_YEAR)[0];
+                Calendar c = Calendar.getInstance();
+                c.setTimeInMillis(week);
+                c.add(Calendar.WEEK_OF_YEAR, -1);
+                long last = c.getTimeInMillis();
+                long hour = 3600000L;
+
+                SessionLog log = new SessionLog(TaskEngine.getSessionPath(dir));
+                log.open();
+                try {
+                    log.write(log.append(ids[0], last - hour / 2, last + hour / 2));
+                    log.write(log.append(ids[0], last + hour, last + 3 * hour));
+                    log.write(log.append(ids[1], week - 2 * hour, week - hour / 2));
+                    log.write(log.append(ids[1] + 1000, last + hour, last + 2 * hour));
+                } finally {
+                    log.close();
+                }
+
+                ex = Executors.newSingleThreadExecutor();
+                final TaskEngine r = new TaskEngine(dir, ex);
+                r.setReadOnly(true);
+                final TaskCommand cmd = TaskCommand.parse(new String[] { "report", "-p", "week", "-n", "2" });
+                final TaskCommand.Result[] res = new TaskCommand.Result[1];
+                try {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            r.open();
+                            res[0] = cmd.execute(r);
+                        }
+                    });
+                } finally {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            r.close();
+                        }
+                    });
+                    ex.shutdown();
+                }
+
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                PrintStream ps = new PrintStream(os, true, "UTF-8");
+                res[0].print(ps);
+                String out = os.toString("UTF-8");
+                java.text.SimpleDateFormat df = new java.text.SimpleDateFormat("yyyy-MM-dd");
+                String expected = "Week from " + df.format(new Date(last)) + ": 4:00\n"
+                        + ids[0] + "\t2:30\tAlpha\n"
+                        + ids[1] + "\t1:30\tBeta\n"
+                        + "Week from " + df.format(new Date(week)) + ": 0:00\n";
+                check(out.replace(System.lineSeparator(), "\n").equals(expected), out);
+            }
+        };
+    }
+
+    /**
+     * Creates the snapshot version test. A snapshot without the checksum
+     * trailer (as the unreleased version 1 wrote it) must be rejected.
+     * @return test
+     */
+    static Test snapshotVersion() {
+        return new Test("snapshot.version") {
+            void run() throws Exception {
+                File file = TaskEngine.getPath(dir);
+                ArrayList<Task> l = new ArrayList<Task>();
+                l.add(new Task(1, "Task", 0L, 1));
+                new TaskSnapshot(new Properties(), l).save(file);
+                TaskSnapshot.load(file);
+
+                byte[] b = read(file);
+                ByteBuffer.wrap(b).putInt(4, 1);
+                FileOutputStream os = new FileOutputStream(file);
+                try {
+                    os.write(b, 0, b.length - 4);
+                } finally {
+                    os.close();
+                }
+
+                boolean rejected = false;
+                try {
+                    TaskSnapshot.load(file);
+                } catch (TaskSnapshot.BadFormatException e) {
+                    rejected = true;
+                }
+                check(rejected, "snapshot without checksum loaded");
+            }
+        };
+    }
+
+    /**
+     * Creates the rebase test. A store reading the names from a loaded
+     * snapshot is rebased onto the saved one; the names must not change
+     * and the loaded snapshot must be released. An engine must keep
+     * no data file open or mapped after saving.
+     * @return test
+     */
+    static Test storeRebase() {
+        return new Test("store.rebase") {
+            void run() throws Exception {
+                File file = TaskEngine.getPath(dir);
+                ArrayList<Task> l = new ArrayList<Task>();
+                for (int i=0; i<5; i++) {
+                    l.add(new Task(i * 2, "Task " + i, 0L, 1));
+                }
+                new TaskSnapshot(new Properties(), l).save(file);
+
+                TaskStore store = new TaskStore(null);
+                TaskSnapshot first = TaskSnapshot.load(file);
+                store.reset(first);
+                store.setName(1, "Renamed");
+                store.removeById(4);
+                store.add(new Task(5, "Added", 0L, 1));
+
+                TaskSnapshot s = new TaskSnapshot(new Properties(), store);
+                s.save(file);
+                TaskSnapshot loaded = TaskSnapshot.load(file);
+                store.rebase(s.getSource(), loaded);
+                check(store.getBase() == loaded, "store not rebased");
+                String[] names = { "Task 0", "Renamed", "Added", "Task 3", "Task 4" };
+                for (int i=0; i<names.length; i++) {
+                    check(store.getName(i).equals(names[i]), store.getName(i) + " instead of " + names[i]);
+                }
+                store.rebase(first, TaskSnapshot.load(file));
+                check(store.getBase() == loaded, "store rebased from another snapshot");
+
+                File maps = new File("/proc/self/maps");
+                if (!maps.exists())
+                    return;
+
+                ExecutorService ex = Executors.newSingleThreadExecutor();
+                final TaskEngine e = new TaskEngine(dir, ex);
+                try {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.open();
+                            e.addNewTask();
+                            e.save();
+                            e.flush();
+                        }
+                    });
+                    BufferedReader in = new BufferedReader(new FileReader(maps));
+                    try {
+                        String line = null;
+                        while ((line = in.readLine()) != null) {
+                            check(line.indexOf(dir.getPath()) < 0, "data file mapped: " + line);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                } finally {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.close();
+                        }
+                    });
+                    ex.shutdown();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the command server test. Clients which connect and send
+     * nothing occupy all workers; a command must still be performed
+     * and the stalled connections must be closed.
+     * @return test
+     */
+    static Test commandStall() {
+        return new Test("commands.stall") {
+            void run() throws Exception {
+                ExecutorService ex = Executors.newSingleThreadExecutor();
+                final TaskEngine e = new TaskEngine(dir, ex);
+                File socket = TaskEngine.getSocketPath(dir);
+                TaskCommandServer server = new TaskCommandServer(e, socket);
+                SocketChannel[] idle = new SocketChannel[TaskCommandServer.THREADS];
+                try {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.open();
+                            e.addNewTask();
+                            e.setName(0, "Alpha");
+                        }
+                    });
+                    check(server.start(), "server not started");
+                    for (int i=0; i<idle.length; i++) {
+                        idle[i] = SocketChannel.open(UnixDomainSocketAddress.of(socket.toPath()));
+                    }
+
+                    long t0 = System.nanoTime();
+                    TaskCommand.Result res = TaskCommand.parse(new String[] { "list" }).send(socket);
+                    long t = (System.nanoTime() - t0) / 1000000L;
+                    check(res.getError() == null, res.getError());
+                    check(t < TaskCommandServer.READ_TIMEOUT + 2000L, "command took " + t + " ms");
+
+                    for (int i=0; i<idle.length; i++) {
+                        int n = idle[i].read(ByteBuffer.allocate(16));
+                        check(n < 0, "stalled connection not closed");
+                    }
+                } finally {
+                    for (int i=0; i<idle.length; i++) {
+                        if (idle[i] != null)
+                            idle[i].close();
+                    }
+                    server.stop();
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.close();
+                        }
+                    });
+                    ex.shutdown();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the header test. A header with a task name and a setting
+     * longer than 65535 bytes must be saved and loaded.
+     * @return test
+     */
+    static Test headerLongNames() {
+        return new Test("header.longNames") {
+            void run() throws Exception {
+                StringBuilder sb = new StringBuilder();
+                for (int i=0; i<30000; i++) {
+                    sb.append("\u010d\u0161");
+                }
+                String name = sb.toString();
+
+                TaskStore store = new TaskStore(null);
+                store.add(new Task(1, name, 1000L, 2));
+                TaskTotals totals = new TaskTotals();
+                totals.add(1000L, 2);
+                Properties p = new Properties();
+                p.setProperty("long", name);
+
+                File file = TaskEngine.getHeaderPath(dir);
+                new TaskHeader(p, store, totals).save(file);
+                TaskHeader h = TaskHeader.load(file);
+                check(h.getRowCount() == 1 && h.getName(0).equals(name), "name not loaded");
+                check(name.equals(h.getSettings().getProperty("long")), "setting not loaded");
+                check(h.getTaskCount() == 1 && h.getConsumption(0) == 1000L, "values not loaded");
+            }
+        };
+    }
+
+    /**
+     * Creates the ticker test. Many running tasks share one timer; the
+     * ticks are not queued up while the executor is blocked and they
+     * stop when no task is running.
+     * @return test
+     */
+    static Test tickerShared() {
+        return new Test("ticker.shared") {
+            void run() throws Exception {
+                ScheduledExecutorService sched = Executors.newSingleThreadScheduledExecutor();
+                ExecutorService ex = Executors.newSingleThreadExecutor();
+                final int[] ticks = new int[1];
+                TaskTicker tt = new TaskTicker(10, sched, ex);
+                tt.setTickHandler(new Runnable() {
+                    public void run() {
+                        ticks[0]++;
+                    }
+                });
+
+                try {
+                    Task[] tasks = new Task[100];
+                    for (int i=0; i<tasks.length; i++) {
+                        tasks[i] = new Task(i + 1, "Task " + i, 0L, 0.0);
+                        tasks[i].setTicker(tt);
+                        tasks[i].start();
+                    }
+                    check(tt.getRunningCount() == tasks.length, tt.getRunningCount() + " tasks running");
+
+                    final CountDownLatch blocked = new CountDownLatch(1);
+                    final CountDownLatch release = new CountDownLatch(1);
+                    ex.execute(new Runnable() {
+                        public void run() {
+                            ticks[0] = 0;
+                            blocked.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+                    blocked.await();
+                    Thread.sleep(200);
+                    release.countDown();
+                    final int[] res = new int[1];
+                    call(ex, new Runnable() {
+                        public void run() {
+                            res[0] = ticks[0];
+                        }
+                    });
+                    check(res[0] >= 1 && res[0] <= 2, res[0] + " ticks after the executor has been blocked");
+
+                    for (int i=0; i<tasks.length; i++) {
+                        tasks[i].stop();
+                    }
+                    check(tt.getRunningCount() == 0, tt.getRunningCount() + " tasks running");
+                    Thread.sleep(50);
+                    call(ex, new Runnable() {
+                        public void run() {
+                            ticks[0] = 0;
+                        }
+                    });
+                    Thread.sleep(100);
+                    call(ex, new Runnable() {
+                        public void run() {
+                            res[0] = ticks[0];
+                        }
+                    });
+                    check(res[0] == 0, res[0] + " ticks without running tasks");
+                } finally {
+                    sched.shutdownNow();
+                    ex.shutdown();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the consumption test. The consumption of a running task
+     * follows the clock, not the tick period, both for a standalone task
+     * and for a task in the store; a stopped task is not tracked.
+     * @return test
+     */
+    static Test wallClock() {
+        return new Test("consumption.wallClock") {
+            void run() throws Exception {
+                Task t = new Task(1, "Standalone", 1000L, 0.0);
+                TaskStore store = new TaskStore(null);
+                store.add(2, "Stored", 1000L, 0.0);
+                long start = System.nanoTime();
+                t.start();
+                store.start(0);
+                Thread.sleep(300);
+                long[] cons = { t.getConsumption(), store.getConsumption(0) };
+                long elapsed = (System.nanoTime() - start) / 1000000L;
+                for (int i=0; i<cons.length; i++) {
+                    check(cons[i] >= 1300L && cons[i] <= 1000L + elapsed, cons[i] + " ms tracked in " + elapsed + " ms");
+                }
+
+                t.stop();
+                store.stop(0);
+                cons[0] = t.getConsumption();
+                cons[1] = store.getConsumption(0);
+                Thread.sleep(50);
+                check(t.getConsumption() == cons[0], "stopped task still tracked");
+                check(store.getConsumption(0) == cons[1], "stopped stored task still tracked");
+            }
+        };
+    }
+
+    /**
+     * Creates the snapshot test. A large store is saved and loaded again;
+     * the loaded store must read all values from the snapshot without
+     * creating task views.
+     * @return test
+     */
+    static Test snapshotRoundTrip() {
+        return new Test("snapshot.roundTrip") {
+            void run() throws Exception {
+                final int cnt = 5000;
+                TaskStore store = new TaskStore(null);
+                for (int i=0; i<cnt; i++) {
+                    String name = i % 100 == 0 ? "" : "Task \u010d. " + i;
+                    store.add(3 * i + 1, name, 60000L * i + i, (i % 7) * 1.25);
+                }
+                Properties settings = new Properties();
+                settings.setProperty("window.size.w", "640");
+
+                File file = new File(dir, "data.bin");
+                new TaskSnapshot(settings, store).save(file);
+                TaskSnapshot s = TaskSnapshot.load(file);
+                check(s.getTaskCount() == cnt, s.getTaskCount() + " tasks loaded");
+                check("640".equals(s.getSettings().getProperty("window.size.w")), "settings not loaded");
+
+                TaskStore loaded = new TaskStore(null);
+                loaded.reset(s);
+                for (int i=0; i<cnt; i++) {
+                    check(loaded.getId(i) == store.getId(i), "bad identifier at " + i);
+                    check(loaded.getConsumption(i) == store.getConsumption(i), "bad consumption at " + i);
+                    check(loaded.getPrice(i) == store.getPrice(i), "bad price at " + i);
+                    check(loaded.getName(i).equals(store.getName(i)), "bad name at " + i);
+                }
+                check(loaded.find(3 * 1234 + 1) == 1234, "task not found");
+                check(loaded.getResidentCount() == 0, loaded.getResidentCount() + " task views created");
+            }
+        };
+    }
+
+    /**
+     * Creates the persistence test. Journal records and snapshots are
+     * only scheduled by the caller; they are written by the persistence
+     * thread even while it is busy when they are scheduled.
+     * @return test
+     */
+    static Test persistAsync() {
+        return new Test("persist.async") {
+            void run() throws Exception {
+                File file = TaskEngine.getPath(dir);
+                File jfile = TaskEngine.getJournalPath(dir);
+                ExecutorService ex = Executors.newSingleThreadExecutor();
+                TaskPersister p = new TaskPersister(file, jfile, new TaskLock(TaskEngine.getLockPath(dir)), ex);
+                p.open();
+
+                final CountDownLatch release = new CountDownLatch(1);
+                try {
+                    p.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+
+                    ArrayList<Task> tasks = new ArrayList<Task>();
+                    tasks.add(new Task(1, "Saved task", 60000L, 1.0));
+                    p.record(TaskJournal.taskAdded(tasks.get(0)));
+                    p.save(new TaskSnapshot(new Properties(), tasks));
+                    check(jfile.length() == 0, "journal written by the caller");
+                    check(!file.exists(), "snapshot written by the caller");
+                } finally {
+                    release.countDown();
+                }
+
+                p.flush();
+                check(file.exists(), "snapshot not written");
+                TaskSnapshot s = TaskSnapshot.load(file);
+                check(s.getTaskCount() == 1 && "Saved task".equals(s.getName(0)), "bad snapshot content");
+
+                p.close();
+                ex.shutdown();
+            }
+        };
+    }
+
+    /**
+     * Creates the formatting test. The formatted values must match
+     * the reference formats and the cell texts of a task must be reused
+     * until the shown value changes.
+     * @return test
+     */
+    static Test formatCache() {
+        return new Test("format.cache") {
+            void run() throws Exception {
+                java.text.DecimalFormat hf = new java.text.DecimalFormat("#,##0");
+                java.text.DecimalFormat pf = new java.text.DecimalFormat("#,##0.00");
+                long[] cons = { 0L, 59999L, 60000L, 3599999L, 3600000L, 1000L * 3600000L + 300000L, 1234567L * 60000L };
+                for (int i=0; i<cons.length; i++) {
+                    long mins = cons[i] / 60000;
+                    String exp = hf.format(mins / 60) + ":" + (mins % 60 < 10 ? "0" : "") + (mins % 60);
+                    String s = Task.formatConsumption(cons[i]);
+                    check(exp.equals(s), s + " instead of " + exp);
+                }
+                double[] prices = { 0.0, 0.004, 0.005, 1.5, -2.25, 999.999, 1234567.891 };
+                for (int i=0; i<prices.length; i++) {
+                    String exp = pf.format(Math.round(prices[i] * 100) / 100.0);
+                    String s = Task.formatPrice(prices[i]);
+                    check(exp.equals(s), s + " instead of " + exp);
+                }
+
+                Task t = new Task(1, "Task", 3600000L, 10.0);
+                String ct = t.getConsumptionText();
+                String pt = t.getTotalPriceText();
+                t.setConsumption(3600000L + 59999L);
+                check(t.getConsumptionText() == ct, "consumption text created again");
+                t.setConsumption(3600000L + 60000L);
+                check("1:01".equals(t.getConsumptionText()), "consumption text not updated");
+                check(t.getTotalPriceText() != pt, "price text not updated");
+                pt = t.getTotalPriceText();
+                check(t.getTotalPriceText() == pt, "price text created again");
+            }
+        };
+    }
+
+    /**
+     * Creates the row index test. Random mappings and removals (which
+     * shift colliding entries) must give the same results as a map.
+     * @return test
+     */
+    static Test rowIndex() {
+        return new Test("rowIndex.random") {
+            void run() throws Exception {
+                TaskRowIndex index = new TaskRowIndex();
+                HashMap<Integer, Integer> map = new HashMap<Integer, Integer>();
+                Random rnd = new Random(1);
+                for (int n=0; n<100000; n++) {
+                    int id = rnd.nextInt(5000);
+                    if (rnd.nextInt(3) == 0) {
+                        index.remove(id);
+                        map.remove(Integer.valueOf(id));
+                    }
+                    else {
+                        index.put(id, n);
+                        map.put(Integer.valueOf(id), Integer.valueOf(n));
+                    }
+                }
+
+                check(index.size() == map.size(), index.size() + " mappings instead of " + map.size());
+                for (int id=0; id<5000; id++) {
+                    Integer row = map.get(Integer.valueOf(id));
+                    int exp = row == null ? -1 : row.intValue();
+                    check(index.get(id) == exp, "bad row of " + id);
+                }
+                index.clear();
+                check(index.size() == 0 && index.get(1) == -1, "index not cleared");
+            }
+        };
+    }
+
+    /**
+     * Creates the benchmark test. Each benchmark is run a few times on
+     * a small data set, so the benchmarks are kept working.
+     * @return test
+     */
+    static Test benchSmoke() {
+        return new Test("bench.smoke") {
+            void run() throws Exception {
+                Benchmarks.Bench[] list = {
+                    Benchmarks.formatting(100),
+                    Benchmarks.save(100),
+                    Benchmarks.load(100),
+                    Benchmarks.tick(100),
+                    Benchmarks.sort(100)
+                };
+                for (int i=0; i<list.length; i++) {
+                    list[i].setUp();
+                    try {
+                        for (int n=0; n<3; n++) {
+                            list[i].run();
+                        }
+                    } finally {
+                        list[i].tearDown();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the headless engine test. The engine runs on a plain
+     * executor without a display and its listeners are called by that
+     * executor only.
+     * @return test
+     */
+    static Test engineHeadless() {
+        return new Test("engine.headless") {
+            void run() throws Exception {
+                check(java.awt.GraphicsEnvironment.isHeadless(), "tests not run headless");
+
+                final Thread[] thread = new Thread[1];
+                ExecutorService ex = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        thread[0] = new Thread(r, "engine");
+                        return thread[0];
+                    }
+                });
+                final TaskEngine e = new TaskEngine(dir, ex);
+                final ArrayList<String> bad = new ArrayList<String>();
+                final int[] events = new int[1];
+                e.addListener(new TaskEngineAdapter() {
+                    @Override
+                    public void tasksInserted(int start, int end) {
+                        called("tasksInserted");
+                    }
+                    @Override
+                    public void tasksUpdated(int start, int end) {
+                        called("tasksUpdated");
+                    }
+                    @Override
+                    public void tasksRemoved(int start, int end) {
+                        called("tasksRemoved");
+                    }
+                    void called(String name) {
+                        events[0]++;
+                        if (Thread.currentThread() != thread[0] || SwingUtilities.isEventDispatchThread())
+                            bad.add(name);
+                    }
+                });
+
+                try {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.open();
+                            e.addNewTask();
+                            e.setName(0, "Headless task");
+                            e.startTasks(0, 0);
+                            e.stopTasks(0, 0);
+                            e.removeTasks(0, 0);
+                        }
+                    });
+                    call(ex, new Runnable() {
+                        public void run() {
+                        }
+                    });
+                    check(events[0] >= 3, events[0] + " events");
+                    check(bad.isEmpty(), "called by another thread: " + bad);
+                } finally {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.close();
+                        }
+                    });
+                    ex.shutdown();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the totals test. After tasks are tracked, repriced, reset
+     * and removed, the cached totals (overall and for each price rate)
+     * must equal the sums over the tasks.
+     * @return test
+     */
+    static Test totalsRates() {
+        return new Test("totals.rates") {
+            void run() throws Exception {
+                ExecutorService ex = Executors.newSingleThreadExecutor();
+                final TaskEngine e = new TaskEngine(dir, ex);
+                try {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.open();
+                            for (int i=0; i<9; i++) {
+                                e.addNewTask();
+                                e.setPrice(i, i % 3 * 10.0);
+                            }
+                            e.startTasks(0, 8);
+                        }
+                    });
+                    Thread.sleep(100);
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.stopTasks(0, 8);
+                            e.setPrice(1, 20.0);
+                            e.resetTasks(2, 2);
+                            e.removeTasks(3, 3);
+                        }
+                    });
+
+                    final ArrayList<String> errors = new ArrayList<String>();
+                    call(ex, new Runnable() {
+                        public void run() {
+                            TaskTotals tt = e.getTotals();
+                            TreeMap<Double, long[]> rates = new TreeMap<Double, long[]>();
+                            long cons = 0L;
+                            for (int i=0; i<e.getTaskCount(); i++) {
+                                cons += e.getConsumption(i);
+                                Double key = Double.valueOf(e.getPrice(i));
+                                long[] sum = rates.get(key);
+                                if (sum == null) {
+                                    sum = new long[1];
+                                    rates.put(key, sum);
+                                }
+                                sum[0] += e.getConsumption(i);
+                            }
+                            if (tt.getTaskCount() != e.getTaskCount())
+                                errors.add(tt.getTaskCount() + " tasks");
+                            if (tt.getConsumption() != cons)
+                                errors.add(tt.getConsumption() + " ms instead of " + cons + " ms");
+
+                            double[] keys = tt.getPriceRates();
+                            if (keys.length != rates.size())
+                                errors.add(keys.length + " price rates");
+                            double price = 0;
+                            Iterator<Map.Entry<Double, long[]>> it = rates.entrySet().iterator();
+                            while (it.hasNext()) {
+                                Map.Entry<Double, long[]> me = it.next();
+                                double rate = me.getKey().doubleValue();
+                                if (tt.getConsumption(rate) != me.getValue()[0])
+                                    errors.add(tt.getConsumption(rate) + " ms at rate " + rate);
+                                price += me.getValue()[0] / Task.UNITS_PER_HOUR * rate;
+                            }
+                            if (Math.abs(tt.getTotalPrice() - price) > 1e-9)
+                                errors.add(tt.getTotalPrice() + " instead of " + price);
+                        }
+                    });
+                    check(errors.isEmpty(), errors.toString());
+                } finally {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.close();
+                        }
+                    });
+                    ex.shutdown();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the store test. Random insertions, changes and (batched)
+     * removals must keep the columns in the same state as a map of
+     * tasks; a removed task view keeps its last values.
+     * @return test
+     */
+    static Test storeColumns() {
+        return new Test("store.columns") {
+            void run() throws Exception {
+                TaskStore store = new TaskStore(null);
+                TreeMap<Integer, Object[]> ref = new TreeMap<Integer, Object[]>();
+                Random rnd = new Random(2);
+                for (int n=0; n<20000; n++) {
+                    int op = rnd.nextInt(10);
+                    if (op < 5 || store.size() == 0) {
+                        int id = rnd.nextInt(100000);
+                        if (ref.containsKey(Integer.valueOf(id)))
+                            continue;
+                        long cons = rnd.nextInt(1000000);
+                        double price = rnd.nextInt(10);
+                        store.add(id, "Task " + id, cons, price);
+                        ref.put(Integer.valueOf(id), new Object[] { "Task " + id, Long.valueOf(cons), Double.valueOf(price) });
+                    }
+                    else if (op < 8) {
+                        int row = rnd.nextInt(store.size());
+                        Object[] v = ref.get(Integer.valueOf(store.getId(row)));
+                        v[0] = "Renamed " + n;
+                        v[2] = Double.valueOf(rnd.nextInt(10));
+                        store.setName(row, (String) v[0]);
+                        store.setPrice(row, ((Double) v[2]).doubleValue());
+                    }
+                    else if (op < 9) {
+                        int row = rnd.nextInt(store.size());
+                        ref.remove(Integer.valueOf(store.getId(row)));
+                        store.remove(row);
+                    }
+                    else {
+                        int[] rows = new int[store.size()];
+                        int cnt = 0;
+                        for (int i=0; i<store.size(); i++) {
+                            if (rnd.nextInt(20) == 0) {
+                                rows[cnt++] = i;
+                                ref.remove(Integer.valueOf(store.getId(i)));
+                            }
+                        }
+                        if (cnt > 0)
+                            store.remove(rows, cnt);
+                    }
+                }
+
+                check(store.size() == ref.size(), store.size() + " tasks instead of " + ref.size());
+                int row = 0;
+                Iterator<Map.Entry<Integer, Object[]>> it = ref.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Integer, Object[]> me = it.next();
+                    Object[] v = me.getValue();
+                    check(store.getId(row) == me.getKey().intValue(), "bad identifier at " + row);
+                    check(store.getName(row).equals(v[0]), "bad name at " + row);
+                    check(store.getConsumption(row) == ((Long) v[1]).longValue(), "bad consumption at " + row);
+                    check(store.getPrice(row) == ((Double) v[2]).doubleValue(), "bad price at " + row);
+                    check(store.find(me.getKey().intValue()) == row, "task not found at " + row);
+                    row++;
+                }
+
+                Task t = store.get(0);
+                String name = t.getName();
+                long cons = t.getConsumption();
+                store.remove(0);
+                check(name.equals(t.getName()) && t.getConsumption() == cons, "removed task view changed");
+            }
+        };
+    }
+
+    /**
+     * Creates the metrics test. The histogram percentiles must be within
+     * the histogram precision and the engine must count its I/O and
+     * publish the metrics over JMX while it is open.
+     * @return test
+     */
+    static Test metrics() {
+        return new Test("metrics.engine") {
+            void run() throws Exception {
+                LatencyHistogram h = new LatencyHistogram("test");
+                for (int i=1; i<=10000; i++) {
+                    h.record(i * 1000L);
+                }
+                double[] pcs = { 50.0, 90.0, 99.0, 99.9 };
+                for (int i=0; i<pcs.length; i++) {
+                    long exp = (long) Math.ceil(pcs[i] * 100) * 1000L;
+                    long v = h.getValueAtPercentile(pcs[i]);
+                    check(v >= exp && v <= exp + exp / 50, "p" + pcs[i] + " is " + v + " ns instead of " + exp + " ns");
+                }
+                check(h.getMax() == 10000000L && h.getMean() == 5000500L, "bad maximum or mean");
+
+                ExecutorService ex = Executors.newSingleThreadExecutor();
+                final TaskEngine e = new TaskEngine(dir, ex);
+                try {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.open();
+                            for (int i=0; i<10; i++) {
+                                e.addNewTask();
+                            }
+                            e.startTasks(0, 1);
+                            e.save();
+                            e.flush();
+                        }
+                    });
+
+                    TaskMetrics m = e.getMetrics();
+                    check(m.getLoadLatency().getCount() == 1, m.getLoadLatency().getCount() + " loads");
+                    check(m.getSnapshotSize() == TaskEngine.getPath(dir).length(), "bad snapshot size");
+                    check(m.getBytesWritten() > m.getSnapshotSize(), "journal records not counted");
+                    javax.management.MBeanServer mbs = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+                    Object tasks = mbs.getAttribute(new javax.management.ObjectName(TaskMetrics.DOMAIN + ":type=Metrics"), "TaskCount");
+                    check(Integer.valueOf(10).equals(tasks), tasks + " tasks published");
+                    Object running = mbs.getAttribute(new javax.management.ObjectName(TaskMetrics.DOMAIN + ":type=Metrics"), "RunningCount");
+                    check(Integer.valueOf(2).equals(running), running + " running tasks published");
+                } finally {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.close();
+                        }
+                    });
+                    ex.shutdown();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the watchdog test. The event-dispatching thread is blocked
+     * for longer than the threshold; the stall must be logged with
+     * a stack sample showing the blocking code.
+     * @return test
+     */
+    static Test watchdogStall() {
+        return new Test("watchdog.stall") {
+            void run() throws Exception {
+                File log = new File(dir, "stalls.log");
+                StallWatchdog w = new StallWatchdog(50, log);
+                LatencyHistogram h = new LatencyHistogram("stall");
+                w.setLatencyHistogram(h);
+                w.start();
+                try {
+                    Thread.sleep(300);
+
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            try {
+                                Thread.sleep(400);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+                    for (int i=0; i<50 && log.length() == 0; i++) {
+                        Thread.sleep(100);
+                    }
+                } finally {
+                    w.stop();
+                }
+
+                check(log.exists(), "stall not logged");
+                String s = new String(read(log), "UTF-8");
+                check(s.indexOf("event thread stalled for") >= 0, "no stall duration logged");
+                check(s.indexOf("java.lang.Thread.sleep") >= 0, "blocking code not sampled");
+                check(h.getMax() >= 300000000L, "stall not recorded (" + h.getMax() + " ns)");
+            }
+        };
+    }
+
+    /**
+     * Creates the concurrency test. Identifiers are generated by many
+     * threads at once, and other threads read the tasks and totals while
+     * the engine changes them; the identifiers must be unique and each
+     * read record must be consistent.
+     * @return test
+     */
+    static Test engineConcurrent() {
+        return new Test("engine.concurrent") {
+            void run() throws Exception {
+                final int threads = 8;
+                final int[][] ids = new int[threads][10000];
+                Thread[] gen = new Thread[threads];
+                for (int i=0; i<threads; i++) {
+                    final int[] out = ids[i];
+                    gen[i] = new Thread() {
+                        @Override
+                        public void run() {
+                            for (int j=0; j<out.length; j++) {
+                                out[j] = Task.getNewId();
+                            }
+                        }
+                    };
+                    gen[i].start();
+                }
+                HashSet<Integer> set = new HashSet<Integer>();
+                for (int i=0; i<threads; i++) {
+                    gen[i].join();
+                    for (int j=0; j<ids[i].length; j++) {
+                        set.add(Integer.valueOf(ids[i][j]));
+                    }
+                }
+                check(set.size() == threads * ids[0].length, "identifiers not unique");
+
+                ExecutorService ex = Executors.newSingleThreadExecutor();
+                final TaskEngine e = new TaskEngine(dir, ex);
+                call(ex, new Runnable() {
+                    public void run() {
+                        e.open();
+                    }
+                });
+
+                final double initial = new Task().getPrice();
+                final AtomicBoolean done = new AtomicBoolean(false);
+                final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<String>();
+                Thread[] readers = new Thread[4];
+                for (int i=0; i<readers.length; i++) {
+                    readers[i] = new Thread() {
+                        @Override
+                        public void run() {
+                            TaskRecord[] recs = new TaskRecord[64];
+                            for (int j=0; j<recs.length; j++) {
+                                recs[j] = new TaskRecord();
+                            }
+                            try {
+                                while (!done.get()) {
+                                    int cnt = e.readTasks(0, recs);
+                                    for (int j=0; j<cnt; j++) {
+                                        TaskRecord r = recs[j];
+                                        if (j > 0 && r.getId() <= recs[j - 1].getId())
+                                            errors.add("identifiers not ascending");
+                                        if (r.getName().startsWith("Task ") && !r.getName().equals("Task " + r.getId()))
+                                            errors.add("name " + r.getName() + " of task " + r.getId());
+                                        if (r.getPrice() != initial && r.getPrice() != r.getId())
+                                            errors.add("price " + r.getPrice() + " of task " + r.getId());
+                                    }
+                                    int tc = e.getTotals().getTaskCount();
+                                    if (tc < 0 || tc > 2000)
+                                        errors.add(tc + " tasks in totals");
+                                }
+                            } catch (RuntimeException ex) {
+                                errors.add(ex.toString());
+                            }
+                        }
+                    };
+                    readers[i].start();
+                }
+
+                try {
+                    for (int n=0; n<20; n++) {
+                        call(ex, new Runnable() {
+                            public void run() {
+                                for (int i=0; i<100; i++) {
+                                    Task t = e.addNewTask();
+                                    int index = e.indexOf(t);
+                                    e.setName(index, "Task " + t.getId());
+                                    e.setPrice(index, t.getId());
+                                }
+                                e.removeTasks(0, 9);
+                            }
+                        });
+                    }
+                } finally {
+                    done.set(true);
+                    for (int i=0; i<readers.length; i++) {
+                        readers[i].join();
+                    }
+                    call(ex, new Runnable() {
+                        public void run() {
+                            e.close();
+                        }
+                    });
+                    ex.shutdown();
+                }
+
+                check(errors.isEmpty(), errors.size() + " errors, first: " + errors.peek());
+            }
+        };
+    }
+
+    /**
+     * Creates the HTTP API test. Tasks are added, started and listed
+     * over the loopback interface; requests of foreign web pages and
+     * unknown paths are refused.
+     * @return test
+     */
+    static Test httpApi() {
+        return new Test("http.api") {
+            int status = 0;
+
+            String request(String method, String url, String body) throws IOException {
+                HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+                c.setRequestMethod(method);
+                if (body != null) {
+                    c.setDoOutput(true);
+                    c.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                    OutputStream os = c.getOutputStream();
+                    os.write(body.getBytes("UTF-8"));
+                    os.close();
+                }
+                status = c.getResponseCode();
+                InputStream is = status < 400 ? c.getInputStream() : c.getErrorStream();
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                byte[] b = new byte[4096];
+                int len = 0;
+                while ((len = is.read(b)) > 0) {
+                    bos.write(b, 0, len);
+                }
+                is.close();
+                return bos.toString("UTF-8");
+            }
+
+            String statusLine(int port, String origin) throws IOException {
+                Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+                try {
+                    Writer w = new OutputStreamWriter(s.getOutputStream(), "US-ASCII");
+                    w.write("GET /tasks HTTP/1.0\r\nHost: 127.0.0.1\r\nOrigin: " + origin + "\r\n\r\n");
+                    w.flush();
+                    return new BufferedReader(new InputStreamReader(s.getInputStream(), "US-ASCII")).readLine();
+                } finally {
+                    s.close();
+                }
+            }
+
+            void run() throws Exception {
+                ExecutorService ex = Executors.newSingleThreadExecutor();
+                final TaskEngine e = new TaskEngine(dir, ex);
+                final TaskServer server = new TaskServer(e);
+                call(ex, new Runnable() {
+                    public void run() {
+                        e.open();
+                    }
+                });
+
+                try {
+                    server.start(0);
+                    String base = "http://127.0.0.1:" + server.getPort();
+
+                    String res = request("POST", base + "/add", "name=First&name=Second+task&price=12.5");
+                    check(status == 200, "add failed: " + res);
+                    java.util.regex.Matcher m = java.util.regex.Pattern.compile("\"id\":(\\d+)").matcher(res);
+                    check(m.find(), "no task added: " + res);
+                    String id = m.group(1);
+
+                    res = request("POST", base + "/start", "id=" + id);
+                    check(status == 200, "start failed: " + res);
+                    res = request("GET", base + "/tasks/" + id, null);
+                    check(res.indexOf("\"name\":\"First\"") >= 0 && res.indexOf("\"running\":true") >= 0, "bad task: " + res);
+                    res = request("GET", base + "/tasks", null);
+                    check(res.indexOf("\"Second task\"") >= 0 && res.indexOf("\"price\":12.5") >= 0, "bad task list: " + res);
+                    res = request("GET", base + "/totals", null);
+                    check(res.startsWith("{\"count\":2,\"running\":1,"), "bad totals: " + res);
+
+                    String line = statusLine(server.getPort(), "http://example.com");
+                    check(line != null && line.indexOf(" 403 ") > 0, "foreign origin accepted (" + line + ")");
+                    line = statusLine(server.getPort(), "http://localhost:8080");
+                    check(line != null && line.indexOf(" 200 ") > 0, "local origin refused (" + line + ")");
+                    request("POST", base + "/unknown", "");
+                    check(status == 404, "unknown path accepted (" + status + ")");
+                    request("GET", base + "/start?id=" + id, null);
+                    check(status == 405, "change by GET accepted (" + status + ")");
+                } finally {
+                    call(ex, new Runnable() {
+                        public void run() {
+                            server.stop();
+                            e.close();
+                        }
+                    });
+                    ex.shutdown();
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens an engine, adds a task and closes the engine.
+     * @param dir data directory
+     * @return number of loaded tasks
+     * @throws Exception if the engine fails
+     */
+    static int load(File dir) throws Exception {
+        ExecutorService ex = Executors.newSingleThreadExecutor();
+        final TaskEngine e = new TaskEngine(dir, ex);
+        final int[] cnt = new int[1];
+        try {
+            call(ex, new Runnable() {
+                public void run() {
+                    e.open();
+                    cnt[0] = e.getTaskCount();
+                    e.addNewTask();
+                }
+            });
+        } finally {
+            call(ex, new Runnable() {
+                public void run() {
+                    e.close();
+                }
+            });
+            ex.shutdown();
+        }
+        return cnt[0];
+    }
+
+    /**
+     * Deletes the given directory with its content.
+     * @param dir directory
+     */
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (int i=0; i<files.length; i++) {
+                if (files[i].isDirectory())
+                    delete(files[i]);
+                else
+                    files[i].delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Runs the given test and prints the result.
+     * @param t test
+     * @return <CODE>true</CODE> if the test passed, <CODE>false</CODE> otherwise
+     */
+    static boolean execute(Test t) {
+        try {
+            t.dir = File.createTempFile("lwtt", ".test");
+            t.dir.delete();
+            t.dir.mkdirs();
+            t.run();
+            System.out.printf("%-28s ok%n", t.name);
+            return true;
+        } catch (Throwable e) {
+            System.out.printf("%-28s FAILED (%s)%n", t.name, e);
+            return false;
+        } finally {
+            if (t.dir != null)
+                delete(t.dir);
+        }
+    }
+
+    /**
+     * Runs the tests.
+     * @param args optional test name filter
+     */
+    public static void main(String[] args) {
+        String filter = args.length > 0 ? args[0] : "";
+
+        ArrayList<Test> list = new ArrayList<Test>();
+        list.add(exportReadOnly());
+        list.add(reloadRunning());
+        list.add(uniqueIds());
+        list.add(legacyErrors());
+        list.add(viewRemove());
+        list.add(viewFilter());
+        list.add(tableChanges());
+        list.add(journalTornTail());
+        list.add(damagedData());
+        list.add(lockFailure());
+        list.add(sessionOrder());
+        list.add(reportWeeks());
+        list.add(snapshotVersion());
+        list.add(storeRebase());
+        list.add(commandStall());
+        list.add(headerLongNames());
+        list.add(tickerShared());
+        list.add(wallClock());
+        list.add(snapshotRoundTrip());
+        list.add(persistAsync());
+        list.add(formatCache());
+        list.add(rowIndex());
+        list.add(benchSmoke());
+        list.add(engineHeadless());
+        list.add(totalsRates());
+        list.add(storeColumns());
+        list.add(metrics());
+        list.add(watchdogStall());
+        list.add(engineConcurrent());
+        list.add(httpApi());
+
+        int failed = 0;
+        for (int i=0; i<list.size(); i++) {
+            Test t = list.get(i);
+            if (t.name.indexOf(filter) >= 0 && !execute(t))
+                failed++;
+        }
+
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+}